@@ -2,16 +2,35 @@ package org.mailster.smtp;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
+import org.mailster.smtp.api.AsyncMessageListener;
+import org.mailster.smtp.api.BatchingMessageListener;
 import org.mailster.smtp.api.MessageListener;
 import org.mailster.smtp.api.handler.AbstractDeliveryHandler;
 import org.mailster.smtp.api.handler.Delivery;
 import org.mailster.smtp.api.handler.DeliveryContext;
+import org.mailster.smtp.api.handler.ListenerRoutingTable;
+import org.mailster.smtp.api.handler.RecipientVerdictCache;
 import org.mailster.smtp.api.handler.RejectException;
 import org.mailster.smtp.core.TooMuchDataException;
 import org.mailster.smtp.core.auth.AuthenticationHandler;
@@ -34,6 +53,12 @@ public class DefaultDeliveryHandler
 	private List<Delivery> deliveries = new ArrayList<Delivery>();
 	private String from;
 	
+	/** 
+	 * The verdicts of the {@link BatchingMessageListener} listeners on the 
+	 * recipients announced by {@link #prepareRecipients(List)}. 
+	 */
+	private Map<MessageListener, Map<String, Boolean>> verdicts;
+	
 	public DefaultDeliveryHandler(DeliveryContext ctx, AuthenticationHandler authHandler)
 	{
 		super(ctx, authHandler);
@@ -46,6 +71,7 @@ public class DefaultDeliveryHandler
 		throws RejectException
 	{
 		this.from = from;
+		this.verdicts = null;
 	}
 	
 	/** 
@@ -56,9 +82,9 @@ public class DefaultDeliveryHandler
 	{
 		boolean addedListener = false;
 		
-		for (MessageListener listener: getListeners())
+		for (MessageListener listener: getRoutingTable().route(recipient))
 		{
-			if (listener.accept(getSessionContext(), this.from, recipient))
+			if (accept(listener, recipient))
 			{
 				this.deliveries.add(new Delivery(listener, recipient));
 				addedListener = true;
@@ -69,12 +95,129 @@ public class DefaultDeliveryHandler
 			throw new RejectException(553, "<" + recipient + "> address unknown.");
 	}
 	
+	/**
+	 * Asks the {@link BatchingMessageListener} listeners to validate the 
+	 * recipients at once. Their verdicts are used when the recipients are 
+	 * passed to {@link #recipient(String)}.
+	 */
+	public void prepareRecipients(List<String> recipients)
+	{
+		RecipientVerdictCache cache = getRecipientVerdictCache();
+		ListenerRoutingTable table = getRoutingTable();
+		
+		// Each recipient is routed once to the batching listeners concerned
+		Map<MessageListener, List<String>> routed = new HashMap<MessageListener, List<String>>();
+		for (String recipient : recipients)
+		{
+			for (MessageListener listener : table.route(recipient))
+			{
+				if (!(listener instanceof BatchingMessageListener))
+					continue;
+				
+				List<String> list = routed.get(listener);
+				if (list == null)
+				{
+					list = new ArrayList<String>(recipients.size());
+					routed.put(listener, list);
+				}
+				list.add(recipient);
+			}
+		}
+		
+		for (MessageListener listener: table.getListeners())
+		{
+			List<String> pending = routed.get(listener);
+			if (pending == null)
+				continue;
+			
+			// Only the recipients missing from the cache are checked
+			if (cache != null)
+			{
+				int n = 0;
+				for (String recipient : pending)
+				{
+					Boolean cached = cache.get(listener, this.from, recipient);
+					if (cached == null)
+						pending.set(n++, recipient);
+					else
+						getVerdicts(listener).put(recipient, cached);
+				}
+				pending.subList(n, pending.size()).clear();
+			}
+			
+			if (pending.isEmpty())
+				continue;
+			
+			boolean[] accepted = ((BatchingMessageListener) listener).accept(
+					getSessionContext(), this.from, pending);
+			
+			if (accepted == null || accepted.length != pending.size())
+			{
+				LOG.warn("Ignoring the verdicts of {}: one per recipient is expected", listener);
+				continue;
+			}
+			
+			Map<String, Boolean> map = getVerdicts(listener);
+			for (int i = 0; i < accepted.length; i++)
+			{
+				map.put(pending.get(i), accepted[i]);
+				if (cache != null)
+					cache.put(listener, this.from, pending.get(i), accepted[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the verdicts of a listener on the announced recipients.
+	 */
+	private Map<String, Boolean> getVerdicts(MessageListener listener)
+	{
+		if (verdicts == null)
+			verdicts = new HashMap<MessageListener, Map<String, Boolean>>();
+		
+		Map<String, Boolean> map = verdicts.get(listener);
+		if (map == null)
+		{
+			map = new HashMap<String, Boolean>();
+			verdicts.put(listener, map);
+		}
+		return map;
+	}
+	
+	/**
+	 * Returns true if the listener accepts the recipient, using its verdict
+	 * if it has already been given or cached.
+	 */
+	private boolean accept(MessageListener listener, String recipient)
+	{
+		if (verdicts != null)
+		{
+			Map<String, Boolean> map = verdicts.get(listener);
+			Boolean accepted = map == null ? null : map.remove(recipient);
+			if (accepted != null)
+				return accepted;
+		}
+		
+		RecipientVerdictCache cache = getRecipientVerdictCache();
+		if (cache == null)
+			return listener.accept(getSessionContext(), this.from, recipient);
+		
+		Boolean cached = cache.get(listener, this.from, recipient);
+		if (cached != null)
+			return cached;
+		
+		boolean accepted = listener.accept(getSessionContext(), this.from, recipient);
+		cache.put(listener, this.from, recipient, accepted);
+		return accepted;
+	}
+	
 	/** 
 	 * {@inheritDoc}
 	 */
 	public void resetMessageState()
 	{
 		this.deliveries.clear();
+		this.verdicts = null;
 	}
 	
 	/**
@@ -86,6 +229,127 @@ public class DefaultDeliveryHandler
 	 */
 	public void data(InputStream data) 
 		throws TooMuchDataException, IOException
+	{
+		// Prevent concurrent modifications
+		deliver(new ArrayList<Delivery>(this.deliveries), data);
+	}
+	
+	/**
+	 * Starts the deliveries to the {@link AsyncMessageListener} listeners, 
+	 * each one with its own private stream, then delivers the message to 
+	 * the other listeners like {@link #data(InputStream)} does. The returned 
+	 * stage completes when all asynchronous deliveries are over. 
+	 */
+	public CompletionStage<Void> dataAsync(InputStream data) 
+		throws TooMuchDataException, IOException
+	{
+		List<Delivery> list = new ArrayList<Delivery>(this.deliveries.size());
+		List<CompletableFuture<Void>> stages = new ArrayList<CompletableFuture<Void>>();
+		
+		for (Delivery delivery : this.deliveries)
+		{
+			if (delivery.getListener() instanceof AsyncMessageListener)
+				stages.add(deliverAsync(delivery, data));
+			else
+				list.add(delivery);
+		}
+		
+		deliver(list, data);
+		
+		if (stages.isEmpty())
+			return CompletableFuture.completedFuture(null);
+		
+		return allOf(stages);
+	}
+	
+	/**
+	 * Delivers the message to an asynchronous listener. Failures are 
+	 * always reported through the returned future.
+	 */
+	private CompletableFuture<Void> deliverAsync(Delivery delivery, InputStream data)
+	{
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		
+		try
+		{
+			AsyncMessageListener listener = (AsyncMessageListener) delivery.getListener();
+			listener.deliverAsync(getSessionContext(), this.from, delivery.getRecipient(), 
+					SharedStreamUtils.getPrivateInputStream(true, data)).whenComplete(
+				new BiConsumer<Void, Throwable>() {
+					public void accept(Void v, Throwable t) 
+					{
+						if (t instanceof CompletionException && t.getCause() != null)
+							t = t.getCause();
+						
+						if (t == null)
+							future.complete(null);
+						else
+							future.completeExceptionally(t);
+					}
+				});
+		}
+		catch (RuntimeException ex)
+		{
+			future.completeExceptionally(ex);
+		}
+		
+		return future;
+	}
+	
+	/**
+	 * Returns a future completed when all the futures are. If some of them
+	 * fail, it fails with the first failure, the others being added as 
+	 * suppressed exceptions.
+	 */
+	private static CompletableFuture<Void> allOf(final List<CompletableFuture<Void>> futures)
+	{
+		final CompletableFuture<Void> result = new CompletableFuture<Void>();
+		
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+			.whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void v, Throwable t) 
+				{
+					Throwable failure = null;
+					
+					for (CompletableFuture<Void> future : futures)
+					{
+						Throwable cause = null;
+						try
+						{
+							future.join();
+						}
+						catch (CompletionException ex)
+						{
+							cause = ex.getCause();
+						}
+						catch (CancellationException ex)
+						{
+							cause = ex;
+						}
+						
+						if (cause == null)
+							continue;
+						if (failure == null)
+							failure = cause;
+						else
+							failure.addSuppressed(cause);
+					}
+					
+					if (failure == null)
+						result.complete(null);
+					else
+						result.completeExceptionally(failure);
+				}
+			});
+		
+		return result;
+	}
+	
+	/**
+	 * Delivers the message to each delivery of the list.
+	 */
+	private void deliver(List<Delivery> list, InputStream data) 
+		throws TooMuchDataException, IOException
 	{
 		boolean useCopy = false;
 		
@@ -112,8 +376,12 @@ public class DefaultDeliveryHandler
 			useCopy = true;
 		}
 		
-		// Prevent concurrent modifications
-		List<Delivery> list = new ArrayList<Delivery>(this.deliveries);
+		ExecutorService executor = getDeliveryExecutor();
+		if (executor != null && list.size() > 1)
+		{
+			deliverConcurrently(executor, list, data);
+			return;
+		}
 		
 		for (Delivery delivery : list)
 		{				
@@ -124,4 +392,168 @@ public class DefaultDeliveryHandler
 		    useCopy = true;
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * A delivery run by the delivery executor, recording when it started.
+	 * It fails without delivering if it starts after its queued deadline.
+	 */
+	private final class TimedDelivery implements Callable<Void>
+	{
+		private final Delivery delivery;
+		private final InputStream data;
+		private final long timeout;
+		private final long queued;
+		
+		private volatile boolean started = false;
+		private volatile long start;
+		
+		private TimedDelivery(Delivery delivery, InputStream data, long timeout, long queued)
+		{
+			this.delivery = delivery;
+			this.data = data;
+			this.timeout = timeout;
+			this.queued = queued;
+		}
+		
+		public Void call() throws Exception
+		{
+			start = System.nanoTime();
+			started = true;
+			
+			if (timeout > 0 && start - queued >= 0)
+				throw new IOException("Delivery to <" + delivery.getRecipient() 
+						+ "> timed out waiting for a thread");
+			
+			delivery.getListener().deliver(getSessionContext(), from, 
+					delivery.getRecipient(), 
+					SharedStreamUtils.getPrivateInputStream(true, data));
+			return null;
+		}
+	}
+	
+	/**
+	 * Delivers a private copy of the stream to each recipient using the
+	 * delivery executor and waits for all of them to complete. Each delivery
+	 * is given the configured delivery timeout from the time it starts. The 
+	 * deliveries still waiting for a thread of the executor once the timeout
+	 * has elapsed since their submission fail, as well as the ones rejected 
+	 * by the executor. If some deliveries fail, the first failure is thrown once
+	 * all deliveries are over, the others being added as suppressed 
+	 * exceptions.
+	 */
+	private void deliverConcurrently(ExecutorService executor, 
+			List<Delivery> list, InputStream data) 
+		throws TooMuchDataException, IOException
+	{
+		List<TimedDelivery> tasks = new ArrayList<TimedDelivery>(list.size());
+		List<Future<?>> futures = new ArrayList<Future<?>>(list.size());
+		
+		long timeout = TimeUnit.MILLISECONDS.toNanos(
+				getDeliveryContext().getSMTPServerConfig().getDeliveryTimeout());
+		
+		// The client won't wait for the deliveries still queued then
+		long queued = System.nanoTime() + timeout;
+		
+		for (Delivery delivery : list)
+		{
+			TimedDelivery task = new TimedDelivery(delivery, data, timeout, queued);
+			tasks.add(task);
+			try
+			{
+				futures.add(executor.submit(task));
+			}
+			catch (RejectedExecutionException ex)
+			{
+				futures.add(null);
+			}
+		}
+		
+		Throwable failure = null;
+		
+		for (int i = 0; i < futures.size(); i++)
+		{
+			Future<?> future = futures.get(i);
+			TimedDelivery task = tasks.get(i);
+			Throwable t = null;
+			
+			try
+			{
+				if (future == null)
+					t = new IOException("Delivery to <" + list.get(i).getRecipient() 
+							+ "> rejected: too many deliveries in progress");
+				
+				while (t == null && !wait(future, task, timeout, queued))
+				{
+					if (task.started ? System.nanoTime() - task.start >= timeout 
+							: System.nanoTime() - queued >= 0)
+					{
+						future.cancel(true);
+						t = new IOException("Delivery to <" + list.get(i).getRecipient() 
+								+ "> timed out");
+						break;
+					}
+				}
+			}
+			catch (ExecutionException ex)
+			{
+				t = ex.getCause();
+			}
+			catch (InterruptedException ex)
+			{
+				for (Future<?> f : futures)
+				{
+					if (f != null)
+						f.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while delivering message");
+			}
+			
+			if (t != null)
+			{
+				LOG.debug("Delivery to <{}> failed", list.get(i).getRecipient(), t);
+				
+				if (failure == null)
+					failure = t;
+				else
+					failure.addSuppressed(t);
+			}
+		}
+		
+		if (failure instanceof IOException)
+			throw (IOException) failure;
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new IOException(failure);
+	}
+	
+	/**
+	 * Waits for a delivery until its timeout expires, counted from the time 
+	 * it started, or until the <code>queued</code> deadline if it's still 
+	 * queued.
+	 * 
+	 * @return false if the delivery isn't over yet
+	 */
+	private static boolean wait(Future<?> future, TimedDelivery task, long timeout, 
+			long queued)
+		throws ExecutionException, InterruptedException
+	{
+		try
+		{
+			if (timeout <= 0)
+				future.get();
+			else if (task.started)
+				future.get(Math.max(0, task.start + timeout - System.nanoTime()), TimeUnit.NANOSECONDS);
+			else
+				future.get(Math.max(0, queued - System.nanoTime()), TimeUnit.NANOSECONDS);
+			return true;
+		}
+		catch (TimeoutException ex)
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package org.mailster.smtp;
+
+/**
+ * The strategies used to create the executor that runs the SMTP sessions
+ * events once they have been decoded.
+ *
+ * @see SMTPServerConfig#setExecutorStrategy(ExecutorStrategy)
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public enum ExecutorStrategy
+{
+	/**
+	 * An unbounded pool of platform threads, created on demand and reused
+	 * when idle. Bursts of connections may spawn thousands of threads.
+	 */
+	CACHED,
+
+	/**
+	 * A pool of at most {@link SMTPServerConfig#getMaxWorkerThreads()} threads
+	 * with a work queue of {@link SMTPServerConfig#getWorkQueueSize()} events.
+	 * Once the queue is full, events run on the I/O thread which stops reading
+	 * new data until they are done.
+	 */
+	BOUNDED,
+
+	/**
+	 * A pool of at most {@link SMTPServerConfig#getMaxWorkerThreads()} threads
+	 * where the events of a session are run one at a time and in the order
+	 * they were received.
+	 */
+	ORDERED,
+
+	/**
+	 * A new virtual thread for each event. Requires JDK 21 or later, the
+	 * {@link #CACHED} strategy is used on older runtimes.
+	 */
+	VIRTUAL_THREADS
+}
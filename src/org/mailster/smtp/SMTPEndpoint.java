@@ -0,0 +1,89 @@
+package org.mailster.smtp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * An address the {@link SMTPServer} listens on, along with the
+ * configuration of the sessions it accepts. A server may listen on
+ * several endpoints, for example on port 25 for relaying and on port 587
+ * for submission with a larger message size limit.
+ *
+ * The bind address and port are read when the server starts.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SMTPEndpoint
+{
+	/**
+	 * Null means all interfaces.
+	 */
+	private InetAddress bindAddress;
+
+	private int port;
+
+	private final SMTPServerConfig config;
+
+	SMTPEndpoint(InetAddress bindAddress, int port, SMTPServerConfig config)
+	{
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.config = config;
+	}
+
+	/**
+	 * Returns the bind address. Null means all interfaces.
+	 */
+	public InetAddress getBindAddress()
+	{
+		return bindAddress;
+	}
+
+	/**
+	 * Sets the bind address. Null means all interfaces.
+	 */
+	public void setBindAddress(InetAddress bindAddress)
+	{
+		this.bindAddress = bindAddress;
+	}
+
+	/**
+	 * Returns the port of the endpoint.
+	 */
+	public int getPort()
+	{
+		return port;
+	}
+
+	/**
+	 * Sets the port of the endpoint.
+	 */
+	public void setPort(int port)
+	{
+		this.port = port;
+	}
+
+	/**
+	 * Returns the socket address to bind.
+	 */
+	public InetSocketAddress getSocketAddress()
+	{
+		if (bindAddress == null)
+			return new InetSocketAddress(port);
+
+		return new InetSocketAddress(bindAddress, port);
+	}
+
+	/**
+	 * Returns the configuration of the sessions accepted on this endpoint.
+	 */
+	public SMTPServerConfig getConfig()
+	{
+		return config;
+	}
+
+	public String toString()
+	{
+		return "SMTPEndpoint[" + getSocketAddress() + "]";
+	}
+}
@@ -1,37 +1,55 @@
 package org.mailster.smtp;
 
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.SimpleBufferAllocator;
 import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
 import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
 import org.apache.mina.filter.logging.LoggingFilter;
+import org.apache.mina.filter.ssl.SslFilter;
 import org.apache.mina.transport.socket.SocketAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.mailster.smtp.api.MessageListener;
 import org.mailster.smtp.api.handler.AbstractDeliveryHandler;
 import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.api.handler.RecipientVerdictCache;
+import org.mailster.smtp.core.BufferReleaseFilter;
 import org.mailster.smtp.core.SMTPDecoder;
 import org.mailster.smtp.core.SMTPCodecFactory;
 import org.mailster.smtp.core.SMTPConnectionHandler;
+import org.mailster.smtp.core.TLSHandshakeFilter;
 import org.mailster.smtp.core.auth.AuthenticationHandlerFactory;
 import org.mailster.smtp.core.commands.CommandHandler;
+import org.mailster.smtp.util.ReusePortSelectorProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Main SMTPServer class.  Construct this object, set the
  * hostName, port, and bind address if you wish to override the 
- * defaults, and call start(). 
+ * defaults, and call start(). More ports can be listened on, each one 
+ * with its own configuration, by adding {@link SMTPEndpoint}s.
  * 
  * This class starts opens a <a href="http://mina.apache.org/">Mina</a> 
  * based listener and creates a new
@@ -68,23 +86,23 @@ public class SMTPServer
 {
 	private static final Logger LOG = LoggerFactory.getLogger(SMTPServer.class);
 
+	private DeliveryHandlerFactory deliveryHandlerFactory;
+	private CommandHandler commandHandler;
+	
 	/**
-	 * default to all interfaces
+	 * The endpoints, the first one being configured by the server setters.
 	 */
-	private InetAddress bindAddress = null;
-
+	private List<SMTPEndpoint> endpoints = new ArrayList<SMTPEndpoint>();
+	
 	/**
-	 * default to 25
+	 * The acceptors of the endpoints, kept when the server is restarted.
 	 */
-	private int port = 25;
+	private Map<SMTPEndpoint, Listener> listeners = new HashMap<SMTPEndpoint, Listener>();
 	
-	private DeliveryHandlerFactory deliveryHandlerFactory;
-	private CommandHandler commandHandler;
-	private SMTPConnectionHandler handler;
+	private ThreadPoolExecutor deliveryExecutor;
 	
-	private SocketAcceptor acceptor;
-	private ExecutorService executor;
-	private SMTPCodecFactory codecFactory;
+	private ExecutorService handshakeExecutor;
+	private TLSHandshakeFilter handshakeFilter;
 	
 	private boolean running = false;
 	private boolean shutdowned = false;
@@ -93,7 +111,39 @@ public class SMTPServer
 	 * The server configuration.
 	 */
 	private SMTPServerConfig config = new SMTPServerConfig();
+	
+	/**
+	 * Names the worker threads of all the executors.
+	 */
+	private ThreadFactory threadFactory = new ThreadFactory() {
+		private final AtomicInteger sequence = new AtomicInteger();
+		
+		public Thread newThread(Runnable r) 
+		{					
+			return new Thread(r, "MailsterSMTP Thread " + sequence.incrementAndGet());
+		}			
+	};
 
+	/**
+	 * The acceptor shards of an endpoint. They share the endpoint's codec
+	 * and handler, but each one has its own I/O processors and executor.
+	 */
+	private static class Listener
+	{
+		private final SMTPEndpoint endpoint;
+		private final SMTPCodecFactory codecFactory;
+		private final SMTPConnectionHandler handler;
+		private final List<SocketAcceptor> acceptors = new ArrayList<SocketAcceptor>();
+		private final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+
+		private Listener(SMTPEndpoint endpoint, SMTPConnectionHandler handler)
+		{
+			this.endpoint = endpoint;
+			this.codecFactory = new SMTPCodecFactory(endpoint.getConfig());
+			this.handler = handler;
+		}
+	}
+	
 	public SMTPServer()
 	{
 		List<MessageListener> listeners = Collections.emptyList();
@@ -116,47 +166,86 @@ public class SMTPServer
 	{
 		this.deliveryHandlerFactory = new DeliveryHandlerFactory(listeners);
 		this.commandHandler = new CommandHandler();
-		initService();		
+		
+		// Defaults to port 25 on all interfaces
+		this.endpoints.add(new SMTPEndpoint(null, 25, config));
 	}
 
 	/**
-	 * Initializes the runtime service.
+	 * Creates the acceptors of an endpoint.
 	 */
-	private void initService()
+	private Listener createListener(SMTPEndpoint endpoint)
 	{
-		try
+		SMTPServerConfig cfg = endpoint.getConfig();
+		Listener l = new Listener(endpoint, new SMTPConnectionHandler(cfg, 
+				getCommandHandler(), getDeliveryHandlerFactory()));
+		
+		SslFilter sslFilter = createSslFilter(cfg);
+		if (sslFilter == null && cfg.isImplicitTLS())
+			throw new IllegalStateException("Implicit TLS on " + endpoint 
+					+ " requires an SSL context");
+		l.handler.setSslFilter(sslFilter);
+		
+		int shards = cfg.getAcceptorShards();
+		int processors = Math.max(1, (Runtime.getRuntime().availableProcessors() + 1) / shards);
+		
+		for (int i = 0; i < shards; i++)
 		{
-			IoBuffer.setUseDirectBuffer(false);
-			acceptor = new NioSocketAcceptor(Runtime.getRuntime().availableProcessors() + 1);
+			NioSocketAcceptor acceptor = shards == 1 
+				? new NioSocketAcceptor(processors)
+				: new NioSocketAcceptor(processors, new ReusePortSelectorProvider());
 			
+			// Allows a restart to bind again despite the closed connections
+			acceptor.setReuseAddress(true);
 			acceptor.getSessionConfig().setReuseAddress(true);
 			DefaultIoFilterChainBuilder chain = acceptor.getFilterChain();
 
 			if (LOG.isTraceEnabled())
 				chain.addLast("logger", new LoggingFilter());
 
-			codecFactory = new SMTPCodecFactory(config);
-			chain.addLast("codec", new ProtocolCodecFilter(codecFactory));
+			// Below the codec to see the encoded replies
+			chain.addLast(BufferReleaseFilter.NAME, new BufferReleaseFilter());
+			chain.addLast("codec", new ProtocolCodecFilter(l.codecFactory));
 			
-			executor = Executors.newCachedThreadPool(new ThreadFactory() {
-				int sequence;
-				
-				public Thread newThread(Runnable r) 
-				{					
-					sequence += 1;
-					return new Thread(r, "MailsterSMTP Thread "+sequence);
-				}			
-			});
+			ExecutorService executor = createExecutor(cfg);
+			chain.addLast(SMTPConnectionHandler.EXECUTOR_FILTER, new ExecutorFilter(executor));
 			
-			chain.addLast("threadPool", new ExecutorFilter(executor));
+			// The handshake starts as soon as the session is created
+			if (cfg.isImplicitTLS())
+				chain.addFirst(TLSHandshakeFilter.SSL_FILTER, sslFilter);
 			
-			handler = new SMTPConnectionHandler(getConfig(), getCommandHandler(),
-					getDeliveryHandlerFactory());
-		}
-		catch (Exception ex)
-		{
-			throw new RuntimeException(ex);
+			// Ahead of the SSL filter to take over the handshakes. Without
+			// an SSL context, STARTTLS falls back to a filter of its own
+			if (sslFilter != null)
+				chain.addFirst(TLSHandshakeFilter.NAME, handshakeFilter);
+			
+			acceptor.setHandler(l.handler);
+			l.acceptors.add(acceptor);
+			l.executors.add(executor);
 		}
+		return l;
+	}
+
+	/**
+	 * Creates the filter securing the sessions of an endpoint.
+	 * 
+	 * @return the filter or null if no SSL context is configured
+	 */
+	private static SslFilter createSslFilter(SMTPServerConfig cfg)
+	{
+		SSLContext sslContext = cfg.getSSLContext();
+		if (sslContext == null)
+			return null;
+		
+		// Reconnecting clients resume their sessions from the cache. The
+		// context may be shared, so only the explicit settings are applied
+		SSLSessionContext sessions = sslContext.getServerSessionContext();
+		if (cfg.getTLSSessionCacheSize() >= 0)
+			sessions.setSessionCacheSize(cfg.getTLSSessionCacheSize());
+		if (cfg.getTLSSessionTimeout() >= 0)
+			sessions.setSessionTimeout(cfg.getTLSSessionTimeout());
+		
+		return new SslFilter(sslContext);
 	}
 
 	/**
@@ -174,36 +263,220 @@ public class SMTPServer
 		if (shutdowned)
 			throw new RuntimeException("Error: server has been shutdown previously");
 		
+		if (getConfig().getBufferAllocator() != null)
+			IoBuffer.setAllocator(getConfig().getBufferAllocator());
+		IoBuffer.setUseDirectBuffer(getConfig().isDirectBuffers());
+		
+		initDeliveryExecutor();
+		initRecipientVerdictCache();
+		
+		// The filter is kept when the server is restarted
+		if (handshakeFilter == null)
+			initHandshakeFilter();
+		
+		try
+		{
+			for (SMTPEndpoint endpoint : endpoints)
+			{
+				Listener l = listeners.get(endpoint);
+				if (l == null)
+				{
+					l = createListener(endpoint);
+					listeners.put(endpoint, l);
+				}
+				bind(l);
+			}
+			
+			running = true;
+			LOG.info("SMTP server started ...");
+		}
+		catch (Exception e)
+		{
+			unbind();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Binds the acceptors of an endpoint.
+	 */
+	private void bind(Listener l) throws IOException
+	{
+		SMTPServerConfig cfg = l.endpoint.getConfig();
+		
 		// Read smtp decoder configuration options
-		((SMTPDecoder) codecFactory.getDecoder(null)).
-			setup(getConfig().getCharset(), getConfig().getDataDeferredSize());
+		SMTPDecoder decoder = (SMTPDecoder) l.codecFactory.getDecoder(null);
+		decoder.setup(cfg.getCharset(), cfg.getDataDeferredSize());
+		decoder.setSpoolDirectory(cfg.getSpoolDirectory());
+		decoder.setSyncSpoolFiles(cfg.isSyncSpoolFiles());
+		decoder.setUnstuffOnReceive(cfg.isUnstuffOnReceive());
+		decoder.setMaxMessageSize(cfg.getMaxMessageSize());
+		decoder.setSmtpUTF8Supported(cfg.isSmtpUTF8Supported());
+		decoder.setRecycleBuffers(!(IoBuffer.getAllocator() instanceof SimpleBufferAllocator));
 		
-		InetSocketAddress isa;
-
-		if (this.bindAddress == null)
+		SocketAddress address = l.endpoint.getSocketAddress();
+		for (SocketAcceptor acceptor : l.acceptors)
 		{
-			isa = new InetSocketAddress(this.port);
+			acceptor.setBacklog(cfg.getBacklog());
+			acceptor.bind(address);
+			
+			// The shards bind the port chosen for the first one
+			address = acceptor.getLocalAddress();
 		}
-		else
+		
+		LOG.info("SMTP server listening on {} with {} acceptor(s)", address, l.acceptors.size());
+	}
+	
+	/**
+	 * Unbinds all the acceptors.
+	 */
+	private void unbind()
+	{
+		for (Listener l : listeners.values())
 		{
-			isa = new InetSocketAddress(this.bindAddress, this.port);
+			for (SocketAcceptor acceptor : l.acceptors)
+			{
+				try { 
+					acceptor.unbind(); 
+				} catch (Exception e) { e.printStackTrace(); }
+			}
 		}
+	}
 
-		acceptor.setBacklog(config.getBacklog());
-		acceptor.setHandler(handler);
+	/**
+	 * Creates the executor running the sessions events according to the
+	 * {@link ExecutorStrategy} configured for the endpoint.
+	 */
+	private ExecutorService createExecutor(SMTPServerConfig cfg)
+	{
+		ThreadFactory factory = threadFactory;
+		int threads = cfg.getMaxWorkerThreads();
 		
+		switch (cfg.getExecutorStrategy())
+		{
+			case BOUNDED:
+				// When the queue is full, events run on the I/O thread
+				ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 
+						60, TimeUnit.SECONDS, 
+						new ArrayBlockingQueue<Runnable>(cfg.getWorkQueueSize()),
+						factory, new ThreadPoolExecutor.CallerRunsPolicy());
+				pool.allowCoreThreadTimeOut(true);
+				return pool;
+				
+			case ORDERED:
+				return new OrderedThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, factory);
+				
+			case VIRTUAL_THREADS:
+				ExecutorService virtualExecutor = createVirtualThreadExecutor();
+				if (virtualExecutor != null)
+					return virtualExecutor;
+				
+				LOG.warn("Virtual threads are not supported by this runtime, "
+						+ "using the CACHED executor strategy");
+				return Executors.newCachedThreadPool(factory);
+				
+			default:
+				return Executors.newCachedThreadPool(factory);
+		}
+	}
+	
+	/**
+	 * Creates an executor starting a new named virtual thread for each task.
+	 * Reflection is used as virtual threads only exist since JDK 21.
+	 * 
+	 * @return the executor or null if virtual threads aren't supported
+	 */
+	private static ExecutorService createVirtualThreadExecutor()
+	{
 		try
 		{
-			acceptor.bind(isa);
-			running = true;
-			LOG.info("SMTP server started ...");
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).
+				invoke(builder, "MailsterSMTP Virtual Thread ", 1L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").
+				invoke(builder);
+			
+			return (ExecutorService) Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
 		}
-		catch (Exception e)
+		catch (Exception ex)
 		{
-			throw new RuntimeException(e);
+			LOG.debug("Virtual threads unavailable", ex);
+			return null;
 		}
 	}
-
+	
+	/**
+	 * Creates the executor used for parallel deliveries unless one has
+	 * already been provided to the {@link DeliveryHandlerFactory}.
+	 */
+	private void initDeliveryExecutor()
+	{
+		int threads = getConfig().getDeliveryThreads();
+		
+		if (threads == 0 || deliveryHandlerFactory.getDeliveryExecutor() != null)
+			return;
+		
+		// When the queue is full, deliveries are rejected and fail rather 
+		// than run on the session thread, out of reach of the timeout
+		deliveryExecutor = new ThreadPoolExecutor(threads, threads, 
+				60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 64),
+				new ThreadFactory() {
+					private final AtomicInteger sequence = new AtomicInteger();
+					
+					public Thread newThread(Runnable r) 
+					{
+						return new Thread(r, "MailsterSMTP Delivery Thread "
+								+ sequence.incrementAndGet());
+					}
+				}, new ThreadPoolExecutor.AbortPolicy());
+		deliveryExecutor.allowCoreThreadTimeOut(true);
+		
+		deliveryHandlerFactory.setDeliveryExecutor(deliveryExecutor);
+	}
+	
+	/**
+	 * Creates the filter scheduling the TLS handshakes, with its executor 
+	 * if they are run apart.
+	 */
+	private void initHandshakeFilter()
+	{
+		int threads = getConfig().getHandshakeThreads();
+		
+		if (threads > 0)
+		{
+			handshakeExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private final AtomicInteger sequence = new AtomicInteger();
+				
+				public Thread newThread(Runnable r) 
+				{
+					return new Thread(r, "MailsterSMTP Handshake Thread "
+							+ sequence.incrementAndGet());
+				}
+			});
+		}
+		
+		handshakeFilter = new TLSHandshakeFilter(handshakeExecutor, 
+				getConfig().getMaxConcurrentHandshakes());
+	}
+	
+	/**
+	 * Creates the cache of the recipient verdicts unless one has already 
+	 * been provided to the {@link DeliveryHandlerFactory}.
+	 */
+	private void initRecipientVerdictCache()
+	{
+		int size = getConfig().getRecipientCacheSize();
+		
+		if (size == 0 || deliveryHandlerFactory.getRecipientVerdictCache() != null)
+			return;
+		
+		deliveryHandlerFactory.setRecipientVerdictCache(new RecipientVerdictCache(size, 
+				getConfig().getRecipientCacheTTL(), getConfig().getRecipientCacheNegativeTTL(), 
+				getConfig().isRecipientCachePerSender()));
+	}
+	
 	/**
 	 * Stops the server by unbinding server socket. To really clean
 	 * things out, one must call {@link #shutdown()}.
@@ -212,10 +485,7 @@ public class SMTPServer
 	{
 		try
 		{
-			try { 
-				acceptor.unbind(); 
-			} catch (Exception e) { e.printStackTrace(); }
-			
+			unbind();
 			LOG.info("SMTP server stopped.");
 		}
 		finally
@@ -241,9 +511,31 @@ public class SMTPServer
 			if (isRunning())
 				stop();			
 			
-			try { 
-				executor.shutdown(); 
-			} catch (Exception e) { e.printStackTrace(); }
+			for (Listener l : listeners.values())
+			{
+				for (SocketAcceptor acceptor : l.acceptors)
+				{
+					try { 
+						acceptor.dispose(); 
+					} catch (Exception e) { e.printStackTrace(); }
+				}
+				
+				for (ExecutorService executor : l.executors)
+				{
+					try { 
+						executor.shutdown(); 
+					} catch (Exception e) { e.printStackTrace(); }
+				}
+			}
+			
+			if (deliveryExecutor != null)
+			{
+				deliveryHandlerFactory.setDeliveryExecutor(null);
+				deliveryExecutor.shutdown();
+			}
+			
+			if (handshakeExecutor != null)
+				handshakeExecutor.shutdown();
 			
 			shutdowned = true;
 			LOG.info("SMTP server shutdown complete.");
@@ -267,7 +559,7 @@ public class SMTPServer
 	 */
 	public InetAddress getBindAddress()
 	{
-		return this.bindAddress;
+		return endpoints.get(0).getBindAddress();
 	}
 
 	/**
@@ -275,7 +567,7 @@ public class SMTPServer
 	 */
 	public void setBindAddress(InetAddress bindAddress)
 	{
-		this.bindAddress = bindAddress;
+		endpoints.get(0).setBindAddress(bindAddress);
 	}
 
 	/**
@@ -283,7 +575,7 @@ public class SMTPServer
 	 */
 	public int getPort()
 	{
-		return this.port;
+		return endpoints.get(0).getPort();
 	}
 
 	/**
@@ -291,7 +583,44 @@ public class SMTPServer
 	 */
 	public void setPort(int port)
 	{
-		this.port = port;
+		endpoints.get(0).setPort(port);
+	}
+	
+	/**
+	 * Adds an endpoint listening on all interfaces. See 
+	 * {@link #addEndpoint(InetAddress, int)}.
+	 */
+	public SMTPEndpoint addEndpoint(int port)
+	{
+		return addEndpoint(null, port);
+	}
+	
+	/**
+	 * Adds an endpoint the server will listen on besides the one set with
+	 * {@link #setBindAddress(InetAddress)} and {@link #setPort(int)}. Its 
+	 * configuration starts as a copy of the server configuration which may
+	 * then be changed independently.
+	 * 
+	 * NOTE: the endpoints are bound when the server starts.
+	 * 
+	 * @param bindAddress the bind address, null means all interfaces
+	 * @param port the port
+	 * @return the new endpoint
+	 */
+	public synchronized SMTPEndpoint addEndpoint(InetAddress bindAddress, int port)
+	{
+		SMTPEndpoint endpoint = new SMTPEndpoint(bindAddress, port, getConfig().copy());
+		endpoints.add(endpoint);
+		return endpoint;
+	}
+	
+	/**
+	 * Returns the endpoints the server listens on, the first one being
+	 * configured by the server setters.
+	 */
+	public synchronized List<SMTPEndpoint> getEndpoints()
+	{
+		return Collections.unmodifiableList(new ArrayList<SMTPEndpoint>(endpoints));
 	}
 
 	public void setAuthenticationHandlerFactory(AuthenticationHandlerFactory factory)
@@ -318,6 +647,16 @@ public class SMTPServer
 		return this.commandHandler;
 	}
 	
+	/**
+	 * Returns the filter scheduling the TLS handshakes, which also measures
+	 * them. Only the endpoints with an SSL context use it. Null until the 
+	 * server starts for the first time.
+	 */
+	public TLSHandshakeFilter getTLSHandshakeFilter()
+	{
+		return handshakeFilter;
+	}
+	
 	/**
 	 * Returns the server configuration.
 	 */
@@ -1,17 +1,22 @@
 package org.mailster.smtp;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
+import javax.net.ssl.SSLContext;
+
+import org.apache.mina.core.buffer.IoBufferAllocator;
+
 /**
  * This class holds the configuration options of the
  * {@link SMTPServer}.
  * 
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
  */
-public class SMTPServerConfig 
+public class SMTPServerConfig implements Cloneable
 {
 	/**
 	 * Server name.
@@ -60,6 +65,30 @@ public class SMTPServerConfig
 	 * Defaults to true.
 	 */	
 	private boolean tLSSupported = true;
+	
+	/**
+	 * The context of the TLS sessions. Defaults to null meaning STARTTLS
+	 * uses the filter set with <code>StartTLSCommand.setSSLFilter()</code>.
+	 */
+	private SSLContext sslContext;
+	
+	/**
+	 * Tells the server to start TLS as soon as a client connects.
+	 * Defaults to false.
+	 */
+	private boolean implicitTLS = false;
+	
+	/**
+	 * The number of TLS sessions kept for resumption. Defaults to -1 
+	 * meaning the setting of the SSL context is left unchanged.
+	 */
+	private int tlsSessionCacheSize = -1;
+	
+	/**
+	 * The time a TLS session can be resumed in seconds. Defaults to -1 
+	 * meaning the setting of the SSL context is left unchanged.
+	 */
+	private int tlsSessionTimeout = -1;
 
 	/**
 	 * The connection backlog. Defaults to 5000.
@@ -67,9 +96,21 @@ public class SMTPServerConfig
 	private int backlog = 5000;
 
 	/**
-	 * The socket receive buffer size. Defaults to 128.
+	 * The socket receive buffer size while commands are received. 
+	 * Defaults to 8192.
+	 */
+	private int receiveBufferSize = 8192;
+	
+	/**
+	 * The size the socket receive buffer may grow to while message data
+	 * is received. Defaults to 262144.
+	 */
+	private int maxReceiveBufferSize = 262144;
+	
+	/**
+	 * The socket send buffer size. Defaults to 8192.
 	 */
-	private int receiveBufferSize = 128;
+	private int sendBufferSize = 8192;
 	
 	/**
 	 * Data limit size before writing it to the disk.
@@ -77,6 +118,119 @@ public class SMTPServerConfig
 	 */
 	private int dataDeferredSize = DEFAULT_DATA_DEFERRED_SIZE;
 
+	/**
+	 * The directory where messages exceeding the data deferred size are
+	 * spooled. Defaults to null, meaning the default temporary-file directory.
+	 */
+	private File spoolDirectory;
+	
+	/**
+	 * Whether spool files are forced to the storage device before being
+	 * delivered. Defaults to false.
+	 */
+	private boolean syncSpoolFiles = false;
+	
+	/**
+	 * Whether message data is dot-unstuffed and stripped of the SMTP 
+	 * terminator while it is received. Defaults to false.
+	 */
+	private boolean unstuffOnReceive = false;
+	
+	/**
+	 * The maximum size of a message in bytes (RFC 1870). 
+	 * Defaults to 0 meaning no limit.
+	 */
+	private long maxMessageSize = 0;
+	
+	/**
+	 * Tells the server if it announces the SMTPUTF8 extension (RFC 6531): 
+	 * command lines are then decoded as UTF-8. Defaults to false.
+	 */
+	private boolean smtpUTF8Supported = false;
+	
+	/**
+	 * The maximum number of recipient verdicts cached for all sessions.
+	 * Defaults to 0 meaning verdicts are not cached.
+	 */
+	private int recipientCacheSize = 0;
+	
+	/**
+	 * The time an accepted recipient stays cached in milliseconds. 
+	 * Defaults to five minutes: 1000 * 60 * 5.
+	 */
+	private long recipientCacheTTL = 1000 * 60 * 5;
+	
+	/**
+	 * The time a rejected recipient stays cached in milliseconds. 
+	 * Defaults to one minute: 1000 * 60.
+	 */
+	private long recipientCacheNegativeTTL = 1000 * 60;
+	
+	/**
+	 * Tells if the cached verdicts depend on the sender. Defaults to false.
+	 */
+	private boolean recipientCachePerSender = false;
+	
+	/**
+	 * The allocator of the network buffers. Defaults to null meaning 
+	 * the MINA default allocator is kept.
+	 */
+	private IoBufferAllocator bufferAllocator;
+	
+	/**
+	 * Whether network buffers are allocated out of the heap. 
+	 * Defaults to false.
+	 */
+	private boolean directBuffers = false;
+	
+	/**
+	 * The number of threads delivering messages to the listeners concurrently.
+	 * Defaults to 0 meaning deliveries are made one after another.
+	 */
+	private int deliveryThreads = 0;
+	
+	/**
+	 * The time allowed to each parallel delivery in milliseconds. 
+	 * Defaults to one minute: 1000 * 60.
+	 */
+	private int deliveryTimeout = 1000 * 60;
+	
+	/**
+	 * The number of threads running the TLS handshakes. Defaults to 0 
+	 * meaning handshakes run on the threads receiving the messages.
+	 */
+	private int handshakeThreads = 0;
+	
+	/**
+	 * The maximum number of TLS handshakes in progress. Defaults to 0
+	 * meaning no limit.
+	 */
+	private int maxConcurrentHandshakes = 0;
+	
+	/**
+	 * The strategy used to create the executor running the sessions events.
+	 * Defaults to {@link ExecutorStrategy#CACHED}.
+	 */
+	private ExecutorStrategy executorStrategy = ExecutorStrategy.CACHED;
+	
+	/**
+	 * The maximum number of worker threads of the bounded executors. 
+	 * Defaults to 64.
+	 */
+	private int maxWorkerThreads = 64;
+	
+	/**
+	 * The work queue size of the {@link ExecutorStrategy#BOUNDED} executor.
+	 * Defaults to 1024.
+	 */
+	private int workQueueSize = 1024;
+	
+	/**
+	 * The number of acceptors sharing each listening address through the
+	 * SO_REUSEPORT socket option. Defaults to 1.
+	 */
+	private int acceptorShards = 1;
+
 	/** 
 	 * Set a hard limit on the maximum number of connections this server will accept 
 	 * once we reach this limit, the server will gracefully reject new connections.
@@ -103,7 +257,22 @@ public class SMTPServerConfig
 	}
 
 	/**
-	 * Returns the receive buffer size.
+	 * Returns a copy of this configuration.
+	 */
+	SMTPServerConfig copy()
+	{
+		try
+		{
+			return (SMTPServerConfig) clone();
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new InternalError(e.toString());
+		}
+	}
+
+	/**
+	 * Returns the receive buffer size used while commands are received.
 	 * 
 	 * NOTE: read at each smtp session startup.
 	 */
@@ -113,13 +282,64 @@ public class SMTPServerConfig
 	}
 	
 	/**
-	 * Sets the receive buffer size.
+	 * Sets the receive buffer size used while commands are received. 
+	 * A value of 0 keeps the system default and disables the growth of
+	 * the buffer.
 	 */
 	public void setReceiveBufferSize(int receiveBufferSize)
 	{
+		if (receiveBufferSize < 0)
+			throw new IllegalArgumentException("Receive buffer size can't be negative");
+		
 		this.receiveBufferSize=receiveBufferSize;
 	}
 	
+	/**
+	 * Returns the size the receive buffer may grow to while message data
+	 * is received.
+	 * 
+	 * NOTE: read at each smtp session startup.
+	 */
+	public int getMaxReceiveBufferSize()
+	{
+		return this.maxReceiveBufferSize;
+	}
+	
+	/**
+	 * Sets the size the receive buffer may grow to while message data
+	 * is received. The buffer doubles each time a read fills it and is 
+	 * shrunk back once the message is received. A value lower than the 
+	 * receive buffer size disables the growth.
+	 */
+	public void setMaxReceiveBufferSize(int maxReceiveBufferSize)
+	{
+		if (maxReceiveBufferSize < 0)
+			throw new IllegalArgumentException("Max receive buffer size can't be negative");
+		
+		this.maxReceiveBufferSize=maxReceiveBufferSize;
+	}
+	
+	/**
+	 * Returns the send buffer size.
+	 * 
+	 * NOTE: read at each smtp session startup.
+	 */
+	public int getSendBufferSize()
+	{
+		return this.sendBufferSize;
+	}
+	
+	/**
+	 * Sets the send buffer size. A value of 0 keeps the system default.
+	 */
+	public void setSendBufferSize(int sendBufferSize)
+	{
+		if (sendBufferSize < 0)
+			throw new IllegalArgumentException("Send buffer size can't be negative");
+		
+		this.sendBufferSize=sendBufferSize;
+	}
+	
 	/**
 	 * Get the maximum size in bytes of a single message before it is 
 	 * dumped to a temporary file.
@@ -147,6 +367,421 @@ public class SMTPServerConfig
 					"Argument dataDeferredSize must be a positive power of two");
 	}
 	
+	/**
+	 * Returns the directory where large messages are spooled. A null value
+	 * means the default temporary-file directory is used.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public File getSpoolDirectory() 
+	{
+		return spoolDirectory;
+	}
+
+	/**
+	 * Sets the directory where large messages are spooled.
+	 */
+	public void setSpoolDirectory(File spoolDirectory) 
+	{
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	/**
+	 * Returns true if spool files are forced to the storage device before 
+	 * being delivered.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public boolean isSyncSpoolFiles() 
+	{
+		return syncSpoolFiles;
+	}
+
+	/**
+	 * Sets whether spool files are forced to the storage device before 
+	 * being delivered. This trades throughput for durability.
+	 */
+	public void setSyncSpoolFiles(boolean syncSpoolFiles) 
+	{
+		this.syncSpoolFiles = syncSpoolFiles;
+	}
+	
+	/**
+	 * Returns true if message data is dot-unstuffed and stripped of the
+	 * SMTP terminator while it is received instead of once per listener.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public boolean isUnstuffOnReceive() 
+	{
+		return unstuffOnReceive;
+	}
+
+	/**
+	 * Sets whether message data is dot-unstuffed while it is received. 
+	 * Listeners are then given the canonical message bytes so that
+	 * private streams need no further processing. 
+	 * 
+	 * @see org.mailster.smtp.util.SharedStreamUtils#isCanonical(java.io.InputStream)
+	 */
+	public void setUnstuffOnReceive(boolean unstuffOnReceive) 
+	{
+		this.unstuffOnReceive = unstuffOnReceive;
+	}
+	
+	/**
+	 * Returns the maximum size of a message in bytes, 0 if there's no limit.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public long getMaxMessageSize() 
+	{
+		return maxMessageSize;
+	}
+
+	/**
+	 * Sets the maximum size of a message in bytes. It is advertised with the
+	 * SIZE extension so that clients don't send bigger messages, and the data
+	 * of a message exceeding it is discarded as soon as the limit is crossed.
+	 * Set to 0 for no limit.
+	 */
+	public void setMaxMessageSize(long maxMessageSize) 
+	{
+		if (maxMessageSize < 0)
+			throw new IllegalArgumentException("Argument maxMessageSize can't be negative");
+		
+		this.maxMessageSize = maxMessageSize;
+	}
+	
+	/**
+	 * Returns true if the SMTPUTF8 extension is announced.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public boolean isSmtpUTF8Supported() 
+	{
+		return smtpUTF8Supported;
+	}
+
+	/**
+	 * Sets whether the SMTPUTF8 extension is announced. When enabled, the 
+	 * command lines holding non ASCII characters are decoded as UTF-8 
+	 * whatever the charset in use, and so are encoded the replies.
+	 */
+	public void setSmtpUTF8Supported(boolean smtpUTF8Supported) 
+	{
+		this.smtpUTF8Supported = smtpUTF8Supported;
+	}
+	
+	/**
+	 * Returns the maximum number of recipient verdicts cached, 0 if they 
+	 * are not cached.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public int getRecipientCacheSize() 
+	{
+		return recipientCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of verdicts of the listeners on the recipients
+	 * cached for all sessions. The oldest verdicts are evicted when the cache
+	 * is full. Only enable it if the listeners verdicts don't depend on the 
+	 * session. Set to 0 to disable the cache.
+	 */
+	public void setRecipientCacheSize(int recipientCacheSize) 
+	{
+		if (recipientCacheSize < 0)
+			throw new IllegalArgumentException("Argument recipientCacheSize can't be negative");
+		
+		this.recipientCacheSize = recipientCacheSize;
+	}
+
+	/**
+	 * Returns the time an accepted recipient stays cached in milliseconds.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public long getRecipientCacheTTL() 
+	{
+		return recipientCacheTTL;
+	}
+
+	/**
+	 * Sets the time an accepted recipient stays cached in milliseconds. 
+	 * A value of 0 means accepted recipients are not cached.
+	 */
+	public void setRecipientCacheTTL(long recipientCacheTTL) 
+	{
+		if (recipientCacheTTL < 0)
+			throw new IllegalArgumentException("Argument recipientCacheTTL can't be negative");
+		
+		this.recipientCacheTTL = recipientCacheTTL;
+	}
+
+	/**
+	 * Returns the time a rejected recipient stays cached in milliseconds.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public long getRecipientCacheNegativeTTL() 
+	{
+		return recipientCacheNegativeTTL;
+	}
+
+	/**
+	 * Sets the time a rejected recipient stays cached in milliseconds. 
+	 * A value of 0 means rejected recipients are not cached.
+	 */
+	public void setRecipientCacheNegativeTTL(long recipientCacheNegativeTTL) 
+	{
+		if (recipientCacheNegativeTTL < 0)
+			throw new IllegalArgumentException("Argument recipientCacheNegativeTTL can't be negative");
+		
+		this.recipientCacheNegativeTTL = recipientCacheNegativeTTL;
+	}
+
+	/**
+	 * Returns true if the cached verdicts depend on the sender.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public boolean isRecipientCachePerSender() 
+	{
+		return recipientCachePerSender;
+	}
+
+	/**
+	 * Sets whether the verdicts are cached per sender and recipient instead
+	 * of per recipient only.
+	 */
+	public void setRecipientCachePerSender(boolean recipientCachePerSender) 
+	{
+		this.recipientCachePerSender = recipientCachePerSender;
+	}
+	
+	/**
+	 * Returns the allocator of the network buffers, null if the MINA 
+	 * default allocator is kept.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public IoBufferAllocator getBufferAllocator() 
+	{
+		return bufferAllocator;
+	}
+
+	/**
+	 * Sets the allocator of the network buffers, such as a 
+	 * {@link org.mailster.smtp.util.PooledBufferAllocator}. As MINA has a
+	 * single allocator, it is used by all the servers of the JVM.
+	 */
+	public void setBufferAllocator(IoBufferAllocator bufferAllocator) 
+	{
+		this.bufferAllocator = bufferAllocator;
+	}
+	
+	/**
+	 * Returns true if network buffers are allocated out of the heap.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public boolean isDirectBuffers() 
+	{
+		return directBuffers;
+	}
+
+	/**
+	 * Sets whether network buffers are allocated out of the heap, which 
+	 * saves a copy on each socket read. Best used with a pooling 
+	 * allocator as direct buffers are costly to allocate.
+	 */
+	public void setDirectBuffers(boolean directBuffers) 
+	{
+		this.directBuffers = directBuffers;
+	}
+	
+	/**
+	 * Returns the number of threads delivering messages to the listeners 
+	 * concurrently, 0 if deliveries are sequential.
+	 * 
+	 * NOTE: read when server starts.
+	 */
+	public int getDeliveryThreads() 
+	{
+		return deliveryThreads;
+	}
+
+	/**
+	 * Sets the number of threads delivering messages to the listeners 
+	 * concurrently. With parallel deliveries, a message with many recipients 
+	 * is delivered in the time taken by the slowest listener instead of the 
+	 * sum of all listeners latencies.
+	 */
+	public void setDeliveryThreads(int deliveryThreads) 
+	{
+		if (deliveryThreads < 0)
+			throw new IllegalArgumentException("Argument deliveryThreads can't be negative");
+		this.deliveryThreads = deliveryThreads;
+	}
+
+	/**
+	 * Returns the time allowed to each parallel delivery in milliseconds.
+	 * 
+	 * NOTE: read at each delivery.
+	 */
+	public int getDeliveryTimeout() 
+	{
+		return deliveryTimeout;
+	}
+
+	/**
+	 * Sets the time allowed to each parallel delivery in milliseconds. 
+	 * A value of 0 means no timeout.
+	 */
+	public void setDeliveryTimeout(int deliveryTimeout) 
+	{
+		this.deliveryTimeout = deliveryTimeout;
+	}
+	
+	/**
+	 * Returns the number of threads running the TLS handshakes, 0 if they
+	 * run on the I/O threads.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public int getHandshakeThreads() 
+	{
+		return handshakeThreads;
+	}
+
+	/**
+	 * Sets the number of threads running the TLS handshakes, so that a 
+	 * burst of handshakes doesn't stall the other sessions sharing the
+	 * I/O threads. 0 runs them on the I/O threads.
+	 */
+	public void setHandshakeThreads(int handshakeThreads) 
+	{
+		if (handshakeThreads < 0)
+			throw new IllegalArgumentException("Argument handshakeThreads can't be negative");
+		this.handshakeThreads = handshakeThreads;
+	}
+
+	/**
+	 * Returns the maximum number of TLS handshakes in progress, 0 meaning
+	 * no limit.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public int getMaxConcurrentHandshakes() 
+	{
+		return maxConcurrentHandshakes;
+	}
+
+	/**
+	 * Sets the maximum number of TLS handshakes in progress. Beyond it, 
+	 * STARTTLS is refused with a temporary failure and implicit TLS 
+	 * connections are closed. 0 means no limit.
+	 */
+	public void setMaxConcurrentHandshakes(int maxConcurrentHandshakes) 
+	{
+		if (maxConcurrentHandshakes < 0)
+			throw new IllegalArgumentException("Argument maxConcurrentHandshakes can't be negative");
+		this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+	}
+	
+	/**
+	 * Returns the strategy used to create the executor running the 
+	 * sessions events.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public ExecutorStrategy getExecutorStrategy() 
+	{
+		return executorStrategy;
+	}
+
+	/**
+	 * Sets the strategy used to create the executor running the 
+	 * sessions events.
+	 */
+	public void setExecutorStrategy(ExecutorStrategy executorStrategy) 
+	{
+		if (executorStrategy == null)
+			throw new NullPointerException("executorStrategy");
+		this.executorStrategy = executorStrategy;
+	}
+
+	/**
+	 * Returns the maximum number of worker threads used by the 
+	 * {@link ExecutorStrategy#BOUNDED} and {@link ExecutorStrategy#ORDERED}
+	 * strategies.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public int getMaxWorkerThreads() 
+	{
+		return maxWorkerThreads;
+	}
+
+	/**
+	 * Sets the maximum number of worker threads used by the bounded 
+	 * strategies.
+	 */
+	public void setMaxWorkerThreads(int maxWorkerThreads) 
+	{
+		if (maxWorkerThreads < 1)
+			throw new IllegalArgumentException("Argument maxWorkerThreads must be positive");
+		this.maxWorkerThreads = maxWorkerThreads;
+	}
+
+	/**
+	 * Returns the work queue size of the {@link ExecutorStrategy#BOUNDED} 
+	 * executor.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public int getWorkQueueSize() 
+	{
+		return workQueueSize;
+	}
+
+	/**
+	 * Sets the work queue size of the {@link ExecutorStrategy#BOUNDED} 
+	 * executor.
+	 */
+	public void setWorkQueueSize(int workQueueSize) 
+	{
+		if (workQueueSize < 1)
+			throw new IllegalArgumentException("Argument workQueueSize must be positive");
+		this.workQueueSize = workQueueSize;
+	}
+	
+	/**
+	 * Returns the number of acceptors sharing the listening address, each
+	 * one with its own I/O processors and executor.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public int getAcceptorShards() 
+	{
+		return acceptorShards;
+	}
+
+	/**
+	 * Sets the number of acceptors sharing the listening address. Beyond 1,
+	 * the SO_REUSEPORT socket option is used so that the kernel balances 
+	 * the incoming connections between the acceptors: it requires a JDK 9+
+	 * runtime and a platform supporting it, such as Linux.
+	 */
+	public void setAcceptorShards(int acceptorShards) 
+	{
+		if (acceptorShards < 1)
+			throw new IllegalArgumentException("Argument acceptorShards must be positive");
+		this.acceptorShards = acceptorShards;
+	}
+	
 	/**
 	 * Demonstration : if x is a power of 2, it can't share any bit with x-1. So 
 	 * x & (x-1) should be equal to 0. To get rid of negative values, we check
@@ -250,6 +885,101 @@ public class SMTPServerConfig
 	{
 		return tLSSupported;
 	}
+	
+	/**
+	 * Returns the context of the TLS sessions.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public SSLContext getSSLContext() 
+	{
+		return sslContext;
+	}
+
+	/**
+	 * Sets the context of the TLS sessions, see 
+	 * <code>TLSContextFactory</code> to create one from a key store. Its
+	 * server session cache is sized with the TLS session cache settings 
+	 * when the server starts.
+	 */
+	public void setSSLContext(SSLContext sslContext) 
+	{
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Returns true if the server starts TLS as soon as a client connects,
+	 * like on the SMTPS port 465, instead of waiting for a STARTTLS command.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public boolean isImplicitTLS() 
+	{
+		return implicitTLS;
+	}
+
+	/**
+	 * Tells the server to start TLS as soon as a client connects. It 
+	 * requires an {@link SSLContext} and is usually set on the 
+	 * configuration of a dedicated {@link SMTPEndpoint}.
+	 */
+	public void setImplicitTLS(boolean implicitTLS) 
+	{
+		this.implicitTLS = implicitTLS;
+	}
+
+	/**
+	 * Returns the number of TLS sessions kept for resumption. 0 means no
+	 * limit and -1 that the setting of the SSL context is left unchanged.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public int getTLSSessionCacheSize() 
+	{
+		return tlsSessionCacheSize;
+	}
+
+	/**
+	 * Sets the number of TLS sessions kept so that reconnecting clients 
+	 * skip the full handshake. 0 means no limit.
+	 * 
+	 * NOTE: the setting is applied to the server session context of the 
+	 * {@link #getSSLContext() SSL context}, so it is shared by all the 
+	 * endpoints and servers using the same context.
+	 */
+	public void setTLSSessionCacheSize(int tlsSessionCacheSize) 
+	{
+		if (tlsSessionCacheSize < 0)
+			throw new IllegalArgumentException("Argument tlsSessionCacheSize can't be negative");
+		this.tlsSessionCacheSize = tlsSessionCacheSize;
+	}
+
+	/**
+	 * Returns the time a TLS session can be resumed in seconds. 0 means 
+	 * no limit and -1 that the setting of the SSL context is left 
+	 * unchanged.
+	 * 
+	 * NOTE: read when server starts for the first time.
+	 */
+	public int getTLSSessionTimeout() 
+	{
+		return tlsSessionTimeout;
+	}
+
+	/**
+	 * Sets the time a TLS session can be resumed in seconds. 0 means no
+	 * limit.
+	 * 
+	 * NOTE: the setting is applied to the server session context of the 
+	 * {@link #getSSLContext() SSL context}, so it is shared by all the 
+	 * endpoints and servers using the same context.
+	 */
+	public void setTLSSessionTimeout(int tlsSessionTimeout) 
+	{
+		if (tlsSessionTimeout < 0)
+			throw new IllegalArgumentException("Argument tlsSessionTimeout can't be negative");
+		this.tlsSessionTimeout = tlsSessionTimeout;
+	}
 
 	/**
 	 * Returns the maximum number of connections.
@@ -0,0 +1,71 @@
+package org.mailster.smtp.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.TooMuchDataException;
+
+/**
+ * A {@link MessageListener} which delivers messages asynchronously.
+ *
+ * The server doesn't wait for the delivery to complete: the SMTP reply
+ * is sent when the returned stage completes, so the worker thread is
+ * free to serve other sessions meanwhile. This is well suited to
+ * listeners whose backend is non-blocking.
+ *
+ * The data stream is private to each delivery and may be read from
+ * any thread until the stage completes.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public interface AsyncMessageListener extends MessageListener
+{
+	/**
+	 * When message data arrives, this method will be called for every recipient
+	 * this listener accepted.
+	 *
+	 * @param ctx is the context of the message
+	 * @param from is the envelope sender in rfc822 form
+	 * @param recipient will be an accepted recipient in rfc822 form
+	 * @param data will be the smtp data stream, stripped of any extra '.' chars
+	 *
+	 * @return a stage completed when the message has been delivered. If it
+	 *         completes with a {@link TooMuchDataException}, a 552 error is
+	 *         reported to the client, any other failure gives a 451 error.
+	 */
+	public CompletionStage<Void> deliverAsync(SessionContext ctx, String from,
+						String recipient, InputStream data);
+
+	/**
+	 * Blocks until the asynchronous delivery completes.
+	 */
+	public default void deliver(SessionContext ctx, String from,
+						String recipient, InputStream data)
+		throws TooMuchDataException, IOException
+	{
+		try
+		{
+			deliverAsync(ctx, from, recipient, data).toCompletableFuture().get();
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while delivering message");
+		}
+		catch (ExecutionException ex)
+		{
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package org.mailster.smtp.api;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.mailster.smtp.api.handler.SessionContext;
+
+/**
+ * A {@link MessageListener} which validates recipients in bulk.
+ *
+ * When a client pipelines several RCPT TO commands, the recipients they
+ * hold are handed over in a single call before the commands are handled,
+ * so that a listener backed by a remote directory makes one lookup per
+ * group instead of one per recipient. Each verdict is then used to reply
+ * to its own RCPT TO command.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public interface BatchingMessageListener extends MessageListener
+{
+	/**
+	 * Called once for the recipients of consecutive pipelined RCPT TO
+	 * commands. The recipients are not yet accepted: the commands may
+	 * still be rejected for other reasons.
+	 *
+	 * @param ctx is the context of the message
+	 * @param from is the envelope sender in rfc822 form
+	 * @param recipients are rfc822-compliant email addresses
+	 *
+	 * @return for each recipient, in the same order, true if the listener
+	 *         wants delivery of the message
+	 */
+	public boolean[] accept(SessionContext ctx, String from, List<String> recipients);
+
+	/**
+	 * Called for the recipients that weren't part of a group.
+	 */
+	public default boolean accept(SessionContext ctx, String from, String recipient)
+	{
+		return accept(ctx, from, Collections.singletonList(recipient))[0];
+	}
+}
@@ -4,8 +4,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketAddress;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
 
 import org.mailster.smtp.api.MessageListener;
 import org.mailster.smtp.core.SMTPContext;
@@ -24,7 +29,9 @@ abstract public class AbstractDeliveryHandler
 {
 	private class SessionContextImpl implements SessionContext
 	{
-		private HashMap<String, Object> attrs = new HashMap<String, Object>();
+		// Listeners may be called concurrently when deliveries are parallel
+		private Map<String, Object> attrs = 
+			Collections.synchronizedMap(new HashMap<String, Object>());
 		
 		public SessionContextImpl() {
 		}
@@ -55,7 +62,9 @@ abstract public class AbstractDeliveryHandler
 	}
 	
 	private AuthenticationHandler authHandler;
-	private Collection<MessageListener> listeners;
+	private ListenerRoutingTable routingTable;
+	private ExecutorService deliveryExecutor;
+	private RecipientVerdictCache recipientVerdictCache;
 	private DeliveryContext ctx;
 	private SessionContextImpl sessionCtx;
 	
@@ -77,16 +86,60 @@ abstract public class AbstractDeliveryHandler
 		this.sessionCtx = new SessionContextImpl();
 	}
 
+	/**
+	 * Sets listeners asked to accept all recipients.
+	 */
 	public void setListeners(Collection<MessageListener> listeners) 
 	{
-		this.listeners = listeners;
+		this.routingTable = new ListenerRoutingTable(listeners);
 	}
 
 	public Collection<MessageListener> getListeners() 
 	{
-		return listeners;
+		return routingTable.getListeners();
+	}	
+	
+	/**
+	 * Sets the table of the listeners, shared with the other sessions.
+	 */
+	public void setRoutingTable(ListenerRoutingTable routingTable) 
+	{
+		this.routingTable = routingTable;
+	}
+
+	public ListenerRoutingTable getRoutingTable() 
+	{
+		return routingTable;
 	}	
 	
+	/**
+	 * Sets the executor used to deliver messages to the listeners 
+	 * concurrently. A null value means deliveries are sequential.
+	 */
+	public void setDeliveryExecutor(ExecutorService deliveryExecutor) 
+	{
+		this.deliveryExecutor = deliveryExecutor;
+	}
+
+	public ExecutorService getDeliveryExecutor() 
+	{
+		return deliveryExecutor;
+	}
+	
+	/**
+	 * Sets the cache of the verdicts given by the listeners on the 
+	 * recipients. A null value means verdicts are not cached.
+	 */
+	public void setRecipientVerdictCache(RecipientVerdictCache recipientVerdictCache) 
+	{
+		this.recipientVerdictCache = recipientVerdictCache;
+	}
+
+	public RecipientVerdictCache getRecipientVerdictCache() 
+	{
+		return recipientVerdictCache;
+	}
+	
 	/** */
 	public boolean auth(String clientInput, StringBuilder response, SMTPContext ctx) 
 		throws LoginFailedException
@@ -134,6 +187,20 @@ abstract public class AbstractDeliveryHandler
 	 */
 	public abstract void recipient(String recipient) throws RejectException;
 	
+	/**
+	 * Called with the recipients of consecutive pipelined RCPT TO commands 
+	 * before {@link #recipient(String)} is called for each of them, so that 
+	 * they can be validated in bulk. 
+	 * 
+	 * The default implementation does nothing.
+	 *
+	 * @param recipients are rfc822-compliant email addresses, validated 
+	 *  by the server.
+	 */
+	public void prepareRecipients(List<String> recipients)
+	{
+	}
+	
 	/**
 	 * Called when the DATA part of the SMTP exchange begins.  Will
 	 * only be called if at least one recipient was accepted.
@@ -146,6 +213,24 @@ abstract public class AbstractDeliveryHandler
 	 */
 	public abstract void data(InputStream data) throws TooMuchDataException, IOException;
 	
+	/**
+	 * Called instead of {@link #data(InputStream)} by the server. The reply 
+	 * to the client is sent once the returned stage completes, so handlers 
+	 * can deliver the message without holding the calling thread. 
+	 * 
+	 * The default implementation calls {@link #data(InputStream)} and returns 
+	 * a completed stage.
+	 * 
+	 * @throws TooMuchDataException if the listener can't handle that much data.
+	 * @throws IOException if there is an IO error reading the input data.
+	 */
+	public CompletionStage<Void> dataAsync(InputStream data) 
+		throws TooMuchDataException, IOException
+	{
+		data(data);
+		return CompletableFuture.completedFuture(null);
+	}
+	
 	/**
 	 * This method is called whenever a RSET command is sent or after the end of 
 	 * the DATA command. It can be used to clean up any pending deliveries.
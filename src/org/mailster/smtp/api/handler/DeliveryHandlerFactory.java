@@ -1,8 +1,16 @@
 package org.mailster.smtp.api.handler;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
 
 import org.mailster.smtp.DefaultDeliveryHandler;
 import org.mailster.smtp.api.MessageListener;
@@ -16,76 +24,246 @@ import org.mailster.smtp.core.auth.impl.DummyAuthenticationHandler;
  * {@link AuthenticationHandler} used for all sessions until replaced
  * by another factory using the following method  
  * {@link #setAuthenticationHandlerFactory(AuthenticationHandlerFactory)}. 
+ * 
+ * Listeners are registered for all recipients or for some domains, 
+ * addresses or recipients matching a predicate. They are published to 
+ * the handlers in a {@link ListenerRoutingTable} rebuilt each time they
+ * change, so that all sessions share the same table.
+ * 
+ * Handlers are created by a {@link DeliveryHandlerSupplier}. As this is 
+ * done for every connection, it takes no lock and doesn't use reflection.
  *
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt; 
  */
 public class DeliveryHandlerFactory
 {	
-	private Collection<MessageListener> listeners;
+	private List<ListenerRoutingTable.Route> routes = 
+		new ArrayList<ListenerRoutingTable.Route>();
+	private volatile ListenerRoutingTable routingTable;
 	private AuthenticationHandlerFactory authenticationHandlerFactory;
-	private AuthenticationHandler authHandler;
-	private Class<? extends AbstractDeliveryHandler> deliveryHandlerImplClass = 
-		DefaultDeliveryHandler.class;
+	private volatile AuthenticationHandler authHandler;
+	private volatile ExecutorService deliveryExecutor;
+	private volatile RecipientVerdictCache recipientVerdictCache;
+	private volatile DeliveryHandlerSupplier deliveryHandlerSupplier = 
+		new DeliveryHandlerSupplier() {
+			public AbstractDeliveryHandler create(DeliveryContext ctx, AuthenticationHandler authHandler)
+			{
+				return new DefaultDeliveryHandler(ctx, authHandler);
+			}
+		};
 	
 	/**
 	 * Initializes this factory with the listeners.
 	 */
 	public DeliveryHandlerFactory(Collection<MessageListener> listeners)
 	{
-		this.listeners = listeners == null ? 
-			new ArrayList<MessageListener>() : listeners;
+		if (listeners != null)
+		{
+			for (MessageListener l : listeners)
+				routes.add(ListenerRoutingTable.Route.all(l));
+		}
+		this.routingTable = new ListenerRoutingTable(routes);
 	}
 	
+	/**
+	 * Adds listeners asked to accept all recipients.
+	 */
 	public synchronized void addAllListeners(Collection<MessageListener> listeners)
 	{
-		this.listeners.addAll(listeners);
+		for (MessageListener l : listeners)
+			routes.add(ListenerRoutingTable.Route.all(l));
+		publish();
 	}
 	
+	/**
+	 * Adds a listener asked to accept all recipients.
+	 */
 	public synchronized void addListener(MessageListener listener)
 	{
-		this.listeners.add(listener);
+		routes.add(ListenerRoutingTable.Route.all(listener));
+		publish();
+	}
+	
+	/**
+	 * Adds a listener only asked to accept the recipients of a domain. The 
+	 * subdomains of a domain are designated by <code>*.domain</code>.
+	 */
+	public synchronized void addDomainListener(String domain, MessageListener listener)
+	{
+		routes.add(ListenerRoutingTable.Route.domain(domain, listener));
+		publish();
+	}
+	
+	/**
+	 * Adds a listener only asked to accept the given recipient.
+	 */
+	public synchronized void addAddressListener(String address, MessageListener listener)
+	{
+		routes.add(ListenerRoutingTable.Route.address(address, listener));
+		publish();
 	}
 	
+	/**
+	 * Adds a listener only asked to accept the recipients matching the 
+	 * filter. The filter is tested for every recipient.
+	 */
+	public synchronized void addListener(Predicate<String> filter, MessageListener listener)
+	{
+		routes.add(ListenerRoutingTable.Route.filter(filter, listener));
+		publish();
+	}
+	
+	/**
+	 * Removes all the registrations of the listener.
+	 */
 	public synchronized void removeListener(MessageListener listener)
 	{
-		this.listeners.remove(listener);
+		for (Iterator<ListenerRoutingTable.Route> it = routes.iterator(); it.hasNext();)
+		{
+			if (it.next().getListener() == listener)
+				it.remove();
+		}
+		publish();
+	}
+	
+	private void publish()
+	{
+		routingTable = new ListenerRoutingTable(routes);
 	}
 	
-	private synchronized ArrayList<MessageListener> copyListeners() 
+	/**
+	 * Returns the table of the listeners currently shared by the handlers.
+	 */
+	public ListenerRoutingTable getRoutingTable() 
 	{
-	    return new ArrayList<MessageListener>(listeners);
+		return routingTable;
 	}
 	
 	public AbstractDeliveryHandler create(DeliveryContext ctx)
 	{
-		return create(ctx, deliveryHandlerImplClass);
+		AbstractDeliveryHandler handler = 
+			deliveryHandlerSupplier.create(ctx, getAuthenticationHandler());
+		handler.setRoutingTable(routingTable);
+		handler.setDeliveryExecutor(deliveryExecutor);
+		handler.setRecipientVerdictCache(recipientVerdictCache);
+		
+		return handler;
 	}
 	
 	/**
-	 * Sets the {@link AbstractDeliveryHandler} implementation to use.
+	 * Sets the {@link AbstractDeliveryHandler} implementation to use. The 
+	 * class must have a constructor taking a {@link DeliveryContext} and 
+	 * an {@link AuthenticationHandler}, which is looked up once here.
+	 * 
+	 * @throws IllegalArgumentException if the constructor can't be used
 	 */
 	public void setDeliveryHandlerImplClass(Class<? extends AbstractDeliveryHandler> c) 
 	{
-		this.deliveryHandlerImplClass = c;
+		setDeliveryHandlerSupplier(new ConstructorSupplier(c));
 	}
 	
-	private AbstractDeliveryHandler create(DeliveryContext ctx, 
-			Class<? extends AbstractDeliveryHandler> c)
+	/**
+	 * Sets the supplier creating the delivery handlers.
+	 */
+	public void setDeliveryHandlerSupplier(DeliveryHandlerSupplier supplier) 
+	{
+		if (supplier == null)
+			throw new NullPointerException("supplier");
+		
+		this.deliveryHandlerSupplier = supplier;
+	}
+	
+	/**
+	 * Returns the supplier creating the delivery handlers.
+	 */
+	public DeliveryHandlerSupplier getDeliveryHandlerSupplier() 
 	{
-		try 
+		return deliveryHandlerSupplier;
+	}
+	
+	/**
+	 * A supplier calling the constructor of a handler class through a 
+	 * method handle.
+	 */
+	private final static class ConstructorSupplier implements DeliveryHandlerSupplier
+	{
+		private final static MethodType TYPE = MethodType.methodType(
+			AbstractDeliveryHandler.class, DeliveryContext.class, AuthenticationHandler.class);
+		
+		private final String className;
+		private final MethodHandle constructor;
+		
+		private ConstructorSupplier(Class<? extends AbstractDeliveryHandler> c)
 		{
-			Constructor<? extends AbstractDeliveryHandler> cstr = 
-				c.getConstructor(DeliveryContext.class, AuthenticationHandler.class);
-			AbstractDeliveryHandler handler = cstr.newInstance(ctx, getAuthenticationHandler());
-			handler.setListeners(copyListeners());
-			
-			return handler;
-		} 
-		catch (Exception e) 
+			this.className = c.getName();
+			try 
+			{
+				Constructor<? extends AbstractDeliveryHandler> cstr = 
+					c.getDeclaredConstructor(DeliveryContext.class, AuthenticationHandler.class);
+				if (!Modifier.isPublic(cstr.getModifiers()) || !Modifier.isPublic(c.getModifiers()))
+					cstr.setAccessible(true);
+				
+				this.constructor = MethodHandles.lookup().unreflectConstructor(cstr).asType(TYPE);
+			} 
+			catch (Exception e) 
+			{
+				throw new IllegalArgumentException(
+					"No usable constructor in DeliveryHandler - "+className, e);
+			}
+		}
+		
+		public AbstractDeliveryHandler create(DeliveryContext ctx, AuthenticationHandler authHandler)
 		{
-			throw new IllegalArgumentException(
-				"Failed instantiating DeliveryHandler - "+c.getName(), e);
-		}	
+			try 
+			{
+				return (AbstractDeliveryHandler) constructor.invokeExact(ctx, authHandler);
+			}
+			catch (RuntimeException e)
+			{
+				throw e;
+			}
+			catch (Throwable t) 
+			{
+				throw new IllegalArgumentException(
+					"Failed instantiating DeliveryHandler - "+className, t);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the executor used for parallel deliveries, null if 
+	 * deliveries are sequential.
+	 */
+	public ExecutorService getDeliveryExecutor() 
+	{
+		return deliveryExecutor;
+	}
+
+	/**
+	 * Sets the executor used to deliver a message to its recipients 
+	 * concurrently. Only handlers created afterwards will use it.
+	 */
+	public void setDeliveryExecutor(ExecutorService deliveryExecutor) 
+	{
+		this.deliveryExecutor = deliveryExecutor;
+	}
+	
+	/**
+	 * Returns the cache of the verdicts given by the listeners on the 
+	 * recipients, null if verdicts are not cached.
+	 */
+	public RecipientVerdictCache getRecipientVerdictCache() 
+	{
+		return recipientVerdictCache;
+	}
+
+	/**
+	 * Sets the cache shared by the handlers to remember the verdicts of 
+	 * the listeners. Only handlers created afterwards will use it.
+	 */
+	public void setRecipientVerdictCache(RecipientVerdictCache recipientVerdictCache) 
+	{
+		this.recipientVerdictCache = recipientVerdictCache;
 	}
 	
 	/**
@@ -113,7 +291,18 @@ public class DeliveryHandlerFactory
 	 *
 	 * @return a new AuthenticationHandler
 	 */
-	public synchronized AuthenticationHandler getAuthenticationHandler()
+	public AuthenticationHandler getAuthenticationHandler()
+	{
+		AuthenticationHandler handler = this.authHandler;
+		if (handler != null)
+		{
+			return handler;
+		}
+		
+		return createAuthenticationHandler();
+	}
+	
+	private synchronized AuthenticationHandler createAuthenticationHandler()
 	{
 		if (this.authHandler != null)
 		{
@@ -0,0 +1,20 @@
+package org.mailster.smtp.api.handler;
+
+import org.mailster.smtp.core.auth.AuthenticationHandler;
+
+/**
+ * Creates the delivery handler of each new SMTP session. It is called for
+ * every connection and must therefore be cheap and thread safe.
+ * 
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public interface DeliveryHandlerSupplier
+{
+	/**
+	 * Returns a new delivery handler.
+	 * 
+	 * @param ctx the delivery context of the session
+	 * @param authHandler the authentication handler shared by the sessions
+	 */
+	public AbstractDeliveryHandler create(DeliveryContext ctx, AuthenticationHandler authHandler);
+}
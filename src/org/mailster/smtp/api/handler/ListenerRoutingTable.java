@@ -0,0 +1,316 @@
+package org.mailster.smtp.api.handler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.mailster.smtp.api.MessageListener;
+
+/**
+ * An immutable index of the listeners by the recipients they handle, so
+ * that only the listeners concerned by a recipient are asked to accept it.
+ *
+ * A listener is registered either for all recipients, for a domain, for
+ * the subdomains of a domain (<code>*.example.org</code>), for an address
+ * or for the recipients matching a predicate. Domains and addresses are
+ * looked up in hash maps, subdomains in a trie of the domain labels read
+ * from right to left. Listeners are always returned in their registration
+ * order.
+ *
+ * The table is shared by all sessions: the {@link DeliveryHandlerFactory}
+ * builds a new one each time the listeners change.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public final class ListenerRoutingTable
+{
+	/**
+	 * A route from some recipients to a listener.
+	 */
+	static final class Route
+	{
+		private final MessageListener listener;
+		private final String domain;
+		private final boolean subdomains;
+		private final String address;
+		private final Predicate<String> filter;
+		
+		/** The registration order of the route in its table. */
+		private final int order;
+
+		private Route(MessageListener listener, String domain, boolean subdomains,
+				String address, Predicate<String> filter)
+		{
+			if (listener == null)
+				throw new NullPointerException("listener");
+
+			this.listener = listener;
+			this.domain = domain;
+			this.subdomains = subdomains;
+			this.address = address;
+			this.filter = filter;
+			this.order = -1;
+		}
+
+		private Route(Route r, int order)
+		{
+			this.listener = r.listener;
+			this.domain = r.domain;
+			this.subdomains = r.subdomains;
+			this.address = r.address;
+			this.filter = r.filter;
+			this.order = order;
+		}
+
+		MessageListener getListener()
+		{
+			return listener;
+		}
+
+		static Route all(MessageListener listener)
+		{
+			return new Route(listener, null, false, null, null);
+		}
+
+		/**
+		 * A route for a domain or for its subdomains if the domain is
+		 * written <code>*.domain</code>.
+		 */
+		static Route domain(String domain, MessageListener listener)
+		{
+			if (domain.startsWith("*."))
+				return new Route(listener, normalize(domain.substring(2)), true, null, null);
+
+			return new Route(listener, normalize(domain), false, null, null);
+		}
+
+		static Route address(String address, MessageListener listener)
+		{
+			return new Route(listener, null, false, normalizeAddress(address), null);
+		}
+
+		static Route filter(Predicate<String> filter, MessageListener listener)
+		{
+			if (filter == null)
+				throw new NullPointerException("filter");
+
+			return new Route(listener, null, false, null, filter);
+		}
+	}
+
+	/**
+	 * A node of the subdomains trie.
+	 */
+	private static final class Node
+	{
+		private Map<String, Node> children = new HashMap<String, Node>(4);
+		private List<Route> routes;
+	}
+
+	/** The distinct listeners in registration order. */
+	private final List<MessageListener> listeners;
+
+	/** The routes checked for every recipient. */
+	private final List<Route> unindexed = new ArrayList<Route>();
+
+	private final Map<String, List<Route>> addresses = new HashMap<String, List<Route>>();
+	private final Map<String, List<Route>> domains = new HashMap<String, List<Route>>();
+	private final Node subdomains = new Node();
+
+	/** True if all the routes are for all recipients. */
+	private final boolean routeAll;
+
+	/**
+	 * Creates a table routing all recipients to the listeners.
+	 */
+	public ListenerRoutingTable(Collection<MessageListener> listeners)
+	{
+		this(toRoutes(listeners));
+	}
+
+	ListenerRoutingTable(List<Route> routes)
+	{
+		List<MessageListener> list = new ArrayList<MessageListener>();
+		boolean all = true;
+
+		for (int i = 0; i < routes.size(); i++)
+		{
+			Route r = new Route(routes.get(i), i);
+
+			if (!list.contains(r.listener))
+				list.add(r.listener);
+
+			if (r.address != null)
+				add(addresses, r.address, r);
+			else if (r.domain != null && !r.subdomains)
+				add(domains, r.domain, r);
+			else if (r.domain != null)
+				addSubdomains(r);
+			else
+				unindexed.add(r);
+
+			all &= r.address == null && r.domain == null && r.filter == null;
+		}
+
+		this.listeners = Collections.unmodifiableList(list);
+		this.routeAll = all;
+	}
+
+	private static List<Route> toRoutes(Collection<MessageListener> listeners)
+	{
+		List<Route> routes = new ArrayList<Route>();
+		if (listeners != null)
+		{
+			for (MessageListener l : listeners)
+				routes.add(Route.all(l));
+		}
+		return routes;
+	}
+
+	private static void add(Map<String, List<Route>> map, String key, Route r)
+	{
+		List<Route> list = map.get(key);
+		if (list == null)
+		{
+			list = new ArrayList<Route>(1);
+			map.put(key, list);
+		}
+		list.add(r);
+	}
+
+	private void addSubdomains(Route r)
+	{
+		Node node = subdomains;
+		String domain = r.domain;
+
+		for (int end = domain.length(); end > 0;)
+		{
+			int dot = domain.lastIndexOf('.', end - 1);
+			String label = domain.substring(dot + 1, end);
+
+			Node child = node.children.get(label);
+			if (child == null)
+			{
+				child = new Node();
+				node.children.put(label, child);
+			}
+			node = child;
+			end = dot;
+		}
+
+		if (node.routes == null)
+			node.routes = new ArrayList<Route>(1);
+		node.routes.add(r);
+	}
+
+	private static String normalize(String domain)
+	{
+		return domain.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Domains are case insensitive but local parts may not be.
+	 */
+	private static String normalizeAddress(String address)
+	{
+		int at = address.lastIndexOf('@');
+		if (at < 0)
+			return address;
+
+		return address.substring(0, at + 1) + normalize(address.substring(at + 1));
+	}
+
+	/**
+	 * Returns all the listeners in registration order.
+	 */
+	public List<MessageListener> getListeners()
+	{
+		return listeners;
+	}
+
+	/**
+	 * Returns the listeners concerned by the recipient in registration order.
+	 */
+	public List<MessageListener> route(String recipient)
+	{
+		if (routeAll)
+			return listeners;
+
+		List<Route> matches = new ArrayList<Route>();
+		boolean sorted = true;
+
+		int at = recipient.lastIndexOf('@');
+		if (at >= 0)
+		{
+			String domain = normalize(recipient.substring(at + 1));
+			sorted &= addMatches(matches, addresses.get(recipient.substring(0, at + 1) + domain));
+			sorted &= addMatches(matches, domains.get(domain));
+
+			// Walks down the trie from the top level domain
+			Node node = subdomains;
+			for (int end = domain.length(); end > 0 && node != null;)
+			{
+				int dot = domain.lastIndexOf('.', end - 1);
+				node = node.children.get(domain.substring(dot + 1, end));
+
+				// *.example.org doesn't match example.org itself
+				if (node != null && dot >= 0 && node.routes != null)
+					sorted &= addMatches(matches, node.routes);
+				end = dot;
+			}
+		}
+
+		for (Route r : unindexed)
+		{
+			if (r.filter == null || r.filter.test(recipient))
+				sorted &= addMatch(matches, r);
+		}
+
+		if (!sorted)
+		{
+			Collections.sort(matches, new Comparator<Route>() {
+				public int compare(Route r1, Route r2)
+				{
+					return r1.order - r2.order;
+				}
+			});
+		}
+
+		List<MessageListener> result = new ArrayList<MessageListener>(matches.size());
+		for (Route r : matches)
+		{
+			if (!result.contains(r.listener))
+				result.add(r.listener);
+		}
+		return result;
+	}
+
+	/**
+	 * Adds a route to the matches.
+	 *
+	 * @return false if the matches are no longer in registration order
+	 */
+	private static boolean addMatch(List<Route> matches, Route r)
+	{
+		boolean sorted = matches.isEmpty() || matches.get(matches.size() - 1).order < r.order;
+		matches.add(r);
+		return sorted;
+	}
+
+	private static boolean addMatches(List<Route> matches, List<Route> routes)
+	{
+		boolean sorted = true;
+		if (routes != null)
+		{
+			for (Route r : routes)
+				sorted &= addMatch(matches, r);
+		}
+		return sorted;
+	}
+}
@@ -0,0 +1,229 @@
+package org.mailster.smtp.api.handler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mailster.smtp.api.MessageListener;
+
+/**
+ * A server wide cache of the verdicts given by the listeners on the
+ * recipients, so that the addresses hit repeatedly by mailing list bursts
+ * or dictionary attacks are not checked again each time.
+ *
+ * Verdicts are cached per listener and recipient, and optionally per
+ * sender. Accepted and rejected recipients have their own time to live.
+ * Once the cache is full, the oldest verdicts are evicted first.
+ *
+ * The cache must only be used with listeners whose verdict doesn't depend
+ * on the session, such as the authenticated user.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class RecipientVerdictCache
+{
+	/**
+	 * The cache key.
+	 */
+	private final static class Key
+	{
+		private final MessageListener listener;
+		private final String from;
+		private final String recipient;
+		private final int hash;
+
+		private Key(MessageListener listener, String from, String recipient)
+		{
+			this.listener = listener;
+			this.from = from;
+			this.recipient = recipient;
+
+			int h = System.identityHashCode(listener);
+			h = 31 * h + (from == null ? 0 : from.hashCode());
+			this.hash = 31 * h + recipient.hashCode();
+		}
+
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+				return false;
+
+			Key k = (Key) o;
+			return listener == k.listener && recipient.equals(k.recipient)
+				&& (from == null ? k.from == null : from.equals(k.from));
+		}
+	}
+
+	/**
+	 * A cached verdict.
+	 */
+	private final static class Verdict
+	{
+		private final Key key;
+		private final boolean accepted;
+		private final long expires;
+
+		private Verdict(Key key, boolean accepted, long expires)
+		{
+			this.key = key;
+			this.accepted = accepted;
+			this.expires = expires;
+		}
+	}
+
+	private final ConcurrentHashMap<Key, Verdict> verdicts;
+
+	/** The verdicts in insertion order, used to evict the oldest ones. */
+	private final ConcurrentLinkedQueue<Verdict> queue = new ConcurrentLinkedQueue<Verdict>();
+	private final AtomicInteger queueSize = new AtomicInteger();
+
+	private final int maxSize;
+	private final long ttl;
+	private final long negativeTtl;
+	private final boolean perSender;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a cache.
+	 *
+	 * @param maxSize the maximum number of verdicts
+	 * @param ttl the time to live of the accepted recipients in milliseconds
+	 * @param negativeTtl the time to live of the rejected recipients in
+	 *        milliseconds
+	 * @param perSender true if the verdicts depend on the sender
+	 */
+	public RecipientVerdictCache(int maxSize, long ttl, long negativeTtl, boolean perSender)
+	{
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("Argument maxSize must be positive");
+
+		if (ttl < 0 || negativeTtl < 0)
+			throw new IllegalArgumentException("Time to live can't be negative");
+
+		this.maxSize = maxSize;
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+		this.perSender = perSender;
+		this.verdicts = new ConcurrentHashMap<Key, Verdict>(Math.min(maxSize, 1024));
+	}
+
+	private Key key(MessageListener listener, String from, String recipient)
+	{
+		return new Key(listener, perSender ? from : null, recipient);
+	}
+
+	/**
+	 * Returns the cached verdict of the listener on the recipient or null
+	 * if there's none.
+	 */
+	public Boolean get(MessageListener listener, String from, String recipient)
+	{
+		Key key = key(listener, from, recipient);
+		Verdict v = verdicts.get(key);
+
+		if (v != null && v.expires - System.nanoTime() <= 0)
+		{
+			verdicts.remove(key, v);
+			v = null;
+		}
+
+		if (v == null)
+		{
+			misses.increment();
+			return null;
+		}
+
+		hits.increment();
+		return v.accepted;
+	}
+
+	/**
+	 * Caches the verdict of the listener on the recipient.
+	 */
+	public void put(MessageListener listener, String from, String recipient, boolean accepted)
+	{
+		long t = accepted ? ttl : negativeTtl;
+		if (t == 0)
+			return;
+
+		Key key = key(listener, from, recipient);
+		Verdict v = new Verdict(key, accepted, System.nanoTime() + t);
+		verdicts.put(key, v);
+		queue.add(v);
+
+		if (queueSize.incrementAndGet() > maxSize)
+			evict();
+	}
+
+	/**
+	 * Evicts the oldest verdicts until the cache fits its maximum size.
+	 */
+	private void evict()
+	{
+		while (queueSize.get() > maxSize)
+		{
+			Verdict v = queue.poll();
+			if (v == null)
+				return;
+
+			queueSize.decrementAndGet();
+
+			// Replaced verdicts are already gone
+			if (verdicts.remove(v.key, v))
+				evictions.increment();
+		}
+	}
+
+	/**
+	 * Removes all the verdicts.
+	 */
+	public void clear()
+	{
+		verdicts.clear();
+		queue.clear();
+		queueSize.set(0);
+	}
+
+	/**
+	 * Returns the number of verdicts cached, including the expired ones
+	 * not yet removed.
+	 */
+	public int size()
+	{
+		return verdicts.size();
+	}
+
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of verdicts evicted because the cache was full.
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	public String toString()
+	{
+		return "RecipientVerdictCache[size=" + size() + ", hits=" + getHits()
+			+ ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+}
@@ -0,0 +1,40 @@
+package org.mailster.smtp.core;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+
+/**
+ * A filter handing the buffers of the replies back to their allocator once
+ * they have been written.
+ *
+ * MINA writes a duplicate of the buffers written by the handler and only
+ * frees that duplicate. It frees the buffers encoded from the string 
+ * replies, but not the one reaching its write quota, and the codec filter 
+ * doesn't pass their events on. Placed below the codec filter, this filter 
+ * sees both. Shared replies are derived buffers, which are left untouched, 
+ * and freeing a buffer twice does nothing.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class BufferReleaseFilter extends IoFilterAdapter
+{
+	/** The name of this filter in the chains. */
+	public static final String NAME = "bufferRelease";
+
+	public void messageSent(NextFilter nextFilter, IoSession session,
+			WriteRequest writeRequest) throws Exception
+	{
+		nextFilter.messageSent(session, writeRequest);
+
+		free(writeRequest.getOriginalMessage());
+		free(writeRequest.getMessage());
+	}
+
+	private static void free(Object message)
+	{
+		if (message instanceof IoBuffer)
+			((IoBuffer) message).free();
+	}
+}
@@ -0,0 +1,116 @@
+package org.mailster.smtp.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * Searches an {@link IoBuffer} window for a delimiter in a single forward pass.
+ *
+ * Bytes that can't start a delimiter are skipped eight at a time by testing
+ * whole words for the delimiter's first byte (SWAR). Once a candidate is found,
+ * a precomputed KMP failure table drives the match so the buffer position never
+ * has to be rewound on a partial match. The number of delimiter bytes matched
+ * at the end of a window is returned to the caller so that the search can
+ * resume on the next network packet.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public final class DelimiterScanner
+{
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+	private final byte[] delimiter;
+
+	/**
+	 * fallback[i] is the length of the longest proper prefix of the
+	 * delimiter that is also a suffix of delimiter[0..i].
+	 */
+	private final int[] fallback;
+
+	/** The first delimiter byte replicated in each byte of a long. */
+	private final long pattern;
+
+	public DelimiterScanner(byte[] delimiter)
+	{
+		if (delimiter == null || delimiter.length == 0)
+			throw new IllegalArgumentException("delimiter can't be null or empty");
+
+		this.delimiter = delimiter.clone();
+		this.fallback = new int[delimiter.length];
+		this.pattern = (delimiter[0] & 0xFFL) * ONES;
+
+		for (int i = 1, k = 0; i < delimiter.length; i++)
+		{
+			while (k > 0 && delimiter[i] != delimiter[k])
+				k = fallback[k - 1];
+			if (delimiter[i] == delimiter[k])
+				k++;
+			fallback[i] = k;
+		}
+	}
+
+	/**
+	 * Returns the delimiter length.
+	 */
+	public int length()
+	{
+		return delimiter.length;
+	}
+
+	/**
+	 * Scans the bytes of <code>in</code> between <code>from</code> (inclusive)
+	 * and <code>to</code> (exclusive) without modifying its position or limit.
+	 *
+	 * @param matchCount the number of delimiter bytes already matched at the
+	 *        end of the previous window
+	 * @return the index following the last delimiter byte if the delimiter
+	 *         was found, else <code>-1 - matchCount</code> where matchCount
+	 *         is the number of delimiter bytes matched at the end of the window.
+	 */
+	public int scan(IoBuffer in, int from, int to, int matchCount)
+	{
+		ByteBuffer bb = in.buf();
+		boolean bigEndian = bb.order() == ByteOrder.BIG_ENDIAN;
+		byte[] delim = delimiter;
+		int n = delim.length;
+		int m = matchCount;
+		int i = from;
+
+		while (i < to)
+		{
+			if (m == 0)
+			{
+				// Skip whole words until one contains the delimiter first byte
+				while (i + 8 <= to)
+				{
+					long x = bb.getLong(i) ^ pattern;
+					long t = ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+					if (t != 0)
+					{
+						i += (bigEndian ? Long.numberOfLeadingZeros(t)
+								: Long.numberOfTrailingZeros(t)) >>> 3;
+						break;
+					}
+					i += 8;
+				}
+
+				while (i < to && bb.get(i) != delim[0])
+					i++;
+
+				if (i == to)
+					break;
+			}
+
+			byte b = bb.get(i++);
+			while (m > 0 && b != delim[m])
+				m = fallback[m - 1];
+			if (b == delim[m] && ++m == n)
+				return i;
+		}
+
+		return -1 - m;
+	}
+}
@@ -0,0 +1,202 @@
+package org.mailster.smtp.core;
+
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.session.IoSessionConfig;
+import org.apache.mina.transport.socket.SocketSessionConfig;
+import org.mailster.smtp.SMTPServerConfig;
+
+/**
+ * Sizes the buffers of a session and counts its reads.
+ * 
+ * Commands are small, so a session receiving them keeps small buffers. 
+ * While it receives message data, the socket receive buffer is doubled 
+ * each time a read fills it, up to the configured maximum, and MINA is 
+ * allowed to grow its read buffer the same way. Both shrink back once the 
+ * message is received.
+ * 
+ * All methods must be called by the I/O thread of the session.
+ * 
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class ReadBufferSizer
+{
+	/** The largest read buffer used while receiving commands. */
+	public final static int COMMAND_READ_BUFFER_SIZE = 4096;
+	
+	/** The largest read buffer used while receiving message data. */
+	public final static int DATA_READ_BUFFER_SIZE = 65536;
+	
+	private final int receiveBufferSize;
+	private final int sendBufferSize;
+	private final int maxReceiveBufferSize;
+	
+	private int currentReceiveBufferSize;
+	private boolean dataMode = false;
+	
+	private long reads;
+	private long bytesRead;
+	private int largestRead;
+	private long dataReads;
+	private long dataBytesRead;
+	
+	public ReadBufferSizer(SMTPServerConfig cfg)
+	{
+		this.receiveBufferSize = cfg.getReceiveBufferSize();
+		this.sendBufferSize = cfg.getSendBufferSize();
+		this.maxReceiveBufferSize = cfg.getMaxReceiveBufferSize();
+		this.currentReceiveBufferSize = receiveBufferSize;
+	}
+	
+	/**
+	 * Sets the initial sizes of the session buffers.
+	 */
+	public void init(IoSession session)
+	{
+		if (isSocket(session))
+		{
+			SocketSessionConfig cfg = (SocketSessionConfig) session.getConfig();
+			if (receiveBufferSize > 0)
+				cfg.setReceiveBufferSize(receiveBufferSize);
+			if (sendBufferSize > 0)
+				cfg.setSendBufferSize(sendBufferSize);
+		}
+		
+		setMaxReadBufferSize(session, COMMAND_READ_BUFFER_SIZE);
+	}
+	
+	private static boolean isSocket(IoSession session)
+	{
+		return session.getConfig() instanceof SocketSessionConfig;
+	}
+	
+	/**
+	 * Records a read and adapts the buffers to it.
+	 * 
+	 * @param bytes the number of bytes read
+	 * @param data true if the bytes are message data
+	 */
+	public void read(IoSession session, int bytes, boolean data)
+	{
+		reads++;
+		bytesRead += bytes;
+		if (bytes > largestRead)
+			largestRead = bytes;
+		
+		if (data)
+		{
+			dataReads++;
+			dataBytesRead += bytes;
+		}
+		
+		if (data && dataMode && canGrow()
+				&& bytes >= Math.min(currentReceiveBufferSize, session.getConfig().getReadBufferSize()))
+		{
+			// The socket buffer was full: the client sends faster than it is read
+			setReceiveBufferSize(session, Math.min(currentReceiveBufferSize << 1, maxReceiveBufferSize));
+		}
+		
+		setDataMode(session, data);
+	}
+	
+	/**
+	 * Adapts the buffers to the kind of bytes expected next.
+	 * 
+	 * @param data true if message data is expected
+	 */
+	public void setDataMode(IoSession session, boolean data)
+	{
+		if (data == dataMode)
+			return;
+		
+		dataMode = data;
+		if (data)
+			setMaxReadBufferSize(session, DATA_READ_BUFFER_SIZE);
+		else
+		{
+			setMaxReadBufferSize(session, COMMAND_READ_BUFFER_SIZE);
+			if (currentReceiveBufferSize != receiveBufferSize)
+				setReceiveBufferSize(session, receiveBufferSize);
+		}
+	}
+	
+	private boolean canGrow()
+	{
+		return receiveBufferSize > 0 && currentReceiveBufferSize < maxReceiveBufferSize;
+	}
+	
+	private void setReceiveBufferSize(IoSession session, int size)
+	{
+		currentReceiveBufferSize = size;
+		if (isSocket(session))
+			((SocketSessionConfig) session.getConfig()).setReceiveBufferSize(size);
+	}
+	
+	private static void setMaxReadBufferSize(IoSession session, int size)
+	{
+		IoSessionConfig cfg = session.getConfig();
+		
+		if (cfg.getMinReadBufferSize() > size)
+			cfg.setMinReadBufferSize(size);
+		cfg.setMaxReadBufferSize(size);
+		if (cfg.getReadBufferSize() > size)
+			cfg.setReadBufferSize(size);
+	}
+	
+	/**
+	 * Returns true while the buffers are sized for message data.
+	 */
+	public boolean isDataMode() 
+	{
+		return dataMode;
+	}
+	
+	/**
+	 * Returns the current socket receive buffer size requested, 0 if the 
+	 * system default is used.
+	 */
+	public int getReceiveBufferSize() 
+	{
+		return currentReceiveBufferSize;
+	}
+	
+	public long getReads() 
+	{
+		return reads;
+	}
+	
+	public long getBytesRead() 
+	{
+		return bytesRead;
+	}
+	
+	public int getLargestRead() 
+	{
+		return largestRead;
+	}
+	
+	public long getDataReads() 
+	{
+		return dataReads;
+	}
+	
+	public long getDataBytesRead() 
+	{
+		return dataBytesRead;
+	}
+	
+	/**
+	 * Returns the average number of bytes per read of message data.
+	 */
+	public long getAverageDataRead() 
+	{
+		return dataReads == 0 ? 0 : dataBytesRead / dataReads;
+	}
+	
+	public String toString()
+	{
+		return "reads=" + reads + ", bytes=" + bytesRead + ", largest=" + largestRead
+			+ ", dataReads=" + dataReads + ", dataBytes=" + dataBytesRead 
+			+ ", averageDataRead=" + getAverageDataRead() 
+			+ ", receiveBuffer=" + currentReceiveBufferSize;
+	}
+}
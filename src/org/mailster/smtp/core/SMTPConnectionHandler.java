@@ -2,20 +2,28 @@ package org.mailster.smtp.core;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 import org.apache.mina.core.buffer.BufferDataException;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterChain;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.apache.mina.filter.ssl.SslFilter.SslFilterMessage;
-import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.mailster.smtp.SMTPServerConfig;
 import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
 import org.mailster.smtp.core.commands.Command;
 import org.mailster.smtp.core.commands.CommandException;
 import org.mailster.smtp.core.commands.CommandHandler;
+import org.mailster.smtp.core.commands.impl.ReceiptCommand;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,7 +39,12 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 	// Session objects
 	public static final String CONTEXT_ATTRIBUTE = SMTPConnectionHandler.class.getName() + ".ctx";
 
+	/** The name of the filter running the session events on the executor. */
+	public static final String EXECUTOR_FILTER = "threadPool";
+
 	private static final Logger LOG = LoggerFactory.getLogger(SMTPConnectionHandler.class);
+	
+	private static final byte[] CRLF = new byte[] {'\r', '\n'};
 
 	private SMTPServerConfig config;
 	
@@ -39,6 +52,26 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 	
 	private DeliveryHandlerFactory factory;
 
+	/** The filter securing the sessions, null if none is configured. */
+	private SslFilter sslFilter;
+	
+	/**
+	 * The outcome of an asynchronous delivery, handed back to the executor 
+	 * of the session as a received message.
+	 */
+	private static final class DeliveryCompleted
+	{
+		private final Throwable failure;
+		
+		private DeliveryCompleted(Throwable failure)
+		{
+			this.failure = failure;
+		}
+	}
+	
+	/** The greeting, encoded once for the host name it was built for. */
+	private volatile SMTPResponse banner;
+	
 	/**
 	 * A thread safe variable that represents the number
 	 * of active connections.
@@ -53,6 +86,23 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 		this.factory = factory;
 	}
 
+	/**
+	 * Returns the filter securing the sessions.
+	 */
+	public SslFilter getSslFilter()
+	{
+		return sslFilter;
+	}
+
+	/**
+	 * Sets the filter securing the sessions, either when they are created
+	 * or when a STARTTLS command is issued.
+	 */
+	public void setSslFilter(SslFilter sslFilter)
+	{
+		this.sslFilter = sslFilter;
+	}
+
 	/**
 	 * Are we over the maximum amount of connections ?
 	 */
@@ -79,17 +129,28 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 		return numberOfConnections.get();
 	}
 	
+	/**
+	 * Returns the greeting sent to new connections.
+	 */
+	private SMTPResponse getBanner()
+	{
+		String hostName = config.getHostName();
+		SMTPResponse b = banner;
+		
+		// Rebuilt only if the host name changed
+		if (b == null || !b.getText().startsWith(hostName + " ESMTP ", 4))
+		{
+			b = new SMTPResponse("220 " + hostName + " ESMTP " + SMTPServerConfig.NAME);
+			banner = b;
+		}
+		return b;
+	}
+	
 	/** */
 	public void sessionCreated(IoSession session)
 	{
 		updateNumberOfConnections(+1);
 
-		if (session.getTransportMetadata().getSessionConfigType() == SocketSessionConfig.class)
-		{
-			((SocketSessionConfig)session.getConfig()).setReceiveBufferSize(config.getReceiveBufferSize());
-			((SocketSessionConfig)session.getConfig()).setSendBufferSize(64);
-		}
-
 		session.getConfig().setIdleTime(IdleStatus.READER_IDLE, config.getConnectionTimeout() / 1000);
 
 		// We're going to use SSL negotiation notification.
@@ -99,6 +160,8 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 		LOG.debug("SMTP connection count: {}", getNumberOfConnections());
 
 		SMTPContext minaCtx = new SMTPContext(config, factory, session);
+		minaCtx.getReadBufferSizer().init(session);
+		minaCtx.setSslFilter(sslFilter);
 		session.setAttribute(CONTEXT_ATTRIBUTE, minaCtx);
 
 		try
@@ -109,7 +172,7 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 				sendResponse(session, "554 Transaction failed. Too many connections.");
 			}
 			else
-				sendResponse(session, "220 " + config.getHostName() + " ESMTP " + SMTPServerConfig.NAME);
+				sendResponse(session, getBanner());
 		}
 		catch (IOException e1)
 		{
@@ -132,6 +195,13 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 	public void sessionClosed(IoSession session) throws Exception
 	{
 		updateNumberOfConnections(-1);
+		
+		if (LOG.isDebugEnabled())
+		{
+			SMTPContext minaCtx = (SMTPContext) session.getAttribute(CONTEXT_ATTRIBUTE);
+			if (minaCtx != null)
+				LOG.debug("Session reads: {}", minaCtx.getReadBufferSizer());
+		}
 	}
 
 	/**
@@ -169,7 +239,7 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 			else if (cause instanceof CommandException)
 			{
 				fatal = false;
-				sendResponse(session, "500 Syntax error");	
+				sendResponse(session, SMTPResponse.SYNTAX_ERROR);	
 			}
 			else
 			{
@@ -208,45 +278,308 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 
 		SMTPContext minaCtx = (SMTPContext) session.getAttribute(CONTEXT_ATTRIBUTE);
 
-		if (message instanceof InputStream)
+		if (message instanceof DeliveryCompleted)
 		{
-			minaCtx.setInputStream((InputStream) message);
+			// The session is still busy with the delivery
+			sendDeliveryResponse(session, minaCtx, ((DeliveryCompleted) message).failure);
+			handleMessages(session, minaCtx);
+			return;
+		}
+
+		synchronized (minaCtx)
+		{
+			// The decoder queues the messages in the order they were received, 
+			// they are handled one at a time by the thread that isn't busy
+			if (minaCtx.isBusy())
+				return;
+			minaCtx.setBusy(true);
+		}
+		
+		handleMessages(session, minaCtx);
+	}
+	
+	/**
+	 * Handles the queued messages until the queue is empty or a delivery 
+	 * is pending.
+	 */
+	private void handleMessages(IoSession session, SMTPContext minaCtx)
+	{
+		while (true)
+		{
+			Object message;
+			synchronized (minaCtx)
+			{
+				message = minaCtx.pollPendingMessage();
+				if (message == null)
+				{
+					minaCtx.setBusy(false);
+					return;
+				}
+			}
+			
 			try
 			{
-				minaCtx.getDeliveryHandler().data(minaCtx.getInputStream());
+				if (handleMessage(session, minaCtx, message))
+					return;
+			}
+			catch (Exception ex)
+			{
+				exceptionCaught(session, ex);
+			}
+		}
+	}
+	
+	/**
+	 * Handles a command line, a batch of pipelined command lines or the 
+	 * message data.
+	 * 
+	 * @return true if the message delivery is still pending
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean handleMessage(final IoSession session, final SMTPContext minaCtx, 
+			Object message) throws Exception
+	{
+		if (message instanceof InputStream || message instanceof TooMuchDataException)
+		{
+			SMTPState smtpState = minaCtx.getSMTPState();
+			if (!smtpState.getHasSender() || smtpState.getRecipientCount() == 0
+					|| smtpState.isChunkFailed())
+			{
+				// The chunks of a rejected BDAT transaction, already replied to
+				if (message instanceof InputStream)
+					((InputStream) message).close();
 				minaCtx.reset();
-				sendResponse(session, "250 Ok");
+				return false;
+			}
+			
+			if (message instanceof TooMuchDataException)
+			{
+				// The decoder discarded the data of a message exceeding the maximum size
+				minaCtx.reset();
+				sendResponse(session, SMTPResponse.SIZE_EXCEEDED);
+				return false;
+			}
+
+			minaCtx.setInputStream((InputStream) message);
+			CompletableFuture<Void> future;
+			try
+			{
+				future = minaCtx.getDeliveryHandler().dataAsync(
+						minaCtx.getInputStream()).toCompletableFuture();
 			}
 			catch (TooMuchDataException tmdEx)
 			{
-				sendResponse(session, "552 Too much mail data");
+				sendResponse(session, SMTPResponse.TOO_MUCH_DATA);
+				return false;
+			}
+			
+			if (future.isDone())
+			{
+				sendDeliveryResponse(session, minaCtx, getFailure(future));
+				return false;
 			}
+			
+			future.whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void v, Throwable t) 
+				{
+					deliveryCompleted(session, minaCtx, t);
+				}
+			});
+			return true;
+		}
+		else if (message instanceof List)
+		{
+			// Replies to pipelined commands are sent in a single write
+			boolean started = minaCtx.startResponseBatch();
+			try
+			{
+				List<String> lines = (List<String>) message;
+				int prepared = 0;
+				for (int i = 0; i < lines.size(); i++)
+				{
+					if (i >= prepared)
+						prepared = prepareRecipients(minaCtx, lines, i);
+					
+					handleLine(session, minaCtx, lines.get(i));
+					if (!minaCtx.getSMTPState().isActive() || minaCtx.isStartingTLS())
+						break;
+				}
+			}
+			finally
+			{
+				if (started)
+					flushResponses(session, minaCtx);
+			}
+			return false;
 		}
 		else
 		{
-			String line = (String) message;
+			handleLine(session, minaCtx, (String) message);
+			return false;
+		}
+	}
+	
+	/**
+	 * Hands the recipients of the consecutive RCPT commands starting at 
+	 * <code>start</code> over to the delivery handler so that they can be 
+	 * validated at once.
+	 * 
+	 * @return the index following the RCPT commands
+	 */
+	private int prepareRecipients(SMTPContext minaCtx, List<String> lines, int start)
+	{
+		int end = start;
+		while (end < lines.size() && lines.get(end).regionMatches(true, 0, ReceiptCommand.VERB, 0, 4))
+			end++;
+		
+		SMTPState smtpState = minaCtx.getSMTPState();
+		if (end - start < 2 || !smtpState.getHasSender() || smtpState.isAuthenticating())
+			return Math.max(end, start + 1);
+		
+		int max = config.getMaxRecipients();
+		List<String> recipients = new ArrayList<String>(end - start);
+		for (int i = start; i < end; i++)
+		{
+			if (max > -1 && smtpState.getRecipientCount() + recipients.size() >= max)
+				break;
 			
-			if (LOG.isDebugEnabled())
-				LOG.debug("C: " + line);
+			String recipient = ReceiptCommand.getRecipient(lines.get(i), smtpState.isSmtpUTF8());
+			if (recipient != null)
+				recipients.add(recipient);
+		}
+		
+		if (recipients.size() > 1)
+			minaCtx.getDeliveryHandler().prepareRecipients(recipients);
+		
+		return end;
+	}
+	
+	/**
+	 * Handles a command line.
+	 */
+	private void handleLine(IoSession session, SMTPContext minaCtx, String line) 
+		throws IOException
+	{
+		if (LOG.isDebugEnabled())
+			LOG.debug("C: " + line);
+		
+        if (minaCtx.getSMTPState().isAuthenticating())
+        	this.commandHandler.handleAuthChallenge(line, session, minaCtx);
+        else
+        if (!minaCtx.getSMTPState().isAuthenticated() 
+        		&& !minaCtx.getAuthenticationHandler().getAuthenticationMechanisms().isEmpty())
+        {
+        	// Per RFC 2554
+        	Command cmd;
+        	try
+        	{
+        		cmd = this.commandHandler.getCommandFromString(line);
+        	}
+        	catch (CommandException e)
+        	{
+        		sendResponse(session, SMTPResponse.SYNTAX_ERROR);
+        		return;
+        	}
+        	
+        	if (cmd.isAuthRequired())
+        		sendResponse(session, SMTPResponse.AUTH_REQUIRED);
+        	else
+        		this.commandHandler.handleCommand(line, session, minaCtx);
+        }
+        else
+        	this.commandHandler.handleCommand(line, session, minaCtx);
+	}
+	
+	/**
+	 * Returns the failure of a completed delivery or null if it succeeded.
+	 */
+	private static Throwable getFailure(CompletableFuture<Void> future)
+	{
+		try
+		{
+			future.join();
+			return null;
+		}
+		catch (CompletionException ex)
+		{
+			return ex.getCause() != null ? ex.getCause() : ex;
+		}
+		catch (CancellationException ex)
+		{
+			return ex;
+		}
+	}
+	
+	/**
+	 * Sends the reply to the message data.
+	 */
+	private void sendDeliveryResponse(IoSession session, SMTPContext minaCtx, Throwable t)
+	{
+		if (t instanceof CompletionException && t.getCause() != null)
+			t = t.getCause();
+		
+		try
+		{
+			minaCtx.reset();
 			
-            if (minaCtx.getSMTPState().isAuthenticating())
-            	this.commandHandler.handleAuthChallenge(line, session, minaCtx);
-            else
-            if (!minaCtx.getSMTPState().isAuthenticated() 
-            		&& !minaCtx.getAuthenticationHandler().getAuthenticationMechanisms().isEmpty())
-            {
-            	// Per RFC 2554
-            	Command cmd = this.commandHandler.getCommandFromString(line);
-            	
-            	if (cmd.isAuthRequired())
-            		sendResponse(session, "530 Authentication required");
-            	else
-            		this.commandHandler.handleCommand(line, session, minaCtx);
-            }
-            else
-            	this.commandHandler.handleCommand(line, session, minaCtx);
+			if (t == null)
+				sendResponse(session, SMTPResponse.OK);
+			else if (t instanceof TooMuchDataException)
+				sendResponse(session, SMTPResponse.TOO_MUCH_DATA);
+			else
+			{
+				if (LOG.isDebugEnabled())
+					LOG.debug("Asynchronous delivery failed", t);
+				sendResponse(session, SMTPResponse.LOCAL_ERROR);
+			}
+		}
+		catch (IOException ioex) 
+		{
+			LOG.error("Failed to send the reply to the message data", ioex);
+			session.close(false);
 		}
 	}
+	
+	/**
+	 * Hands the outcome of an asynchronous delivery over to the executor of 
+	 * the session, which sends the reply to the message data and then 
+	 * handles the messages received meanwhile, in order with the other 
+	 * events of the session.
+	 */
+	private void deliveryCompleted(IoSession session, SMTPContext minaCtx, Throwable t)
+	{
+		DeliveryCompleted message = new DeliveryCompleted(t);
+		IoFilterChain.Entry entry = session.getFilterChain().getEntry(EXECUTOR_FILTER);
+		
+		if (entry != null)
+		{
+			try
+			{
+				entry.getFilter().messageReceived(entry.getNextFilter(), session, message);
+				return;
+			}
+			catch (Exception ex)
+			{
+				LOG.debug("Failed to hand the delivery over to the executor", ex);
+			}
+		}
+		
+		sendDeliveryResponse(session, minaCtx, t);
+		handleMessages(session, minaCtx);
+	}
+
+	/**
+	 * Writes the replies held back while handling a batch of commands.
+	 */
+	private static void flushResponses(IoSession session, SMTPContext minaCtx)
+	{
+		IoBuffer responses = minaCtx.endResponseBatch();
+		if (responses != null)
+			session.write(responses);
+		
+		if (!minaCtx.getSMTPState().isActive())
+			session.close(false);
+	}
 
 	/** */
 	public static void sendResponse(IoSession session, String response) throws IOException
@@ -254,11 +587,64 @@ public class SMTPConnectionHandler extends IoHandlerAdapter
 		if (LOG.isDebugEnabled())
 			LOG.debug("S: " + response);
 
+		SMTPContext minaCtx = (SMTPContext) session.getAttribute(CONTEXT_ATTRIBUTE);
+		IoBuffer batch = minaCtx.getResponseBatch();
+		if (batch != null)
+		{
+			if (response != null)
+			{
+				batch.putString(response, minaCtx.getCharsetEncoder());
+				batch.put(CRLF);
+			}
+			sendBatchIfRequired(session, minaCtx);
+			return;
+		}
+		
 		if (response != null)
-			session.write(response);
+		{
+			IoBuffer b = IoBuffer.allocate(response.length() + CRLF.length).setAutoExpand(true);
+			b.putString(response, minaCtx.getCharsetEncoder());
+			b.put(CRLF);
+			session.write(b.flip());
+		}
 		
+		if (!minaCtx.getSMTPState().isActive())
+			session.close(false);
+	}
+
+	/**
+	 * Sends a pre-encoded reply.
+	 */
+	public static void sendResponse(IoSession session, SMTPResponse response) throws IOException
+	{
+		if (LOG.isDebugEnabled())
+			LOG.debug("S: " + response);
+
 		SMTPContext minaCtx = (SMTPContext) session.getAttribute(CONTEXT_ATTRIBUTE);
+		IoBuffer batch = minaCtx.getResponseBatch();
+		if (batch != null)
+		{
+			batch.put(response.getBuffer());
+			sendBatchIfRequired(session, minaCtx);
+			return;
+		}
+		
+		session.write(response.getBuffer());
+		
 		if (!minaCtx.getSMTPState().isActive())
 			session.close(false);
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * The reply to STARTTLS must be written before the SSL filter starts 
+	 * encrypting: the replies held back are written at once.
+	 */
+	private static void sendBatchIfRequired(IoSession session, SMTPContext minaCtx)
+	{
+		if (session.containsAttribute(SslFilter.DISABLE_ENCRYPTION_ONCE))
+		{
+			session.write(minaCtx.endResponseBatch());
+			minaCtx.startResponseBatch();
+		}
+	}
+}
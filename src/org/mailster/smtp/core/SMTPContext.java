@@ -1,9 +1,15 @@
 package org.mailster.smtp.core;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketAddress;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
 
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
 import org.mailster.smtp.SMTPServerConfig;
 import org.mailster.smtp.api.handler.AbstractDeliveryHandler;
 import org.mailster.smtp.api.handler.DeliveryContext;
@@ -28,6 +34,29 @@ public class SMTPContext implements DeliveryContext
 
 	private AbstractDeliveryHandler deliveryHandler;
 	private AuthenticationHandler authenticationHandler;
+	
+	/** True while a thread handles the messages of this session. */
+	private boolean busy = false;
+	
+	/** The decoded messages not handled yet. */
+	private LinkedList<Object> pendingMessages = new LinkedList<Object>();
+	
+	/** True from the acceptance of STARTTLS until the session is secured. */
+	private volatile boolean startingTLS = false;
+	
+	/** The encoded replies held back while a batch of pipelined commands is handled. */
+	private IoBuffer responses;
+	
+	/** The thread handling the batch. */
+	private Thread responsesOwner;
+	
+	/** The encoder of the dynamic replies held back. */
+	private CharsetEncoder charsetEncoder;
+	
+	private ReadBufferSizer readBufferSizer;
+	
+	/** The filter securing the session, null if none is configured. */
+	private SslFilter sslFilter;
 
 	public SMTPContext(SMTPServerConfig cfg, DeliveryHandlerFactory factory, 
 			IoSession ioSession)
@@ -35,6 +64,7 @@ public class SMTPContext implements DeliveryContext
 		this.cfg = cfg;
 		this.remoteAddress = ioSession.getRemoteAddress();
 		this.smtpState = new SMTPState();
+		this.readBufferSizer = new ReadBufferSizer(cfg);
 		
 		this.deliveryHandler = factory.create(this);
 		this.authenticationHandler = deliveryHandler.getAuthenticationHandler();
@@ -60,6 +90,28 @@ public class SMTPContext implements DeliveryContext
 		this.inputStream = inputStream;
 	}
 
+	/**
+	 * Returns the sizer of the session buffers, which also counts its reads.
+	 */
+	public ReadBufferSizer getReadBufferSizer()
+	{
+		return readBufferSizer;
+	}
+
+	/**
+	 * Returns the filter securing the session or null if the server has 
+	 * no {@link SMTPServerConfig#getSSLContext() SSL context}.
+	 */
+	public SslFilter getSslFilter()
+	{
+		return sslFilter;
+	}
+
+	public void setSslFilter(SslFilter sslFilter)
+	{
+		this.sslFilter = sslFilter;
+	}
+
 	public SMTPState getSMTPState()
 	{
 		return smtpState;
@@ -85,6 +137,141 @@ public class SMTPContext implements DeliveryContext
 		this.credential = credential;
 	}
 	
+	/**
+	 * Returns true if a thread is handling the messages of this session or
+	 * if an asynchronous delivery hasn't completed yet. 
+	 * Callers must synchronize on this context.
+	 */
+	public boolean isBusy() 
+	{
+		return busy;
+	}
+
+	public void setBusy(boolean busy) 
+	{
+		this.busy = busy;
+	}
+	
+	/**
+	 * Queues a decoded message. 
+	 * Callers must synchronize on this context.
+	 */
+	public void addPendingMessage(Object message)
+	{
+		pendingMessages.add(message);
+	}
+	
+	/**
+	 * Returns the next queued message or null if none.
+	 * Callers must synchronize on this context.
+	 */
+	public Object pollPendingMessage()
+	{
+		return pendingMessages.poll();
+	}
+	
+	/**
+	 * Discards the messages received in plaintext once STARTTLS has been
+	 * accepted, as the commands pipelined after it must not be handled
+	 * (RFC 3207 section 4.2). Input decoded until the session is secured 
+	 * is discarded too.
+	 */
+	public synchronized void startTLS()
+	{
+		startingTLS = true;
+		
+		for (Object message; (message = pendingMessages.poll()) != null;)
+		{
+			if (message instanceof InputStream)
+			{
+				try
+				{
+					((InputStream) message).close();
+				}
+				catch (IOException ex)
+				{
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Returns true from the acceptance of STARTTLS until the session is 
+	 * secured.
+	 */
+	public boolean isStartingTLS()
+	{
+		return startingTLS;
+	}
+	
+	/**
+	 * Called by the decoder when the first input of the secured session
+	 * comes.
+	 */
+	public void setStartingTLS(boolean startingTLS)
+	{
+		this.startingTLS = startingTLS;
+	}
+	
+	/**
+	 * Starts holding back the replies sent by the current thread.
+	 * 
+	 * @return false if the replies were already held back
+	 */
+	public boolean startResponseBatch()
+	{
+		if (responses != null)
+			return false;
+		
+		responses = IoBuffer.allocate(256).setAutoExpand(true);
+		responsesOwner = Thread.currentThread();
+		return true;
+	}
+	
+	/**
+	 * Returns the buffer of the replies held back for the current thread or 
+	 * null if replies are not batched.
+	 */
+	public IoBuffer getResponseBatch()
+	{
+		return responsesOwner == Thread.currentThread() ? responses : null;
+	}
+	
+	/**
+	 * Returns the encoder used to add dynamic replies to the batch.
+	 */
+	public CharsetEncoder getCharsetEncoder()
+	{
+		if (charsetEncoder == null)
+		{
+			// Replies may echo the UTF-8 addresses of the client
+			if (cfg.isSmtpUTF8Supported())
+				charsetEncoder = StandardCharsets.UTF_8.newEncoder();
+			else
+				charsetEncoder = cfg.getCharset().newEncoder();
+		}
+		
+		return charsetEncoder;
+	}
+	
+	/**
+	 * Stops holding back the replies.
+	 * 
+	 * @return the replies held back since the batch started or null if none
+	 */
+	public IoBuffer endResponseBatch()
+	{
+		IoBuffer b = responses.flip();
+		if (!b.hasRemaining())
+		{
+			b.free();
+			b = null;
+		}
+		responses = null;
+		responsesOwner = null;
+		return b;
+	}
+	
 	public void reset()
 	{
 		smtpState.reset();
@@ -19,15 +19,21 @@
  */
 package org.mailster.smtp.core;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.mina.core.buffer.BufferDataException;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoder;
 import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.ssl.SslFilter;
+import org.mailster.smtp.core.commands.impl.BdatCommand;
 
 /**
  * A {@link ProtocolDecoder} which decodes incoming SMTP data based on session context.
@@ -44,6 +50,9 @@ public class SMTPDecoder implements ProtocolDecoder
     private final static byte[] SMTP_CMD_DELIMITER = new byte[] {'\r','\n'};
     private final static byte[] SMTP_DATA_DELIMITER = new byte[] {'\r','\n', '.', '\r','\n'};
 
+    private final static DelimiterScanner CMD_SCANNER = new DelimiterScanner(SMTP_CMD_DELIMITER);
+    private final static DelimiterScanner DATA_SCANNER = new DelimiterScanner(SMTP_DATA_DELIMITER);
+
     private Charset charset;
 
     /**
@@ -54,6 +63,24 @@ public class SMTPDecoder implements ProtocolDecoder
     /** When to trigger */
     private int threshold;    
 
+    /** Where to spool the messages that exceed the threshold */
+    private File spoolDirectory;
+
+    /** Whether spooled messages are forced to disk before delivery */
+    private boolean syncSpoolFiles;
+
+    /** Whether message data is unstuffed while it is received */
+    private boolean unstuffOnReceive;
+
+    /** The maximum size of a message, 0 if unlimited */
+    private long maxMessageSize;
+
+    /** Whether command lines holding non ASCII characters are decoded as UTF-8 */
+    private boolean smtpUTF8Supported;
+
+    /** Whether the network buffers are freed once decoded */
+    private boolean recycleBuffers;
+
     /**
 	 * Creates a new instance with the specified <tt>charset</tt> and the
 	 * specified <tt>thresholdBytes</tt> deferring size.
@@ -117,10 +144,15 @@ public class SMTPDecoder implements ProtocolDecoder
         return ctx;
     }
 
-    /** */
+    /**
+     * Called when the session is closed. The codec filter only calls
+     * {@link #dispose(IoSession)} for the decoders it keeps in the session, 
+     * so the buffers and the spool file are released here.
+     */
     public void finishDecode(IoSession session, ProtocolDecoderOutput out)
             throws Exception 
     {
+    	dispose(session);
     }
 
     /** */
@@ -131,6 +163,7 @@ public class SMTPDecoder implements ProtocolDecoder
         if (ctx != null) 
         {
             ctx.getBuffer().free();
+            ctx.freeLastRead();
             ctx.closeOutputStream();
             session.removeAttribute(CONTEXT);
         }
@@ -141,92 +174,248 @@ public class SMTPDecoder implements ProtocolDecoder
             throws Exception 
     {
     	SMTPDecoderContext ctx = getContext(session);
-        int matchCount = ctx.getMatchCount();
+    	
+    	// The previous buffer is no longer used by the codec filter
+    	ctx.freeLastRead();
         
         SMTPContext minaCtx = (SMTPContext) 
         	session.getAttribute(SMTPConnectionHandler.CONTEXT_ATTRIBUTE);
+        
+        if (minaCtx.isStartingTLS() && !discardPlaintext(session, ctx, minaCtx, in))
+        	return;
+        
+        int matchCount = ctx.getMatchCount();
 
         boolean dataMode = minaCtx.getSMTPState().isDataMode();
         ctx.setDataMode(dataMode);
-        byte[] delimBuf = dataMode ? SMTP_DATA_DELIMITER : SMTP_CMD_DELIMITER;
+        
+        ReadBufferSizer sizer = minaCtx.getReadBufferSizer();
+        sizer.read(session, in.remaining(), dataMode || ctx.isChunkPending());
+        DelimiterScanner scanner = dataMode ? DATA_SCANNER : CMD_SCANNER;
 
-        // Try to find a match
-        int oldPos = in.position();
         int oldLimit = in.limit();
         
-        if (matchCount == delimBuf.length)
+        if (matchCount == scanner.length())
         	matchCount = 0;
         
-        while (in.remaining() > 0) 
+        // The command lines found in this read
+        List<String> lines = null;
+        
+        while (in.hasRemaining() || ctx.isChunkPending()) 
         {
-            byte b = in.get();
-            if (delimBuf[matchCount] == b) 
+        	if (ctx.isChunkPending())
+        	{
+        		// BDAT chunks are copied as is without any scanning
+        		if (!ctx.writeChunk(in))
+        			break;
+        		
+        		if (ctx.isLastChunk())
+        		{
+        			// The BDAT command must be handled before the message
+        			writeLines(minaCtx, lines, out);
+        			lines = null;
+        			
+        			try
+        			{
+        				write(minaCtx, ctx.isTooLarge() ? new TooMuchDataException() 
+        						: ctx.getChunkedInputStream(), out);
+        			}
+        			finally
+        			{
+        				ctx.reset();
+        			}
+        		}
+        		continue;
+        	}
+        	
+        	int pos = scanner.scan(in, in.position(), oldLimit, matchCount);
+        	if (pos < 0)
+        	{
+        		// No match in this packet, keep the partial match state
+        		matchCount = -1 - pos;
+        		break;
+        	}
+
+            // Found a match.
+            in.limit(pos);
+           	ctx.write(in);
+            in.limit(oldLimit);
+            matchCount = scanner.length();
+
+            if (ctx.getOverflowPosition() == 0) 
             {
-                matchCount++;
-                if (matchCount == delimBuf.length) 
+            	IoBuffer buf = ctx.getBuffer();
+        		buf.flip();
+        		                		
+                try 
+                {
+                	if (dataMode)
+                	{
+                		write(minaCtx, ctx.isTooLarge() ? new TooMuchDataException() 
+                				: ctx.getNewInputStream(), out);
+                	}
+                	else
+                	{
+                		buf.limit(buf.limit() - matchCount);
+                		String line = decodeLine(ctx, buf);
+                		
+                		if (lines == null)
+                			lines = new ArrayList<String>(4);
+                		lines.add(line);
+                		
+                		decodeChunkCommand(ctx, line);
+                	}                    		
+                }
+                catch (IOException ioex) 
                 {
-                    // Found a match.
-                    int pos = in.position();
-                    in.limit(pos);
-                    in.position(oldPos);
-
-                   	ctx.write(in);
-                    
-                    in.limit(oldLimit);
-                    in.position(pos);
-
-                    if (ctx.getOverflowPosition() == 0) 
-                    {
-                    	IoBuffer buf = ctx.getBuffer();
-                		buf.flip();
-                		                		
-                        try 
-                        {
-                        	if (dataMode)
-                        	{
-                        		delimBuf = SMTP_CMD_DELIMITER;
-                        		out.write(ctx.getNewInputStream());                        		
-                        	}
-                        	else
-                        	{
-                        		buf.limit(buf.limit() - matchCount);
-                        		out.write(buf.getString(ctx.getDecoder()));
-                        	}                    		
-                        }
-                        catch (IOException ioex) 
-                        {
-                        	throw new CharacterCodingException();
-                        } 
-                        finally 
-                        {   
-                        	ctx.reset();
-                            buf.clear();
-                        }
-                    } 
-                    else 
-                    {
-                        String msg = "Line is too long: " + ctx.getOverflowPosition();                        
-                        ctx.reset();
-                        throw new BufferDataException(msg);
-                    }
-
-                    oldPos = pos;
-                    matchCount = 0;
+                	throw new CharacterCodingException();
+                } 
+                finally 
+                {   
+                	// BDAT chunks received so far must be kept
+                	if (dataMode)
+                		ctx.reset();
+                	else
+                		ctx.resetLine();
+                    buf.clear();
                 }
             } 
             else 
             {
-				// fix for DIRMINA-506
-				in.position(Math.max(0, in.position() - matchCount));
-                matchCount = 0;
+                String msg = "Line is too long: " + ctx.getOverflowPosition();                        
+                ctx.resetLine();
+                writeLines(minaCtx, lines, out);
+                throw new BufferDataException(msg);
+            }
+
+            // Data transfer is complete, any further bytes are commands
+            if (dataMode)
+            {
+            	dataMode = false;
+            	ctx.setDataMode(false);
+            	minaCtx.getSMTPState().setDataMode(false);
+            	scanner = CMD_SCANNER;
             }
+            matchCount = 0;
         }
 
         // Put remainder to buf.
-        in.position(oldPos);
         ctx.write(in);
 
         ctx.setMatchCount(matchCount);
+        sizer.setDataMode(session, dataMode || ctx.isChunkPending());
+        if (recycleBuffers)
+        	ctx.setLastRead(in);
+        writeLines(minaCtx, lines, out);
+    }
+
+    /**
+     * Discards the input received in plaintext after STARTTLS, including 
+     * the partial line buffered so far.
+     * 
+     * @return true if the session is secured and its input can be decoded
+     */
+    private boolean discardPlaintext(IoSession session, SMTPDecoderContext ctx, 
+    		SMTPContext minaCtx, IoBuffer in) throws IOException
+    {
+    	ctx.reset();
+    	ctx.getBuffer().clear();
+    	
+    	SslFilter filter = (SslFilter) session.getFilterChain().get(TLSHandshakeFilter.SSL_FILTER);
+    	if (filter != null && filter.isSecured(session))
+    	{
+    		minaCtx.setStartingTLS(false);
+    		return true;
+    	}
+    	
+    	in.position(in.limit());
+    	if (recycleBuffers)
+    		ctx.setLastRead(in);
+    	return false;
+    }
+
+    /**
+     * Decodes a command line. Lines made of 7-bit characters only, which
+     * is the common case, are copied as is without running the charset
+     * decoder: their ISO-8859-1 decoding is the same in any ASCII
+     * compatible charset.
+     */
+    private String decodeLine(SMTPDecoderContext ctx, IoBuffer buf)
+    	throws CharacterCodingException
+    {
+    	byte[] b = buf.array();
+    	int offset = buf.arrayOffset() + buf.position();
+    	int len = buf.remaining();
+    	
+    	for (int i = offset, end = offset + len; i < end; i++)
+    	{
+    		if (b[i] < 0)
+    			return buf.getString(ctx.getDecoder());
+    	}
+    	
+    	buf.position(buf.limit());
+    	return new String(b, offset, len, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Prepares the reception of the chunk that follows a BDAT command. As 
+     * the chunk is sent without waiting for the reply, this must be done 
+     * before the command is handled. The chunks of an aborted transaction 
+     * are discarded when a new transaction starts.
+     */
+    private void decodeChunkCommand(SMTPDecoderContext ctx, String line)
+    	throws IOException
+    {
+    	if (line.length() < 4)
+    		return;
+    	
+    	if (line.regionMatches(true, 0, BdatCommand.VERB, 0, 4))
+    	{
+    		long size = BdatCommand.getChunkSize(line);
+    		if (size >= 0)
+    			ctx.startChunk(size, BdatCommand.isLastChunk(line));
+    	}
+    	else if (ctx.isChunked() && (line.regionMatches(true, 0, "MAIL", 0, 4)
+    			|| line.regionMatches(true, 0, "RSET", 0, 4)
+    			|| line.regionMatches(true, 0, "HELO", 0, 4)
+    			|| line.regionMatches(true, 0, "EHLO", 0, 4)))
+    	{
+    		ctx.reset();
+    	}
+    }
+
+    /**
+     * Writes the command lines found in a read: a single line is written as a
+     * <code>String</code>, pipelined lines are written as a <code>List</code>
+     * so that they are handled in order and replied to in a single write.
+     */
+    private void writeLines(SMTPContext minaCtx, List<String> lines, 
+    		ProtocolDecoderOutput out)
+    {
+    	if (lines == null)
+    		return;
+    	
+    	if (lines.size() == 1)
+    		write(minaCtx, lines.get(0), out);
+    	else
+    		write(minaCtx, lines, out);
+    }
+
+    /**
+     * Queues the message in the session context before writing it: the 
+     * executor may not run the events of a session in order, so the handler 
+     * takes the messages from the queue.
+     */
+    private void write(SMTPContext minaCtx, Object message, ProtocolDecoderOutput out)
+    {
+    	synchronized (minaCtx)
+    	{
+    		// Decoded in plaintext while STARTTLS was being handled
+    		if (minaCtx.isStartingTLS())
+    			return;
+    		minaCtx.addPendingMessage(message);
+    	}
+    	out.write(message);
     }
 
 	public Charset getCharset() 
@@ -238,4 +427,85 @@ public class SMTPDecoder implements ProtocolDecoder
 	{
 		return threshold;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Returns the directory in which large messages are spooled.
+	 * If null, the default temporary-file directory is used.
+	 */
+	public File getSpoolDirectory() 
+	{
+		return spoolDirectory;
+	}
+
+	public void setSpoolDirectory(File spoolDirectory) 
+	{
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	public boolean isSyncSpoolFiles() 
+	{
+		return syncSpoolFiles;
+	}
+
+	public void setSyncSpoolFiles(boolean syncSpoolFiles) 
+	{
+		this.syncSpoolFiles = syncSpoolFiles;
+	}
+
+	/**
+	 * Returns true if message data is dot-unstuffed and stripped of the
+	 * SMTP terminator while it is received.
+	 */
+	public boolean isUnstuffOnReceive() 
+	{
+		return unstuffOnReceive;
+	}
+
+	public void setUnstuffOnReceive(boolean unstuffOnReceive) 
+	{
+		this.unstuffOnReceive = unstuffOnReceive;
+	}
+
+	/**
+	 * Returns the maximum size of a message in bytes, 0 if unlimited. The data
+	 * of bigger messages is discarded while it is received.
+	 */
+	public long getMaxMessageSize() 
+	{
+		return maxMessageSize;
+	}
+
+	public void setMaxMessageSize(long maxMessageSize) 
+	{
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Returns true if the command lines holding non ASCII characters are
+	 * decoded as UTF-8 instead of using the charset.
+	 */
+	public boolean isSmtpUTF8Supported() 
+	{
+		return smtpUTF8Supported;
+	}
+
+	public void setSmtpUTF8Supported(boolean smtpUTF8Supported) 
+	{
+		this.smtpUTF8Supported = smtpUTF8Supported;
+	}
+	
+	/**
+	 * Returns true if the network buffers are freed once decoded, so that 
+	 * a pooling allocator can reuse them. Message data is then copied 
+	 * instead of keeping views of the network buffers.
+	 */
+	public boolean isRecycleBuffers() 
+	{
+		return recycleBuffers;
+	}
+
+	public void setRecycleBuffers(boolean recycleBuffers) 
+	{
+		this.recycleBuffers = recycleBuffers;
+	}
+}
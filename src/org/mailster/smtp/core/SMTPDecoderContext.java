@@ -1,16 +1,17 @@
 package org.mailster.smtp.core;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetDecoder;
-
-import javax.mail.util.SharedByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.mina.core.buffer.IoBuffer;
-import org.mailster.smtp.util.SharedTmpFileInputStream;
+import org.mailster.smtp.util.MappedSharedInputStream;
+import org.mailster.smtp.util.SharedByteBufferInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,41 +25,94 @@ public class SMTPDecoderContext
 {
 	private static final Logger LOG = LoggerFactory.getLogger(SMTPDecoderContext.class);
 	
-	private final CharsetDecoder charsetDecoder;
+	/** 
+	 * Network buffers holding at least this many message bytes are 
+	 * retained as is instead of being copied. 
+	 */
+	private static final int MIN_SLICE_SIZE = 1024;
+	
+	/** The capacity of the buffers that gather smaller chunks. */
+	private static final int TAIL_SIZE = 8192;
+	
+	/** The length of the SMTP terminator CRLF.CRLF */
+	private static final int TERMINATOR_LENGTH = 5;
+	
+	/** 
+	 * The length of the SMTP terminator once its dot has been removed: 
+	 * the message doesn't include the final CRLF.CRLF sequence.
+	 */
+	private static final int UNSTUFFED_TERMINATOR_LENGTH = 4;
+	
+	/** The decoder of the non ASCII command lines, created when first needed. */
+	private CharsetDecoder charsetDecoder;
+	
+	/** The command line being received, its size is bounded by the maximum line length. */
     private IoBuffer buf;
+    
+    /** The message data received so far when in memory. */
+    private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+    
+    /** The buffer gathering the small chunks. */
+    private IoBuffer tail;
+    
+    /** The network buffer last decoded, freed when the next one comes. */
+    private IoBuffer lastRead;
+    
+    /** The number of message bytes held in memory. */
+    private int dataSize = 0;
+    
     private int matchCount = 0;
     private int overflowPosition = 0;
 	private boolean thresholdReached = false;        
 	private boolean dataMode = false;
 	
-	/** If we switch to file output, this is the file. */
-	private File outFile;
-
-	/** If we switch to file output, this is the stream to write to the file. */ 
-	private FileOutputStream stream;
+	/** The last two message bytes stored, -1 if none. Used when unstuffing. */
+	private int last0 = -1;
+	private int last1 = -1;
+	
+	/** True if a stuffed dot has just been removed. */
+	private boolean afterDot = false;
+	
+	/** The number of bytes of the current BDAT chunk still to be received, -1 if none. */
+	private long chunkRemaining = -1;
+	
+	/** True if the current BDAT chunk is the last one of the message. */
+	private boolean lastChunk = false;
+	
+	/** True if BDAT chunks have been received since the last reset. */
+	private boolean chunked = false;
+	
+	/** The number of message bytes received, including the discarded ones. */
+	private long messageSize = 0;
+	
+	/** True if the message exceeds the maximum size: its data is discarded. */
+	private boolean tooLarge = false;
+	
+	/** If we switch to file output, this is the file to write to. */
+	private SpoolFile spool;
 	
 	private SMTPDecoder decoder;
 	
     protected SMTPDecoderContext(SMTPDecoder decoder) 
     {
     	this.decoder = decoder;
-    	charsetDecoder = decoder.getCharset().newDecoder();
-        buf = IoBuffer.allocate(decoder.getMaxLineLength()).setAutoExpand(true);
+    	
+    	// A heap buffer so that ASCII lines are copied from its array
+        buf = IoBuffer.allocate(decoder.getMaxLineLength(), false);
     }
 
-	/** */
-    private static byte[] asArray(IoBuffer b) 
-    {
-    	int len = b.remaining();
-    	byte[] array = new byte[len];
-    	b.get(array, 0, len);
-	    
-	    return array;
-    }
-    
-    /** */
+    /**
+     * Returns the decoder of the command lines holding non ASCII characters.
+     */
     protected CharsetDecoder getDecoder() 
     {
+    	if (charsetDecoder == null)
+    	{
+    		if (decoder.isSmtpUTF8Supported())
+    			charsetDecoder = StandardCharsets.UTF_8.newDecoder();
+    		else
+    			charsetDecoder = decoder.getCharset().newDecoder();
+    	}
         return charsetDecoder;
     }
 
@@ -68,15 +122,6 @@ public class SMTPDecoderContext
         return buf;
     }
     
-    /** */
-    private void compactBuffer() 
-    {
-    	if (dataMode && buf.capacity() > decoder.getMaxLineLength())
-    		buf = IoBuffer.allocate(decoder.getMaxLineLength()).setAutoExpand(true);
-    	else
-    		buf.clear();
-    }
-    
     /** */
     protected int getOverflowPosition() 
     {
@@ -95,16 +140,53 @@ public class SMTPDecoderContext
         this.matchCount = matchCount;
     }
     
-    /** */
-    protected void reset() throws IOException 
+    /**
+     * Resets the state of the command line decoding.
+     */
+    protected void resetLine()
     {
         overflowPosition = 0;
         matchCount = 0;
-        charsetDecoder.reset();
+        if (charsetDecoder != null)
+        	charsetDecoder.reset();
+    }
+    
+    /**
+     * Keeps the network buffer just decoded until the next one comes.
+     */
+    protected void setLastRead(IoBuffer in)
+    {
+    	lastRead = in;
+    }
+    
+    /**
+     * Hands the network buffer last decoded back to its allocator.
+     */
+    protected void freeLastRead()
+    {
+    	if (lastRead != null)
+    	{
+    		lastRead.free();
+    		lastRead = null;
+    	}
+    }
+    
+    /** */
+    protected void reset() throws IOException 
+    {
+        resetLine();
+        chunks.clear();
+        tail = null;
+        dataSize = 0;
+        last0 = last1 = -1;
+        afterDot = false;
+        chunkRemaining = -1;
+        chunked = false;
+        messageSize = 0;
+        tooLarge = false;
         if (thresholdReached)
         {
         	thresholdReached = false;
-        	compactBuffer();
         	closeOutputStream();
         }
     }
@@ -114,28 +196,226 @@ public class SMTPDecoderContext
     	throws IOException
     {
 		if (dataMode)
-			write(asArray(b));
+			writeData(b);
 		else
 			append(b);
     }
     
+    /**
+     * Starts receiving a BDAT chunk of <code>size</code> bytes.
+     */
+    protected void startChunk(long size, boolean last)
+    {
+    	chunkRemaining = size;
+    	lastChunk = last;
+    	chunked = true;
+    }
+    
+    /**
+     * Returns true while the bytes of a BDAT chunk are expected.
+     */
+    protected boolean isChunkPending()
+    {
+    	return chunkRemaining >= 0;
+    }
+    
     /** */
-	private void write(byte[] src) 
+    protected boolean isLastChunk()
+    {
+    	return lastChunk;
+    }
+    
+    /**
+     * Returns true if BDAT chunks have been received since the last reset.
+     */
+    protected boolean isChunked()
+    {
+    	return chunked;
+    }
+    
+    /**
+     * Stores the bytes of the current BDAT chunk as is.
+     * 
+     * @return true if the chunk is complete
+     */
+    protected boolean writeChunk(IoBuffer b) 
+    	throws IOException
+    {
+    	int n = (int) Math.min(chunkRemaining, b.remaining());
+    	if (n > 0)
+    	{
+	    	int limit = b.limit();
+	    	b.limit(b.position() + n);
+	    	storeData(b);
+	    	b.limit(limit);
+	    	chunkRemaining -= n;
+    	}
+    	
+    	if (chunkRemaining > 0)
+    		return false;
+    	
+    	chunkRemaining = -1;
+    	return true;
+    }
+    
+    /** */
+	private void writeData(IoBuffer b) 
 		throws IOException
 	{
-		int predicted = this.thresholdReached ? 0 : this.buf.position() + src.length;
+		if (decoder.isUnstuffOnReceive())
+		{
+			int end = b.limit();
+			b.limit(unstuff(b));
+			storeData(b);
+			b.limit(end);
+			b.position(end);
+		}
+		else
+			storeData(b);
+	}
+	
+	/**
+	 * Removes the stuffed dots from the remaining bytes of <code>b</code>
+	 * by compacting them in place.
+	 * 
+	 * @return the new limit of the unstuffed bytes
+	 */
+	private int unstuff(IoBuffer b)
+	{
+		ByteBuffer bb = b.buf();
+		int w = b.position();
 		
-		// Checks whether reading count bytes would cross the limit.
-		if (this.thresholdReached || predicted > decoder.getThreshold())
+		for (int r = w, limit = b.limit(); r < limit; r++)
 		{
-			// If previously hit, then use the stream.
-			if (!this.thresholdReached)
-				thresholdReached();
+			byte x = bb.get(r);
+			if (afterDot)
+				afterDot = false;
+			else 
+			if (x == '.' && last0 == '\r' && last1 == '\n')
+			{
+				// skip this '.' because it should have been stuffed
+				afterDot = true;
+				continue;
+			}
 			
-			this.stream.write(src);
+			last0 = last1;
+			last1 = x;
+			if (w != r)
+				bb.put(w, x);
+			w++;
+		}
+		
+		return w;
+	}
+	
+	/**
+	 * Returns true if the message exceeds the maximum message size.
+	 */
+	protected boolean isTooLarge()
+	{
+		return tooLarge;
+	}
+	
+	/**
+	 * Counts the message bytes and discards the message once it 
+	 * exceeds the maximum message size.
+	 * 
+	 * @return false if the bytes must be discarded
+	 */
+	private boolean checkSize(int len) 
+		throws IOException
+	{
+		messageSize += len;
+		
+		if (tooLarge)
+			return false;
+		
+		long max = decoder.getMaxMessageSize();
+		if (max <= 0)
+			return true;
+		
+		// The stored DATA includes its terminator
+		if (dataMode)
+			max += decoder.isUnstuffOnReceive() ? UNSTUFFED_TERMINATOR_LENGTH : TERMINATOR_LENGTH;
+		
+		if (messageSize <= max)
+			return true;
+		
+		LOG.debug("Message exceeds the maximum size, discarding its data");
+		tooLarge = true;
+		chunks.clear();
+		tail = null;
+		dataSize = 0;
+		if (thresholdReached)
+		{
+			thresholdReached = false;
+			closeOutputStream();
+		}
+		return false;
+	}
+	
+	/** */
+	private void storeData(IoBuffer b) 
+		throws IOException
+	{
+		int len = b.remaining();
+		
+		if (!checkSize(len))
+		{
+			b.position(b.limit());
+			return;
+		}
+		
+		// Checks whether reading count bytes would cross the limit.
+		if (!this.thresholdReached && dataSize + len > decoder.getThreshold())
+			thresholdReached();
+		
+		// If previously hit, then use the spool file.
+		if (this.thresholdReached)
+		{
+			this.spool.write(b.buf());
+			return;
+		}
+		
+		dataSize += len;
+		
+		if (!decoder.isRecycleBuffers() && len >= MIN_SLICE_SIZE && len >= b.capacity() / 2)
+		{
+			// Keep a view of the network buffer instead of copying it
+			sealTail();
+			chunks.add(b.getSlice(len).buf());
 		}
 		else
-			this.buf.put(src);
+		{
+			int limit = b.limit();
+			while (b.hasRemaining())
+			{
+				if (tail == null || !tail.hasRemaining())
+				{
+					sealTail();
+					
+					// Not pooled: the listeners may keep the message data
+					tail = IoBuffer.wrap(new byte[TAIL_SIZE]);
+				}
+				
+				b.limit(b.position() + Math.min(tail.remaining(), b.remaining()));
+				tail.put(b);
+				b.limit(limit);
+			}
+		}
+	}
+	
+	/**
+	 * Appends the gathering buffer to the chunks list.
+	 */
+	private void sealTail()
+	{
+		if (tail != null && tail.position() > 0)
+		{
+			tail.flip();
+			chunks.add(tail.buf());
+		}
+		tail = null;
 	}
 	
 	/**
@@ -145,37 +425,86 @@ public class SMTPDecoderContext
 	private void thresholdReached() 
 		throws IOException
 	{
-		this.outFile = File.createTempFile(SMTPDecoder.TMPFILE_PREFIX, 
-				SMTPDecoder.TMPFILE_SUFFIX);
-
-		LOG.debug("Writing message to file : {}", outFile.getAbsolutePath());
+		this.spool = new SpoolFile(decoder.getSpoolDirectory(), 
+				decoder.isSyncSpoolFiles());
+		
+		sealTail();
+		this.spool.write(chunks.toArray(new ByteBuffer[chunks.size()]));
 		
-		this.stream = new FileOutputStream(this.outFile);
-		this.buf.flip();
-		this.stream.write(asArray(this.buf));
 		this.thresholdReached = true;
-		this.buf.clear();
-		LOG.debug("ByteBuffer written to stream");
+		this.chunks.clear();
+		this.dataSize = 0;
+		LOG.debug("Memory chunks written to spool file");
 	}
 	
 	/** */
 	protected void closeOutputStream() throws IOException
 	{
-		if (this.stream != null)
+		if (this.spool != null)
 		{
-			this.stream.flush();
-			this.stream.close();
-			LOG.debug("Temp file writing achieved - closing stream");
+			// Data was not handed to listeners
+			this.spool.discard();
+			this.spool = null;
 		}
 	}
 	
 	/** */
 	protected InputStream getNewInputStream() throws IOException
 	{		
+		boolean canonical = decoder.isUnstuffOnReceive();
+		return newInputStream(canonical, canonical ? UNSTUFFED_TERMINATOR_LENGTH : 0);
+	}
+	
+	/**
+	 * Returns the message received with BDAT chunks. It is neither 
+	 * stuffed nor terminated.
+	 */
+	protected InputStream getChunkedInputStream() throws IOException
+	{
+		return newInputStream(true, 0);
+	}
+	
+	/**
+	 * Returns the message data received so far, stripped of its 
+	 * <code>trim</code> last bytes.
+	 */
+	private InputStream newInputStream(boolean canonical, int trim) 
+		throws IOException
+	{
 		if (this.thresholdReached)
-			return new SharedTmpFileInputStream(this.outFile);
-		else
-			return new SharedByteArrayInputStream(asArray(this.buf));
+		{
+			SpoolFile f = this.spool;
+			this.spool = null;
+			if (trim > 0)
+				f.truncate(f.size() - trim);
+			f.close();
+			return new MappedSharedInputStream(f.getFile(), canonical);
+		}
+		
+		sealTail();
+		if (trim > 0)
+			trimChunks(trim);
+		
+		InputStream in = new SharedByteBufferInputStream(canonical,
+				chunks.toArray(new ByteBuffer[chunks.size()]));
+		chunks.clear();
+		dataSize = 0;
+		
+		return in;
+	}
+	
+	/**
+	 * Removes the last <code>count</code> bytes of the chunks.
+	 */
+	private void trimChunks(int count)
+	{
+		for (int i = chunks.size() - 1; i >= 0 && count > 0; i--)
+		{
+			ByteBuffer chunk = chunks.get(i);
+			int n = Math.min(count, chunk.remaining());
+			chunk.limit(chunk.limit() - n);
+			count -= n;
+		}
 	}
 	
 	/** */
@@ -186,7 +515,8 @@ public class SMTPDecoderContext
         else 
         {
         	int pos = buf.position();
-        	if ((pos + in.remaining()) > decoder.getMaxLineLength()) 
+        	int max = Math.min(decoder.getMaxLineLength(), buf.capacity());
+        	if ((pos + in.remaining()) > max) 
         	{
                 overflowPosition = pos;
                 buf.clear();
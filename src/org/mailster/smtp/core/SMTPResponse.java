@@ -0,0 +1,71 @@
+package org.mailster.smtp.core;
+
+import java.nio.charset.Charset;
+
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * A SMTP reply encoded once for all. Writing it to a session only
+ * duplicates its read-only buffer so that the constant replies don't
+ * need to be encoded each time.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public final class SMTPResponse
+{
+	private final static Charset ASCII = Charset.forName("US-ASCII");
+
+	public final static SMTPResponse OK = new SMTPResponse("250 Ok");
+	public final static SMTPResponse BYE = new SMTPResponse("221 Bye");
+	public final static SMTPResponse START_DATA =
+		new SMTPResponse("354 End data with <CR><LF>.<CR><LF>");
+	public final static SMTPResponse NEED_MAIL =
+		new SMTPResponse("503 Error: need MAIL command");
+	public final static SMTPResponse NEED_RCPT =
+		new SMTPResponse("503 Error: need RCPT command");
+	public final static SMTPResponse SYNTAX_ERROR = new SMTPResponse("500 Syntax error");
+	public final static SMTPResponse AUTH_REQUIRED =
+		new SMTPResponse("530 Authentication required");
+	public final static SMTPResponse TOO_MUCH_DATA =
+		new SMTPResponse("552 Too much mail data");
+	public final static SMTPResponse SIZE_EXCEEDED =
+		new SMTPResponse("552 Message size exceeds fixed maximum message size");
+	public final static SMTPResponse LOCAL_ERROR =
+		new SMTPResponse("451 Requested action aborted: local error in processing");
+
+	private final String text;
+	private final IoBuffer buffer;
+
+	/**
+	 * Encodes a reply made of US-ASCII characters only.
+	 * Multiline replies are separated by CRLF.
+	 */
+	public SMTPResponse(String text)
+	{
+		this.text = text;
+
+		byte[] b = (text + "\r\n").getBytes(ASCII);
+		this.buffer = IoBuffer.wrap(b).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns the text of the reply without its final CRLF.
+	 */
+	public String getText()
+	{
+		return text;
+	}
+
+	/**
+	 * Returns a new buffer sharing the encoded reply.
+	 */
+	public IoBuffer getBuffer()
+	{
+		return buffer.duplicate();
+	}
+
+	public String toString()
+	{
+		return text;
+	}
+}
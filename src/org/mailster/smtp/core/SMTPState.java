@@ -17,6 +17,10 @@ public class SMTPState
 	private boolean active			= true;
 	private boolean hasSender		= false;
 	private int recipientCount		= 0;
+	private boolean chunking		= false;
+	private boolean chunkFailed		= false;
+	private boolean binaryBody		= false;
+	private boolean smtpUTF8		= false;
 	
 	public SMTPState()
 	{
@@ -72,6 +76,62 @@ public class SMTPState
 		return this.recipientCount;
 	}
 
+	/**
+	 * Returns true if a BDAT command has been accepted in the 
+	 * current transaction.
+	 */
+	public boolean isChunking()
+	{
+		return this.chunking;
+	}
+
+	public void setChunking(boolean chunking)
+	{
+		this.chunking = chunking;
+	}
+
+	/**
+	 * Returns true if a BDAT command has been rejected in the current 
+	 * transaction: the message must not be delivered.
+	 */
+	public boolean isChunkFailed()
+	{
+		return this.chunkFailed;
+	}
+
+	public void setChunkFailed(boolean chunkFailed)
+	{
+		this.chunkFailed = chunkFailed;
+	}
+
+	/**
+	 * Returns true if the sender declared a BINARYMIME body which 
+	 * can only be sent with BDAT commands.
+	 */
+	public boolean isBinaryBody()
+	{
+		return this.binaryBody;
+	}
+
+	public void setBinaryBody(boolean binaryBody)
+	{
+		this.binaryBody = binaryBody;
+	}
+
+	/**
+	 * Returns true if the sender declared the SMTPUTF8 parameter: the 
+	 * addresses of the transaction may hold UTF-8 characters.
+	 */
+	public boolean isSmtpUTF8()
+	{
+		return this.smtpUTF8;
+	}
+
+	public void setSmtpUTF8(boolean smtpUTF8)
+	{
+		this.smtpUTF8 = smtpUTF8;
+	}
+
 	public boolean isAuthenticated()
 	{
 		return authenticated;
@@ -117,5 +177,9 @@ public class SMTPState
 		this.active = true;
 		this.hasSeenHelo = hasSeenHelo;
 		this.recipientCount = 0;
+		this.chunking = false;
+		this.chunkFailed = false;
+		this.binaryBody = false;
+		this.smtpUTF8 = false;
 	}
 }
@@ -0,0 +1,137 @@
+package org.mailster.smtp.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The temporary file a message is written to once its size crosses
+ * the data deferred size. Data is written through a {@link FileChannel}
+ * straight from the network buffers, so no intermediate array is needed.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SpoolFile
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SpoolFile.class);
+
+	private final File file;
+	private final FileChannel channel;
+
+	/** Whether data must be forced to the storage device on close. */
+	private final boolean sync;
+
+	private long size = 0;
+
+	/**
+	 * Creates a new spool file in <code>directory</code>. If the directory
+	 * is null, the default temporary-file directory will be used.
+	 */
+	public SpoolFile(File directory, boolean sync)
+		throws IOException
+	{
+		this.file = File.createTempFile(SMTPDecoder.TMPFILE_PREFIX,
+				SMTPDecoder.TMPFILE_SUFFIX, directory);
+		this.sync = sync;
+
+		LOG.debug("Writing message to file : {}", file.getAbsolutePath());
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+	}
+
+	/**
+	 * Writes all the remaining bytes of <code>src</code>.
+	 */
+	public void write(ByteBuffer src)
+		throws IOException
+	{
+		while (src.hasRemaining())
+			size += channel.write(src);
+	}
+
+	/**
+	 * Writes all the remaining bytes of the <code>srcs</code> buffers
+	 * using gathering writes.
+	 */
+	public void write(ByteBuffer[] srcs)
+		throws IOException
+	{
+		long total = 0;
+		for (ByteBuffer src : srcs)
+			total += src.remaining();
+
+		for (long n = 0; n < total;)
+			n += channel.write(srcs);
+
+		size += total;
+	}
+
+	/**
+	 * Truncates the file to the given size.
+	 */
+	public void truncate(long size)
+		throws IOException
+	{
+		channel.truncate(size);
+		this.size = Math.min(this.size, size);
+	}
+
+	/**
+	 * Closes the file. If sync is enabled, data is forced to
+	 * the storage device first.
+	 */
+	public void close()
+		throws IOException
+	{
+		if (!channel.isOpen())
+			return;
+
+		try
+		{
+			if (sync)
+				channel.force(false);
+		}
+		finally
+		{
+			channel.close();
+		}
+		LOG.debug("Temp file writing achieved - closing file");
+	}
+
+	/**
+	 * Closes and deletes the file. Used when the data won't be delivered.
+	 */
+	public void discard()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException ignored) {}
+
+		if (!file.delete())
+			file.deleteOnExit();
+	}
+
+	/**
+	 * Returns the file.
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+
+	/**
+	 * Returns the number of bytes written.
+	 */
+	public long size()
+	{
+		return size;
+	}
+}
@@ -0,0 +1,433 @@
+package org.mailster.smtp.core;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.AttributeKey;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.ssl.SslFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A filter running the TLS handshakes on their own executor and limiting
+ * how many of them run at once.
+ *
+ * The {@link SslFilter} runs the delegated tasks of the SSL engine on the
+ * thread receiving the handshake messages, which is the I/O processor
+ * shared with many other sessions. Placed in front of it, this filter
+ * hands the events of the sessions being secured to the executor, in
+ * order, and passes them through again once the handshake is over.
+ *
+ * Handshakes beyond the limit are refused: STARTTLS replies with a
+ * temporary failure and implicit TLS sessions are closed.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class TLSHandshakeFilter extends IoFilterAdapter
+{
+	private static final Logger LOG = LoggerFactory.getLogger(TLSHandshakeFilter.class);
+
+	/** The name of this filter in the chains. */
+	public static final String NAME = "TLSHandshake";
+
+	/** The name of the {@link SslFilter} in the chains. */
+	public static final String SSL_FILTER = "SSLfilter";
+
+	private static final AttributeKey HANDSHAKE = new AttributeKey(TLSHandshakeFilter.class, "handshake");
+
+	/** The number of buckets of the handshake times histogram. */
+	private static final int BUCKETS = 32;
+
+	/** The length of the header of the TLS records, which ends with the record length. */
+	private static final int RECORD_HEADER_LENGTH = 5;
+
+	/**
+	 * A handshake in progress and the events of its session waiting to be
+	 * handled by the executor.
+	 */
+	private final class Handshake implements Runnable
+	{
+		private final IoSession session;
+		private final long start = System.nanoTime();
+		private final AtomicBoolean over = new AtomicBoolean();
+
+		private final LinkedList<Runnable> events = new LinkedList<Runnable>();
+		private boolean running = false;
+
+		/** The bytes of the header of the TLS record being received read so far. */
+		private int headerRead = 0;
+
+		/** The bytes of the TLS record being received which are still expected. */
+		private int recordLeft = 0;
+
+		private Handshake(IoSession session)
+		{
+			this.session = session;
+		}
+
+		/**
+		 * Queues an event of the session.
+		 *
+		 * @return false if the handshake is over and its events have all
+		 *         been handled, the event must then be passed through
+		 */
+		private boolean offer(Runnable event)
+		{
+			boolean start;
+			synchronized (this)
+			{
+				if (over.get() && !running)
+					return false;
+
+				events.add(event);
+				start = !running;
+				running = true;
+			}
+
+			if (start)
+				executor.execute(this);
+			return true;
+		}
+
+		public void run()
+		{
+			for (;;)
+			{
+				Runnable event;
+				synchronized (this)
+				{
+					event = events.poll();
+					if (event == null)
+					{
+						running = false;
+						if (over.get())
+							session.removeAttribute(HANDSHAKE, this);
+						return;
+					}
+				}
+
+				event.run();
+
+				SslFilter ssl = (SslFilter) session.getFilterChain().get(SSL_FILTER);
+				if (!over.get() && ssl != null && ssl.isSecured(session))
+					end(this, true);
+			}
+		}
+
+		/**
+		 * Cuts a read at the end of each TLS record it holds. The SSL filter
+		 * keeps the records following the one completing the handshake until 
+		 * the next read, which doesn't come if the client waits for a reply 
+		 * to the data it sent along. Handed over one by one, none is kept.
+		 * 
+		 * Must be called by the I/O thread of the session.
+		 */
+		private List<IoBuffer> splitRecords(IoBuffer in)
+		{
+			List<IoBuffer> records = new ArrayList<IoBuffer>(2);
+			int start = in.position();
+			int i = start;
+
+			while (i < in.limit())
+			{
+				if (headerRead < RECORD_HEADER_LENGTH)
+				{
+					int b = in.get(i++) & 0xff;
+					if (++headerRead > RECORD_HEADER_LENGTH - 2)
+						recordLeft = recordLeft << 8 | b;
+				}
+				else
+				{
+					int n = Math.min(recordLeft, in.limit() - i);
+					recordLeft -= n;
+					i += n;
+				}
+
+				if (headerRead == RECORD_HEADER_LENGTH && recordLeft == 0)
+				{
+					headerRead = 0;
+					if (i < in.limit())
+					{
+						records.add(in.getSlice(start, i - start));
+						start = i;
+					}
+				}
+			}
+
+			records.add(start == in.position() ? in : in.getSlice(start, in.limit() - start));
+			return records;
+		}
+	}
+
+	private final Executor executor;
+
+	/** Null if the number of handshakes isn't limited. */
+	private final Semaphore permits;
+
+	private final AtomicInteger active = new AtomicInteger();
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	private final LongAdder totalTime = new LongAdder();
+	private final AtomicLong maxTime = new AtomicLong();
+
+	/** Bucket i counts the handshakes which took less than 2^i microseconds. */
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Creates a filter.
+	 *
+	 * @param executor the executor running the handshakes, null to run
+	 *        them on the threads receiving the messages
+	 * @param maxHandshakes the maximum number of handshakes in progress,
+	 *        0 meaning no limit
+	 */
+	public TLSHandshakeFilter(Executor executor, int maxHandshakes)
+	{
+		if (maxHandshakes < 0)
+			throw new IllegalArgumentException("Argument maxHandshakes can't be negative");
+
+		if (executor == null)
+		{
+			executor = new Executor() {
+				public void execute(Runnable command)
+				{
+					command.run();
+				}
+			};
+		}
+
+		this.executor = executor;
+		this.permits = maxHandshakes == 0 ? null : new Semaphore(maxHandshakes);
+	}
+
+	/**
+	 * Starts tracking the handshake of a session about to be secured.
+	 *
+	 * @return false if too many handshakes are in progress
+	 */
+	public boolean startHandshake(IoSession session)
+	{
+		if (permits != null && !permits.tryAcquire())
+		{
+			rejections.increment();
+			LOG.debug("Too many TLS handshakes in progress");
+			return false;
+		}
+
+		active.incrementAndGet();
+		session.setAttribute(HANDSHAKE, new Handshake(session));
+		return true;
+	}
+
+	/**
+	 * Gives up the handshake started for a session which couldn't be set up
+	 * to be secured.
+	 */
+	public void cancelHandshake(IoSession session)
+	{
+		Handshake hs = (Handshake) session.getAttribute(HANDSHAKE);
+		if (hs == null)
+			return;
+
+		end(hs, false);
+		synchronized (hs)
+		{
+			// Else removed once the queued events are handled
+			if (!hs.running)
+				session.removeAttribute(HANDSHAKE, hs);
+		}
+	}
+
+	/**
+	 * Ends a handshake once, successful or not.
+	 */
+	private void end(Handshake hs, boolean secured)
+	{
+		if (!hs.over.compareAndSet(false, true))
+			return;
+
+		active.decrementAndGet();
+		if (permits != null)
+			permits.release();
+
+		if (!secured)
+		{
+			failures.increment();
+			return;
+		}
+
+		long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - hs.start);
+		handshakes.increment();
+		totalTime.add(micros);
+
+		for (long max = maxTime.get(); micros > max && !maxTime.compareAndSet(max, micros);)
+			max = maxTime.get();
+
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		histogram.incrementAndGet(bucket);
+	}
+
+	/**
+	 * Implicit TLS sessions start their handshake when they are created.
+	 */
+	public void sessionCreated(NextFilter nextFilter, IoSession session) throws Exception
+	{
+		boolean rejected = session.getFilterChain().contains(SSL_FILTER)
+			&& !startHandshake(session);
+
+		nextFilter.sessionCreated(session);
+
+		if (rejected)
+			session.closeNow();
+	}
+
+	public void messageReceived(NextFilter nextFilter, IoSession session,
+			Object message) throws Exception
+	{
+		Handshake hs = (Handshake) session.getAttribute(HANDSHAKE);
+		if (hs != null && !hs.over.get() && message instanceof IoBuffer)
+		{
+			for (IoBuffer record : hs.splitRecords((IoBuffer) message))
+				receive(hs, nextFilter, session, record);
+		}
+		else
+			receive(hs, nextFilter, session, message);
+	}
+
+	/**
+	 * Queues a message behind the handshake or passes it through.
+	 */
+	private static void receive(Handshake hs, final NextFilter nextFilter, 
+			final IoSession session, final Object message)
+	{
+		if (hs == null || !hs.offer(new Runnable() {
+				public void run()
+				{
+					nextFilter.messageReceived(session, message);
+				}
+			}))
+		{
+			nextFilter.messageReceived(session, message);
+		}
+	}
+
+	public void sessionClosed(final NextFilter nextFilter, IoSession session) throws Exception
+	{
+		final Handshake hs = (Handshake) session.getAttribute(HANDSHAKE);
+
+		// Closed before being secured
+		if (hs == null || !hs.offer(new Runnable() {
+				public void run()
+				{
+					end(hs, false);
+					nextFilter.sessionClosed(hs.session);
+				}
+			}))
+		{
+			nextFilter.sessionClosed(session);
+		}
+	}
+
+	/**
+	 * Returns the number of handshakes in progress.
+	 */
+	public int getActiveHandshakes()
+	{
+		return active.get();
+	}
+
+	/**
+	 * Returns the number of handshakes completed.
+	 */
+	public long getHandshakes()
+	{
+		return handshakes.sum();
+	}
+
+	/**
+	 * Returns the number of sessions closed before their handshake
+	 * completed.
+	 */
+	public long getFailedHandshakes()
+	{
+		return failures.sum();
+	}
+
+	/**
+	 * Returns the number of handshakes refused because too many were in
+	 * progress.
+	 */
+	public long getRejectedHandshakes()
+	{
+		return rejections.sum();
+	}
+
+	/**
+	 * Returns the average time of the completed handshakes in microseconds.
+	 */
+	public long getAverageHandshakeTime()
+	{
+		long n = handshakes.sum();
+		return n == 0 ? 0 : totalTime.sum() / n;
+	}
+
+	/**
+	 * Returns the longest time of a completed handshake in microseconds.
+	 */
+	public long getMaxHandshakeTime()
+	{
+		return maxTime.get();
+	}
+
+	/**
+	 * Returns the time in microseconds under which the given percentage of
+	 * the handshakes completed. The times are counted in powers of two, so
+	 * the result is an upper bound at most twice the actual value.
+	 *
+	 * @param percent the percentage, 99 for instance
+	 */
+	public long getHandshakeTimePercentile(double percent)
+	{
+		if (percent <= 0 || percent > 100)
+			throw new IllegalArgumentException("Argument percent must be in ]0, 100]");
+
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = histogram.get(i);
+			total += counts[i];
+		}
+
+		long rank = (long) Math.ceil(total * percent / 100);
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			n += counts[i];
+			if (n >= rank && n > 0)
+				return Math.min(1L << i, getMaxHandshakeTime());
+		}
+		return 0;
+	}
+
+	public String toString()
+	{
+		return "TLSHandshakeFilter[handshakes=" + getHandshakes() + ", active="
+			+ getActiveHandshakes() + ", failed=" + getFailedHandshakes() + ", rejected="
+			+ getRejectedHandshakes() + ", avg=" + getAverageHandshakeTime() + "us, p99="
+			+ getHandshakeTimePercentile(99) + "us, max=" + getMaxHandshakeTime() + "us]";
+	}
+}
@@ -1,17 +1,14 @@
 package org.mailster.smtp.core.commands;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.regex.Pattern;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.core.SMTPConnectionHandler;
+import org.mailster.smtp.core.SMTPResponse;
 
 /**
  * An abstract class which provides a minimal function set used
@@ -23,9 +20,6 @@ import org.mailster.smtp.core.SMTPConnectionHandler;
  */
 abstract public class AbstractCommand implements Command
 {
-	private static final String VALIDATE_EMAIL = "^[\\w!#$%&'*+/=?`{|}~^-]+(?:\\.[\\w!#$%&'*+/=?`{|}~^-]+)*@(localhost|(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,6}$)";
-	private static final Pattern EMAIL_PATTERN = Pattern.compile(VALIDATE_EMAIL);
-
 	private String name;
 	private CommandHandler handler;
 	private static Map<String, HelpMessage> helpMessageMap = new HashMap<String, HelpMessage>();
@@ -92,12 +86,24 @@ abstract public class AbstractCommand implements Command
 		SMTPConnectionHandler.sendResponse(session, response);
 	}
 	
+	protected void sendResponse(IoSession session, SMTPResponse response) 
+		throws IOException
+	{
+		SMTPConnectionHandler.sendResponse(session, response);
+	}
+	
 	protected boolean isValidEmailAddress(String address)
 	{
-		if (address.length() == 0)
-			return false;
-
-		return EMAIL_PATTERN.matcher(address).matches();
+		return PathParser.isValidMailbox(address, false);
+	}
+	
+	/**
+	 * Validates an address, allowing UTF-8 characters if <code>utf8</code>
+	 * is true.
+	 */
+	protected boolean isValidEmailAddress(String address, boolean utf8)
+	{
+		return PathParser.isValidMailbox(address, utf8);
 	}
 	
 	protected static void getTokenizedString(StringBuilder sb, Collection<String> items, String delim)
@@ -112,20 +118,88 @@ abstract public class AbstractCommand implements Command
 	
 	protected String[] getArgs(String commandString)
 	{
-		List<String> strings = new ArrayList<String>();
-		StringTokenizer st = new StringTokenizer(commandString);
-		
-		while (st.hasMoreTokens())
-			strings.add(st.nextToken());
+		String[] args = new String[getArgCount(commandString)];
+		for (int i = 0, pos = 0; i < args.length; i++)
+		{
+			pos = skipSpaces(commandString, pos);
+			int end = skipToken(commandString, pos);
+			args[i] = commandString.substring(pos, end);
+			pos = end;
+		}
 		
-		return strings.toArray(new String[strings.size()]);
+		return args;
+	}
+	
+	/**
+	 * Returns the number of whitespace separated tokens of the command,
+	 * including the verb.
+	 */
+	protected static int getArgCount(String commandString)
+	{
+		int count = 0;
+		int pos = skipSpaces(commandString, 0);
+		while (pos < commandString.length())
+		{
+			count++;
+			pos = skipSpaces(commandString, skipToken(commandString, pos));
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the whitespace separated token at <code>index</code>, the verb 
+	 * being at index 0, or null if there are not as many tokens.
+	 */
+	protected static String getArg(String commandString, int index)
+	{
+		int pos = skipSpaces(commandString, 0);
+		while (pos < commandString.length())
+		{
+			int end = skipToken(commandString, pos);
+			if (index-- == 0)
+				return commandString.substring(pos, end);
+			pos = skipSpaces(commandString, end);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the index of the first character of the token at or after 
+	 * <code>pos</code>.
+	 */
+	protected static int skipSpaces(String s, int pos)
+	{
+		while (pos < s.length() && isDelimiter(s.charAt(pos)))
+			pos++;
+		return pos;
+	}
+	
+	/**
+	 * Returns the index following the token starting at <code>pos</code>.
+	 */
+	protected static int skipToken(String s, int pos)
+	{
+		while (pos < s.length() && !isDelimiter(s.charAt(pos)))
+			pos++;
+		return pos;
+	}
+	
+	/**
+	 * Returns true if <code>c</code> separates the tokens of a command.
+	 */
+	static boolean isDelimiter(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
 	}
 	
 	protected String extractEmailAddress(String args, int subcommandOffset)
 	{
 		String address = args.substring(subcommandOffset).trim();
 		if (address.indexOf('<') == 0)
-			address = address.substring(1, address.indexOf('>'));
+		{
+			int end = address.indexOf('>');
+			address = address.substring(1, end < 0 ? address.length() : end);
+		}
 		
 		return address;
 	}
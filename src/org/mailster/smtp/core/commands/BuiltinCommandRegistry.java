@@ -1,6 +1,7 @@
 package org.mailster.smtp.core.commands;
 
 import org.mailster.smtp.core.commands.impl.AuthCommand;
+import org.mailster.smtp.core.commands.impl.BdatCommand;
 import org.mailster.smtp.core.commands.impl.DataCommand;
 import org.mailster.smtp.core.commands.impl.EhloCommand;
 import org.mailster.smtp.core.commands.impl.HeloCommand;
@@ -21,6 +22,7 @@ import org.mailster.smtp.core.commands.impl.StartTLSCommand;
 public enum BuiltinCommandRegistry
 {
 	AUTH(AuthCommand.class), 
+	BDAT(BdatCommand.class),
 	DATA(DataCommand.class),
 	EHLO(EhloCommand.class), 
 	HELO(HeloCommand.class), 
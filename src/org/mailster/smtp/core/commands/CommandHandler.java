@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.core.SMTPConnectionHandler;
@@ -22,6 +21,13 @@ import org.slf4j.LoggerFactory;
 public class CommandHandler
 {
 	private Map<String, Command> commandMap = new HashMap<String, Command>();
+	
+	/** 
+	 * An open addressing table of the commands indexed by the case-insensitive 
+	 * hash of their verb. It is rebuilt when a command is added.
+	 */
+	private volatile Command[] commandTable = new Command[0];
+	
 	private static final Logger LOG = LoggerFactory.getLogger(CommandHandler.class);
 	
 	/**
@@ -47,6 +53,45 @@ public class CommandHandler
 			((AbstractCommand) cmd).setCommandHandler(this);
 		
 		this.commandMap.put(cmd.getName(), cmd);
+		buildCommandTable();
+	}
+	
+	/**
+	 * Rebuilds the lookup table with a load factor of at most 1/4 so that
+	 * lookups seldom probe more than one slot.
+	 */
+	private void buildCommandTable()
+	{
+		int size = Integer.highestOneBit(Math.max(commandMap.size(), 1) * 4) * 2;
+		Command[] table = new Command[size];
+		
+		for (Command cmd : commandMap.values())
+		{
+			String name = cmd.getName();
+			int i = hash(name, 0, name.length()) & (size - 1);
+			while (table[i] != null)
+				i = (i + 1) & (size - 1);
+			table[i] = cmd;
+		}
+		
+		this.commandTable = table;
+	}
+	
+	/**
+	 * Returns the case-insensitive hash of the characters of <code>s</code>
+	 * between <code>start</code> and <code>end</code>.
+	 */
+	private static int hash(String s, int start, int end)
+	{
+		int h = 0;
+		for (int i = start; i < end; i++)
+		{
+			char c = s.charAt(i);
+			if (c >= 'a' && c <= 'z')
+				c -= 'a' - 'A';
+			h = 31 * h + c;
+		}
+		return h ^ (h >>> 16);
 	}
 
 	/**
@@ -97,7 +142,8 @@ public class CommandHandler
 	}	
 	
 	/**
-	 * Given a string, find the Command object.
+	 * Given a string, find the Command object. The verb is matched in place,
+	 * ignoring its case.
 	 * 
 	 * @param cmdString
 	 * @return The command object.
@@ -107,26 +153,33 @@ public class CommandHandler
 	public Command getCommandFromString(String cmdString)
 		throws UnknownCommandException, InvalidCommandNameException
 	{
-        String verb = toVerb(cmdString);
-
-	    Command cmd = this.commandMap.get(verb);
-		if (cmd == null)
-		    throw new UnknownCommandException("Command not implemented");
-		
-		return cmd;
-	}
-	
-	/** */
-	private String toVerb(String cmd) throws InvalidCommandNameException
-	{
-        if (cmd == null || cmd.length() < 4)
+        if (cmdString == null || cmdString.length() < 4)
         	throw new InvalidCommandNameException("Syntax error");
-
-        StringTokenizer st = new StringTokenizer(cmd);
         
-        if (!st.hasMoreTokens())
+        int len = cmdString.length();
+        int start = 0;
+        while (start < len && AbstractCommand.isDelimiter(cmdString.charAt(start)))
+        	start++;
+        
+        int end = start;
+        while (end < len && !AbstractCommand.isDelimiter(cmdString.charAt(end)))
+        	end++;
+        
+        if (start == end)
         	throw new InvalidCommandNameException("Syntax error");
-		
-        return st.nextToken().toUpperCase();
+        
+        Command[] table = this.commandTable;
+        int mask = table.length - 1;
+        int verbLength = end - start;
+        
+        for (int i = hash(cmdString, start, end) & mask; table[i] != null; i = (i + 1) & mask)
+        {
+        	String name = table[i].getName();
+        	if (name.length() == verbLength 
+        			&& cmdString.regionMatches(true, start, name, 0, verbLength))
+        		return table[i];
+        }
+        
+	    throw new UnknownCommandException("Command not implemented");
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,470 @@
+package org.mailster.smtp.core.commands;
+
+/**
+ * A single pass parser of the reverse-path and forward-path arguments of
+ * the MAIL and RCPT commands and of the ESMTP parameters following them
+ * (RFC 5321 section 4.1.2). It only works on indexes so that nothing is
+ * allocated until the address is extracted.
+ *
+ * A path is parsed as <code>"&lt;" [ A-d-l ":" ] Mailbox "&gt;"</code>,
+ * the source route being ignored. A bare mailbox is tolerated for older
+ * clients but it can't be followed by parameters. When <code>utf8</code>
+ * is true, the addresses may hold non ASCII characters (RFC 6531).
+ *
+ * The parsed paths are returned as a long packing the start of the
+ * mailbox and the end of the path, or {@link #INVALID}.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public final class PathParser
+{
+	/** Returned when the path isn't valid. */
+	public final static long INVALID = -1;
+
+	private final static int MAX_LOCAL_PART_LENGTH = 64;
+	private final static int MAX_DOMAIN_LENGTH = 255;
+	private final static int MAX_LABEL_LENGTH = 63;
+
+	private final static String POSTMASTER = "postmaster";
+
+	private PathParser()
+	{
+	}
+
+	/**
+	 * Parses the reverse-path of a MAIL command starting at <code>from</code>.
+	 * The null path <code>&lt;&gt;</code> is accepted.
+	 */
+	public static long parseReversePath(String s, int from, boolean utf8)
+	{
+		return parsePath(s, from, utf8, true);
+	}
+
+	/**
+	 * Parses the forward-path of a RCPT command starting at <code>from</code>.
+	 * The <code>&lt;Postmaster&gt;</code> path is accepted.
+	 */
+	public static long parseForwardPath(String s, int from, boolean utf8)
+	{
+		return parsePath(s, from, utf8, false);
+	}
+
+	/**
+	 * Returns the mailbox of a parsed path, an empty string for the null path.
+	 */
+	public static String getMailbox(String s, long path)
+	{
+		int start = (int) (path >>> 32);
+		int end = getPathEnd(path);
+		if (s.charAt(end - 1) == '>')
+			end--;
+
+		return s.substring(start, end);
+	}
+
+	/**
+	 * Returns the index following the parsed path.
+	 */
+	public static int getPathEnd(long path)
+	{
+		return (int) path;
+	}
+
+	/**
+	 * Returns true if <code>s</code> is a mailbox: <code>Local-part "@"
+	 * ( Domain / address-literal )</code>.
+	 */
+	public static boolean isValidMailbox(String s, boolean utf8)
+	{
+		return parseMailbox(s, 0, s.length(), utf8) == s.length();
+	}
+
+	private static long parsePath(String s, int from, boolean utf8, boolean reverse)
+	{
+		int len = s.length();
+		int i = skipSpaces(s, from, len);
+		if (i == len)
+			return INVALID;
+
+		if (s.charAt(i) != '<')
+		{
+			int end = len;
+			while (end > i && s.charAt(end - 1) == ' ')
+				end--;
+
+			if (parseMailbox(s, i, end, utf8) != end)
+				return INVALID;
+
+			return pack(i, end);
+		}
+
+		int start = ++i;
+		if (i < len && s.charAt(i) == '>')
+			return reverse ? pack(start, i + 1) : INVALID;
+
+		if (!reverse && s.regionMatches(true, i, POSTMASTER, 0, POSTMASTER.length()))
+		{
+			int end = i + POSTMASTER.length();
+			if (end < len && s.charAt(end) == '>')
+				return pack(start, end + 1);
+		}
+
+		if (i < len && s.charAt(i) == '@')
+		{
+			i = parseRoute(s, i, len, utf8);
+			if (i < 0)
+				return INVALID;
+			start = i;
+		}
+
+		i = parseMailbox(s, i, len, utf8);
+		if (i < 0 || i == len || s.charAt(i) != '>')
+			return INVALID;
+
+		return pack(start, i + 1);
+	}
+
+	private static long pack(int start, int end)
+	{
+		return ((long) start << 32) | end;
+	}
+
+	/**
+	 * Skips the source route: <code>At-domain *( "," At-domain ) ":"</code>.
+	 */
+	private static int parseRoute(String s, int i, int len, boolean utf8)
+	{
+		while (true)
+		{
+			i = parseDomain(s, i + 1, len, utf8);
+			if (i < 0 || i == len)
+				return -1;
+
+			char c = s.charAt(i);
+			if (c == ':')
+				return i + 1;
+
+			if (c != ',' || i + 1 == len || s.charAt(i + 1) != '@')
+				return -1;
+			i++;
+		}
+	}
+
+	/**
+	 * @return the index following the mailbox or -1 if invalid
+	 */
+	private static int parseMailbox(String s, int i, int len, boolean utf8)
+	{
+		int start = i;
+		if (i < len && s.charAt(i) == '"')
+			i = parseQuotedString(s, i + 1, len, utf8);
+		else
+			i = parseDotString(s, i, len, utf8);
+
+		if (i < 0 || i - start > MAX_LOCAL_PART_LENGTH || i == len || s.charAt(i) != '@')
+			return -1;
+
+		i++;
+		if (i < len && s.charAt(i) == '[')
+			return parseAddressLiteral(s, i + 1, len);
+
+		return parseDomain(s, i, len, utf8);
+	}
+
+	/**
+	 * Parses <code>Atom *("." Atom)</code>.
+	 */
+	private static int parseDotString(String s, int i, int len, boolean utf8)
+	{
+		while (true)
+		{
+			int atom = i;
+			while (i < len && isAtext(s.charAt(i), utf8))
+				i++;
+
+			if (i == atom)
+				return -1;
+
+			if (i == len || s.charAt(i) != '.')
+				return i;
+			i++;
+		}
+	}
+
+	/**
+	 * Parses a quoted string following its opening quote.
+	 */
+	private static int parseQuotedString(String s, int i, int len, boolean utf8)
+	{
+		while (i < len)
+		{
+			char c = s.charAt(i++);
+			if (c == '"')
+				return i;
+
+			if (c == '\\')
+			{
+				if (i == len || s.charAt(i) < 32 || s.charAt(i) > 126)
+					return -1;
+				i++;
+			}
+			else
+			if ((c < 32 || c > 126) && !(utf8 && c >= 0x80))
+				return -1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses <code>sub-domain *("." sub-domain)</code>.
+	 */
+	private static int parseDomain(String s, int i, int len, boolean utf8)
+	{
+		int start = i;
+		while (true)
+		{
+			int label = i;
+			while (i < len)
+			{
+				char c = s.charAt(i);
+				if (!isLetDig(c, utf8) && (c != '-' || i == label))
+					break;
+				i++;
+			}
+
+			if (i == label || s.charAt(i - 1) == '-' || i - label > MAX_LABEL_LENGTH
+					|| i - start > MAX_DOMAIN_LENGTH)
+				return -1;
+
+			if (i == len || s.charAt(i) != '.')
+				return i;
+			i++;
+		}
+	}
+
+	/**
+	 * Parses an address literal following its opening bracket.
+	 */
+	private static int parseAddressLiteral(String s, int i, int len)
+	{
+		int end = s.indexOf(']', i);
+		if (end < 0 || end >= len)
+			return -1;
+
+		if (isIPv4(s, i, end))
+			return end + 1;
+
+		if (s.regionMatches(true, i, "IPv6:", 0, 5))
+			return isIPv6(s, i + 5, end) ? end + 1 : -1;
+
+		// General-address-literal = Standardized-tag ":" 1*dcontent
+		int tag = i;
+		while (i < end && (isLetDig(s.charAt(i), false) || (s.charAt(i) == '-' && i > tag)))
+			i++;
+
+		if (i == tag || i == end || s.charAt(i) != ':' || s.charAt(i - 1) == '-' || ++i == end)
+			return -1;
+
+		for (; i < end; i++)
+		{
+			char c = s.charAt(i);
+			if (c < 33 || c > 126 || c == '[' || c == '\\')
+				return -1;
+		}
+		return end + 1;
+	}
+
+	private static boolean isIPv4(String s, int i, int end)
+	{
+		for (int n = 0; n < 4; n++)
+		{
+			int start = i;
+			int value = 0;
+			while (i < end && i - start < 3 && isDigit(s.charAt(i)))
+				value = value * 10 + s.charAt(i++) - '0';
+
+			if (i == start || value > 255)
+				return false;
+
+			if (n < 3)
+			{
+				if (i == end || s.charAt(i) != '.')
+					return false;
+				i++;
+			}
+		}
+		return i == end;
+	}
+
+	private static boolean isIPv6(String s, int i, int end)
+	{
+		int groups = 0;
+		boolean compressed = false;
+
+		if (s.regionMatches(i, "::", 0, 2))
+		{
+			compressed = true;
+			i += 2;
+			if (i == end)
+				return true;
+		}
+
+		while (true)
+		{
+			int group = i;
+			while (i < end && isHexDigit(s.charAt(i)))
+				i++;
+
+			if (i < end && s.charAt(i) == '.')
+			{
+				// The address ends with an IPv4 address
+				if (!isIPv4(s, group, end))
+					return false;
+				groups += 2;
+				break;
+			}
+
+			if (i == group || i - group > 4)
+				return false;
+
+			groups++;
+			if (i == end)
+				break;
+
+			if (s.charAt(i++) != ':' || i == end)
+				return false;
+
+			if (s.charAt(i) == ':')
+			{
+				if (compressed)
+					return false;
+				compressed = true;
+				if (++i == end)
+					break;
+			}
+		}
+		return compressed ? groups < 8 : groups == 8;
+	}
+
+	/**
+	 * Returns true if the parameters starting at <code>i</code> are
+	 * valid: <code>*(SP esmtp-keyword ["=" esmtp-value])</code>.
+	 */
+	public static boolean isValidParameters(String s, int i, boolean utf8)
+	{
+		int len = s.length();
+		while (i < len)
+		{
+			if (s.charAt(i) != ' ')
+				return false;
+
+			i = skipSpaces(s, i, len);
+			if (i == len)
+				return true;
+
+			int keyword = i;
+			while (i < len && (isLetDig(s.charAt(i), false) || (s.charAt(i) == '-' && i > keyword)))
+				i++;
+
+			if (i == keyword)
+				return false;
+
+			if (i < len && s.charAt(i) == '=')
+			{
+				int value = ++i;
+				while (i < len && isValueChar(s.charAt(i), utf8))
+					i++;
+
+				if (i == value)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Searches the parameters starting at <code>i</code> for the parameter
+	 * named <code>keyword</code>.
+	 *
+	 * @return the index following the keyword, which is the index of the
+	 * '=' sign if the parameter has a value, or -1 if not found
+	 */
+	public static int findParameter(String s, int i, String keyword)
+	{
+		int len = s.length();
+		int n = keyword.length();
+
+		while (true)
+		{
+			i = skipSpaces(s, i, len);
+			if (i == len)
+				return -1;
+
+			if (s.regionMatches(true, i, keyword, 0, n) &&
+					(i + n == len || s.charAt(i + n) == '=' || s.charAt(i + n) == ' '))
+				return i + n;
+
+			while (i < len && s.charAt(i) != ' ')
+				i++;
+		}
+	}
+
+	/**
+	 * Returns the index following the value of a parameter.
+	 *
+	 * @param i the index returned by {@link #findParameter(String, int, String)}
+	 */
+	public static int getValueEnd(String s, int i)
+	{
+		int len = s.length();
+		while (i < len && s.charAt(i) != ' ')
+			i++;
+
+		return i;
+	}
+
+	private static int skipSpaces(String s, int i, int len)
+	{
+		while (i < len && s.charAt(i) == ' ')
+			i++;
+
+		return i;
+	}
+
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isHexDigit(char c)
+	{
+		return isDigit(c) || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	private static boolean isLetDig(char c, boolean utf8)
+	{
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c)
+				|| (utf8 && c >= 0x80);
+	}
+
+	private static boolean isAtext(char c, boolean utf8)
+	{
+		if (isLetDig(c, utf8))
+			return true;
+
+		switch (c)
+		{
+			case '!': case '#': case '$': case '%': case '&': case '\'': case '*':
+			case '+': case '-': case '/': case '=': case '?': case '^': case '_':
+			case '`': case '{': case '|': case '}': case '~':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private static boolean isValueChar(char c, boolean utf8)
+	{
+		return (c >= 33 && c <= 126 && c != '=') || (utf8 && c >= 0x80);
+	}
+}
@@ -51,10 +51,10 @@ public class AuthCommand extends AbstractCommand
 		
 		if (!authenticating)
 		{
-			String[] args = getArgs(commandString);
+			String mechanism = getArg(commandString, 1);
 			
 			// Let's check the command syntax
-			if (args.length < 2)
+			if (mechanism == null)
 			{
 				sendResponse(ioSession, "501 Syntax: " + VERB
 						+ " mechanism [initial-response]");
@@ -62,7 +62,6 @@ public class AuthCommand extends AbstractCommand
 			}
 			
 			// Let's check if we support the required authentication mechanism
-			String mechanism = args[1];
 			if (!ctx.getAuthenticationHandler().getAuthenticationMechanisms().contains(
 					mechanism.toUpperCase()))
 			{
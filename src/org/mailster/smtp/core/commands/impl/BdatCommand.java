@@ -0,0 +1,111 @@
+package org.mailster.smtp.core.commands.impl;
+
+import java.io.IOException;
+
+import org.apache.mina.core.session.IoSession;
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.SMTPResponse;
+import org.mailster.smtp.core.SMTPState;
+import org.mailster.smtp.core.commands.AbstractCommand;
+
+/**
+ * The BDAT command implementation (RFC 3030).
+ *
+ * The chunk following the command is read by the decoder which stores it
+ * without scanning nor unstuffing it. The reply to the last chunk is sent
+ * once the message has been delivered.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class BdatCommand extends AbstractCommand
+{
+	public final static String VERB = "BDAT";
+
+	public BdatCommand()
+	{
+		super(VERB, "The BDAT command sends a chunk of the message.\n" +
+					"The chunk follows the command and is exactly size octets long",
+				"<size> [LAST]\n size = the chunk size in octets\n" +
+				" LAST = set on the last chunk of the message");
+	}
+
+	public void execute(String commandString, IoSession ioSession, SMTPContext ctx)
+		throws IOException
+	{
+		long size = getChunkSize(commandString);
+		if (size < 0)
+		{
+			sendResponse(ioSession, "501 Syntax: BDAT size [LAST]");
+			return;
+		}
+
+		SMTPState smtpState = ctx.getSMTPState();
+
+		if (!smtpState.getHasSender())
+		{
+			sendResponse(ioSession, SMTPResponse.NEED_MAIL);
+		}
+		else if (smtpState.getRecipientCount() == 0)
+		{
+			smtpState.setChunkFailed(true);
+			sendResponse(ioSession, SMTPResponse.NEED_RCPT);
+		}
+		else if (smtpState.isChunkFailed())
+		{
+			sendResponse(ioSession, "503 Error: previous BDAT command failed");
+		}
+		else
+		{
+			smtpState.setChunking(true);
+
+			// The last chunk is replied to after the delivery
+			if (!isLastChunk(commandString))
+				sendResponse(ioSession, "250 " + size + " octets received");
+		}
+	}
+
+	/**
+	 * Returns the size of the chunk announced by a BDAT command line or -1
+	 * if the line isn't a valid BDAT command. The line is scanned in place
+	 * as the decoder calls this method for every chunk.
+	 */
+	public static long getChunkSize(String commandString)
+	{
+		int pos = skipSpaces(commandString, 0);
+		int end = skipToken(commandString, pos);
+		if (end - pos != VERB.length() || !commandString.regionMatches(true, pos, VERB, 0, end - pos))
+			return -1;
+
+		pos = skipSpaces(commandString, end);
+		end = skipToken(commandString, pos);
+		if (end == pos || end - pos > 18)
+			return -1;
+
+		long size = 0;
+		for (int i = pos; i < end; i++)
+		{
+			char c = commandString.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			size = size * 10 + (c - '0');
+		}
+
+		// Nothing but LAST may follow
+		pos = skipSpaces(commandString, end);
+		end = skipToken(commandString, pos);
+		if (end > pos && (end - pos != 4 || !commandString.regionMatches(true, pos, "LAST", 0, 4)
+				|| skipSpaces(commandString, end) < commandString.length()))
+			return -1;
+
+		return size;
+	}
+
+	/**
+	 * Returns true if the BDAT command line announces the last chunk.
+	 */
+	public static boolean isLastChunk(String commandString)
+	{
+		String s = commandString.trim();
+		return s.regionMatches(true, s.length() - 5, " LAST", 0, 5);
+	}
+}
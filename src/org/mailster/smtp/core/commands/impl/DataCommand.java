@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.SMTPResponse;
 import org.mailster.smtp.core.SMTPState;
 import org.mailster.smtp.core.commands.AbstractCommand;
 
@@ -30,16 +31,21 @@ public class DataCommand extends AbstractCommand
 
 		if (!smtpState.getHasSender())
 		{
-			sendResponse(ioSession, "503 Error: need MAIL command");
+			sendResponse(ioSession, SMTPResponse.NEED_MAIL);
 			return;
 		}
 		else if (smtpState.getRecipientCount() == 0)
 		{
-			sendResponse(ioSession, "503 Error: need RCPT command");
+			sendResponse(ioSession, SMTPResponse.NEED_RCPT);
+			return;
+		}
+		else if (smtpState.isChunking() || smtpState.isBinaryBody())
+		{
+			sendResponse(ioSession, "503 Error: message must be sent with BDAT");
 			return;
 		}
 
 		smtpState.setDataMode(true);
-		sendResponse(ioSession, "354 End data with <CR><LF>.<CR><LF>");		
+		sendResponse(ioSession, SMTPResponse.START_DATA);		
 	}
 }
\ No newline at end of file
@@ -1,12 +1,17 @@
 package org.mailster.smtp.core.commands.impl;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.SMTPServerConfig;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.SMTPResponse;
 import org.mailster.smtp.core.SMTPState;
-import org.mailster.smtp.core.auth.AuthenticationHandler;
 import org.mailster.smtp.core.auth.impl.DummyAuthenticationHandler;
 import org.mailster.smtp.core.commands.AbstractCommand;
 
@@ -19,6 +24,13 @@ import org.mailster.smtp.core.commands.AbstractCommand;
  */
 public class EhloCommand extends AbstractCommand
 {
+	/** 
+	 * The last reply built for each configuration, as the endpoints of a 
+	 * server share this command but each has its own configuration.
+	 */
+	private final Map<SMTPServerConfig, EhloResponse> cache = 
+		Collections.synchronizedMap(new WeakHashMap<SMTPServerConfig, EhloResponse>());
+	
 	public EhloCommand()
 	{
 		super("EHLO", "The EHLO command posts the client hostname info to the server.\n"+
@@ -36,8 +48,8 @@ public class EhloCommand extends AbstractCommand
 	public void execute(String commandString, IoSession ioSession, SMTPContext ctx) 
 		throws IOException
 	{
-		String[] args = getArgs(commandString);
-		if (args.length < 2)
+		String remoteHost = getArg(commandString, 1);
+		if (remoteHost == null)
 		{
 			sendResponse(ioSession, "501 Syntax: EHLO hostname");
 			return;
@@ -51,47 +63,112 @@ public class EhloCommand extends AbstractCommand
 		//		250 8BITMIME
 
 		SMTPState smtpState = ctx.getSMTPState();
-		StringBuilder response = new StringBuilder();
 		if (!smtpState.getHasSeenHelo())
 		{
-			SMTPServerConfig cfg = ctx.getSMTPServerConfig();
-			
 			smtpState.setHasSeenHelo(true);
-			response.append("250-");
-			response.append(cfg.getHostName());
-			response.append("\r\n");
-			response.append("250-8BITMIME\r\n");
-
-			if (cfg.isTLSSupported() &&		
-					getCommandHandler().containsCommand("STARTTLS"))
-			{
-				response.append("250-STARTTLS\r\n");
-			}
-
-			if (getCommandHandler().containsCommand(AuthCommand.VERB))
-			{
-				getEhloString(ctx.getAuthenticationHandler(), response);
-			}
-			
-			response.append("250 Ok");
+			sendResponse(ioSession, getEhloResponse(ctx));
 		}
 		else
 		{
-			String remoteHost = args[1];
-			response.append("503 ");
-			response.append(remoteHost);
-			response.append(" Duplicate EHLO");
+			sendResponse(ioSession, "503 " + remoteHost + " Duplicate EHLO");
 		}
-		sendResponse(ioSession, response.toString());
 	}
 	
-	private void getEhloString(AuthenticationHandler handler, StringBuilder sb)
+	/**
+	 * Returns the list of the supported extensions. It is built once per 
+	 * configuration and only rebuilt when the settings it depends on change.
+	 */
+	private SMTPResponse getEhloResponse(SMTPContext ctx)
 	{
-		if (!(handler instanceof DummyAuthenticationHandler))
+		SMTPServerConfig cfg = ctx.getSMTPServerConfig();
+		boolean chunking = getCommandHandler().containsCommand(BdatCommand.VERB);
+		boolean tls = cfg.isTLSSupported() && !cfg.isImplicitTLS() &&
+						getCommandHandler().containsCommand("STARTTLS");
+		
+		List<String> mechanisms = null;
+		if (getCommandHandler().containsCommand(AuthCommand.VERB) &&
+				!(ctx.getAuthenticationHandler() instanceof DummyAuthenticationHandler))
+			mechanisms = ctx.getAuthenticationHandler().getAuthenticationMechanisms();
+		
+		EhloResponse r = cache.get(cfg);
+		if (r != null && r.matches(cfg, chunking, tls, mechanisms))
+			return r.response;
+		
+		StringBuilder response = new StringBuilder();
+		response.append("250-");
+		response.append(cfg.getHostName());
+		response.append("\r\n");
+		response.append("250-8BITMIME\r\n");
+		response.append("250-PIPELINING\r\n");
+		response.append("250-SIZE");
+		if (cfg.getMaxMessageSize() > 0)
+			response.append(' ').append(cfg.getMaxMessageSize());
+		response.append("\r\n");
+
+		if (chunking)
+		{
+			response.append("250-CHUNKING\r\n");
+			response.append("250-BINARYMIME\r\n");
+		}
+
+		if (tls)
+			response.append("250-STARTTLS\r\n");
+
+		if (cfg.isSmtpUTF8Supported())
+			response.append("250-SMTPUTF8\r\n");
+
+		if (mechanisms != null)
+			getEhloString(mechanisms, response);
+		
+		response.append("250 Ok");
+		
+		r = new EhloResponse(cfg, chunking, tls, mechanisms, 
+				new SMTPResponse(response.toString()));
+		cache.put(cfg, r);
+		return r.response;
+	}
+	
+	private void getEhloString(List<String> mechanisms, StringBuilder sb)
+	{
+        sb.append("250-").append(AuthCommand.VERB).append(' ');
+        getTokenizedString(sb, mechanisms, " ");
+        sb.append("\r\n");
+	}
+	
+	/**
+	 * An EHLO reply and the settings it was built for.
+	 */
+	private static final class EhloResponse
+	{
+		private final String hostName;
+		private final long maxMessageSize;
+		private final boolean chunking;
+		private final boolean tls;
+		private final boolean smtpUTF8;
+		private final List<String> mechanisms;
+		private final SMTPResponse response;
+		
+		private EhloResponse(SMTPServerConfig cfg, boolean chunking, boolean tls, 
+				List<String> mechanisms, SMTPResponse response)
+		{
+			this.hostName = cfg.getHostName();
+			this.maxMessageSize = cfg.getMaxMessageSize();
+			this.chunking = chunking;
+			this.tls = tls;
+			this.smtpUTF8 = cfg.isSmtpUTF8Supported();
+			this.mechanisms = mechanisms == null ? null : new ArrayList<String>(mechanisms);
+			this.response = response;
+		}
+		
+		private boolean matches(SMTPServerConfig cfg, boolean chunking, boolean tls, 
+				List<String> mechanisms)
 		{
-            sb.append("250-").append(AuthCommand.VERB).append(' ');
-            getTokenizedString(sb, handler.getAuthenticationMechanisms(), " ");
-            sb.append("\r\n");
+			return hostName.equals(cfg.getHostName()) 
+				&& maxMessageSize == cfg.getMaxMessageSize()
+				&& this.chunking == chunking && this.tls == tls
+				&& smtpUTF8 == cfg.isSmtpUTF8Supported()
+				&& (this.mechanisms == null ? mechanisms == null 
+						: this.mechanisms.equals(mechanisms));
 		}
 	}
-}
\ No newline at end of file
+}
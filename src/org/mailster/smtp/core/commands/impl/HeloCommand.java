@@ -31,8 +31,7 @@ public class HeloCommand extends AbstractCommand
 	public void execute(String commandString, IoSession ioSession, SMTPContext ctx) 
 		throws IOException
 	{
-		String[] args = getArgs(commandString);
-		if (args.length < 2)
+		if (getArgCount(commandString) < 2)
 		{
 			sendResponse(ioSession, "501 Syntax: HELO <hostname>");
 			return;
@@ -3,10 +3,13 @@ package org.mailster.smtp.core.commands.impl;
 import java.io.IOException;
 
 import org.apache.mina.core.session.IoSession;
+import org.mailster.smtp.SMTPServerConfig;
 import org.mailster.smtp.api.handler.RejectException;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.SMTPResponse;
 import org.mailster.smtp.core.SMTPState;
 import org.mailster.smtp.core.commands.AbstractCommand;
+import org.mailster.smtp.core.commands.PathParser;
 
 /**
  * The MAIL command implementation.
@@ -37,38 +40,111 @@ public class MailCommand extends AbstractCommand
 		}
 		else
 		{
-			if (commandString.trim().equals("MAIL FROM:"))
+			String args = getArgPredicate(commandString);
+			if (!args.regionMatches(true, 0, "FROM:", 0, 5))
+			{
+				sendResponse(ioSession, "501 Syntax: MAIL FROM: <address>  Error in parameters: \""
+								+ args + "\"");
+				return;
+			}
+			
+			if (args.length() == 5)
 			{
 				sendResponse(ioSession, "501 Syntax: MAIL FROM: <address>");
 				return;
 			}
 
-			String args = getArgPredicate(commandString);
-			if (!args.toUpperCase().startsWith("FROM:"))
+			SMTPServerConfig cfg = ctx.getSMTPServerConfig();
+			long path = PathParser.parseReversePath(args, 5, cfg.isSmtpUTF8Supported());
+			if (path == PathParser.INVALID)
 			{
-				sendResponse(ioSession, "501 Syntax: MAIL FROM: <address>  Error in parameters: \""
-								+ getArgPredicate(commandString) + "\"");
+				sendResponse(ioSession, "553 <" + extractEmailAddress(args, 5) + "> Invalid email address");
 				return;
 			}
-
-			String emailAddress = extractEmailAddress(args, 5);
-			if (isValidEmailAddress(emailAddress))
+			
+			int params = PathParser.getPathEnd(path);
+			if (!PathParser.isValidParameters(args, params, cfg.isSmtpUTF8Supported()))
 			{
-				try
-				{
-					ctx.getDeliveryHandler().from(emailAddress);
-					smtpState.setHasSender(true);
-					sendResponse(ioSession, "250 Ok");
-				}
-				catch (RejectException ex)
-				{
-					sendResponse(ioSession, ex.getMessage());
-				}
+				sendResponse(ioSession, "501 Syntax error in parameters");
+				return;
+			}
+			
+			boolean utf8 = PathParser.findParameter(args, params, "SMTPUTF8") >= 0;
+			if (utf8 && !cfg.isSmtpUTF8Supported())
+			{
+				sendResponse(ioSession, "555 SMTPUTF8 parameter not supported");
+				return;
 			}
-			else
+			
+			// Without the SMTPUTF8 parameter the address must be ASCII
+			if (!utf8 && cfg.isSmtpUTF8Supported() && 
+					PathParser.parseReversePath(args, 5, false) == PathParser.INVALID)
 			{
-				sendResponse(ioSession, "553 <" + emailAddress + "> Invalid email address");
+				sendResponse(ioSession, "553 <" + extractEmailAddress(args, 5) + "> Invalid email address");
+				return;
+			}
+			
+			// Per RFC 1870, reject the message before it is sent
+			long size = getDeclaredSize(args, params);
+			long maxSize = cfg.getMaxMessageSize();
+			if (size == -2)
+			{
+				sendResponse(ioSession, "501 Syntax: SIZE=<size>");
+				return;
 			}
+			else if (maxSize > 0 && size > maxSize)
+			{
+				sendResponse(ioSession, SMTPResponse.SIZE_EXCEEDED);
+				return;
+			}
+			
+			try
+			{
+				ctx.getDeliveryHandler().from(PathParser.getMailbox(args, path));
+				smtpState.setHasSender(true);
+				smtpState.setBinaryBody(isBinaryBody(args, params));
+				smtpState.setSmtpUTF8(utf8);
+				sendResponse(ioSession, SMTPResponse.OK);
+			}
+			catch (RejectException ex)
+			{
+				sendResponse(ioSession, ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the BODY=BINARYMIME parameter is set.
+	 */
+	private static boolean isBinaryBody(String args, int params)
+	{
+		int i = PathParser.findParameter(args, params, "BODY");
+		return i >= 0 && PathParser.getValueEnd(args, i) == i + 11 
+				&& args.regionMatches(true, i, "=BINARYMIME", 0, 11);
+	}
+
+	/**
+	 * Returns the message size declared with the SIZE parameter, -1 if 
+	 * there's none or -2 if it isn't valid.
+	 */
+	private static long getDeclaredSize(String args, int params)
+	{
+		int i = PathParser.findParameter(args, params, "SIZE");
+		if (i < 0)
+			return -1;
+		
+		int end = PathParser.getValueEnd(args, i);
+		if (i == end || args.charAt(i) != '=' || end - i == 1 || end - i > 19)
+			return -2;
+		
+		long size = 0;
+		for (i++; i < end; i++)
+		{
+			char c = args.charAt(i);
+			if (c < '0' || c > '9')
+				return -2;
+			size = size * 10 + c - '0';
 		}
+		return size;
 	}
 }
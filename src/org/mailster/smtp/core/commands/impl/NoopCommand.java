@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.SMTPResponse;
 import org.mailster.smtp.core.commands.AbstractCommand;
 
 /**
@@ -28,6 +29,6 @@ public class NoopCommand extends AbstractCommand
 	public void execute(String commandString, IoSession ioSession, SMTPContext ctx) 
 		throws IOException
 	{
-		sendResponse(ioSession, "250 Ok");
+		sendResponse(ioSession, SMTPResponse.OK);
 	}
 }
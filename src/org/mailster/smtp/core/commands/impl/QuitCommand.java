@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.SMTPResponse;
 import org.mailster.smtp.core.commands.AbstractCommand;
 
 /**
@@ -30,6 +31,6 @@ public class QuitCommand extends AbstractCommand
 		throws IOException
 	{
 		ctx.getSMTPState().quit();
-		sendResponse(ioSession, "221 Bye");		
+		sendResponse(ioSession, SMTPResponse.BYE);		
 	}
 }
@@ -5,8 +5,10 @@ import java.io.IOException;
 import org.apache.mina.core.session.IoSession;
 import org.mailster.smtp.api.handler.RejectException;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.SMTPResponse;
 import org.mailster.smtp.core.SMTPState;
 import org.mailster.smtp.core.commands.AbstractCommand;
+import org.mailster.smtp.core.commands.PathParser;
 
 /**
  * The RCPT command implementation.
@@ -18,9 +20,11 @@ import org.mailster.smtp.core.commands.AbstractCommand;
  */
 public class ReceiptCommand extends AbstractCommand
 {
+	public final static String VERB = "RCPT";
+	
 	public ReceiptCommand()
 	{
-		super("RCPT", "The RCPT command specifies the recipient. This command can be used\n" +
+		super(VERB, "The RCPT command specifies the recipient. This command can be used\n" +
 				"any number of times to specify multiple recipients.",
 				"TO: <recipient>\n recipient = the email address of the recipient of the message");
 	}
@@ -31,7 +35,7 @@ public class ReceiptCommand extends AbstractCommand
 		SMTPState smtpState = ctx.getSMTPState();
 		if (!smtpState.getHasSender())
 		{
-			sendResponse(ioSession, "503 Error: need MAIL command");
+			sendResponse(ioSession, SMTPResponse.NEED_MAIL);
 			return;
 		}
 
@@ -43,30 +47,56 @@ public class ReceiptCommand extends AbstractCommand
 		}
 
 		String args = getArgPredicate(commandString);
-		if (args.toUpperCase().startsWith("TO:"))
+		if (args.regionMatches(true, 0, "TO:", 0, 3))
 		{
-			String recipientAddress = extractEmailAddress(args, 3);
-			if (isValidEmailAddress(recipientAddress))
+			long path = PathParser.parseForwardPath(args, 3, smtpState.isSmtpUTF8());
+			if (path == PathParser.INVALID)
+			{
+				sendResponse(ioSession, "553 <" + extractEmailAddress(args, 3) + "> Invalid email address");
+			}
+			else if (!PathParser.isValidParameters(args, PathParser.getPathEnd(path), 
+					smtpState.isSmtpUTF8()))
+			{
+				sendResponse(ioSession, "501 Syntax error in parameters");
+			}
+			else
 			{
 				try
 				{
-					ctx.getDeliveryHandler().recipient(recipientAddress);
+					ctx.getDeliveryHandler().recipient(PathParser.getMailbox(args, path));
 					smtpState.addRecipient();
-					sendResponse(ioSession, "250 Ok");
+					sendResponse(ioSession, SMTPResponse.OK);
 				}
 				catch (RejectException ex)
 				{
 					sendResponse(ioSession, ex.getMessage());
 				}
 			}
-			else
-			{
-				sendResponse(ioSession, "553 <" + recipientAddress + "> Invalid email address");
-			}
 		}
-    else
-    {
-      sendResponse(ioSession, "501 Syntax: RCPT TO: <address> Error in parameters: \"" + args + "\"");
-    }
+		else
+		{
+			sendResponse(ioSession, "501 Syntax: RCPT TO: <address> Error in parameters: \"" + args + "\"");
+		}
+	}
+	
+	/**
+	 * Returns the recipient of a RCPT command line or null if the line isn't
+	 * a valid RCPT command.
+	 */
+	public static String getRecipient(String commandString, boolean utf8)
+	{
+		if (!commandString.regionMatches(true, 0, VERB, 0, 4))
+			return null;
+		
+		String args = commandString.substring(4).trim();
+		if (!args.regionMatches(true, 0, "TO:", 0, 3))
+			return null;
+		
+		long path = PathParser.parseForwardPath(args, 3, utf8);
+		if (path == PathParser.INVALID 
+				|| !PathParser.isValidParameters(args, PathParser.getPathEnd(path), utf8))
+			return null;
+		
+		return PathParser.getMailbox(args, path);
 	}
 }
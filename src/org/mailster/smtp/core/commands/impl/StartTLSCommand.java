@@ -2,9 +2,11 @@ package org.mailster.smtp.core.commands.impl;
 
 import java.io.IOException;
 
+import org.apache.mina.core.filterchain.IoFilterChain;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.ssl.SslFilter;
 import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.TLSHandshakeFilter;
 import org.mailster.smtp.core.commands.AbstractCommand;
 import org.mailster.smtp.util.DummySSLSocketFactory;
 import org.slf4j.Logger;
@@ -40,7 +42,8 @@ public class StartTLSCommand extends AbstractCommand
 	}
 
 	/**
-	 * Ability to override the SSLFilter
+	 * Ability to override the SSLFilter used when the server has no 
+	 * SSL context configured.
 	 * @param filter
 	 */
 	public static void setSSLFilter(SslFilter filter)
@@ -60,16 +63,48 @@ public class StartTLSCommand extends AbstractCommand
 			return;
 		}
 
+		SslFilter filter = ctx.getSslFilter();
+		if (filter == null)
+			filter = sslFilter;
+
 		try
 		{
-			if (sslFilter.isSslStarted(ioSession))
+			if (filter.isSslStarted(ioSession))
 			{
 				sendResponse(ioSession, "454 TLS not available due to temporary reason: TLS already active");
 				return;
 			}
 
-			// Insert SSLFilter to get ready for handshaking
-			ioSession.getFilterChain().addFirst("SSLfilter", sslFilter);
+			// Insert SSLFilter to get ready for handshaking, behind the
+			// filter scheduling the handshakes if any
+			IoFilterChain chain = ioSession.getFilterChain();
+			TLSHandshakeFilter scheduler = (TLSHandshakeFilter) chain.get(TLSHandshakeFilter.NAME);
+			
+			if (scheduler == null)
+				chain.addFirst(TLSHandshakeFilter.SSL_FILTER, filter);
+			else
+			{
+				if (!scheduler.startHandshake(ioSession))
+				{
+					sendResponse(ioSession, "454 TLS not available due to temporary reason: too many handshakes");
+					return;
+				}
+
+				boolean added = false;
+				try
+				{
+					chain.addAfter(TLSHandshakeFilter.NAME, TLSHandshakeFilter.SSL_FILTER, filter);
+					added = true;
+				}
+				finally
+				{
+					if (!added)
+						scheduler.cancelHandshake(ioSession);
+				}
+			}
+
+			// The commands pipelined after STARTTLS are discarded
+			ctx.startTLS();
 
 			// Disable encryption temporarily.
 			// This attribute will be removed by SSLFilter
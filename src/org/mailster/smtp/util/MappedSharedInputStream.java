@@ -0,0 +1,171 @@
+package org.mailster.smtp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A <code>SharedInputStream</code> that maps a temporary file in memory
+ * once and reads it through {@link ByteBuffer} views. Each stream returned
+ * by {@link #newStream(long, long)} keeps its own position on the shared
+ * mapping, so related streams neither lock nor seek and all share the
+ * same page cache.
+ *
+ * As with {@link SharedTmpFileInputStream}, the underlying file is deleted
+ * when the last reference is closed or when JVM exits normally.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class MappedSharedInputStream extends SharedByteBufferInputStream
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MappedSharedInputStream.class);
+
+	/** Files are mapped in regions of at most this size. */
+	private static final long MAX_REGION_SIZE = 1 << 30;
+
+	/**
+	 * A shared class that keeps track of the references
+	 * to a particular file so it can be deleted when the
+	 * last reference is gone.
+	 */
+	static class SharedMapping
+	{
+		private int cnt;
+		private final File sharedFile;
+
+		SharedMapping(File file)
+		{
+			this.sharedFile = file;
+
+			// Always mark file to be deleted on exit in case streams
+			// are not closed properly.
+			this.sharedFile.deleteOnExit();
+		}
+
+		public synchronized void open()
+		{
+			cnt++;
+		}
+
+		public synchronized void close()
+		{
+			if (cnt > 0 && --cnt <= 0)
+			{
+				// Some platforms refuse to delete a file while it is mapped,
+				// deleteOnExit will then take care of it.
+				if (!sharedFile.delete() && sharedFile.exists())
+					LOG.debug("Could not delete the mapped file {}, deleting it on exit", sharedFile);
+			}
+		}
+	}
+
+	private SharedMapping sm;
+
+	/**
+	 * Creates a <code>MappedSharedInputStream</code> for the file.
+	 */
+	public MappedSharedInputStream(File file) throws IOException
+	{
+		this(file, false);
+	}
+
+	/**
+	 * Creates a <code>MappedSharedInputStream</code> for the file.
+	 * 
+	 * @param canonical true if the file has already been dot-unstuffed
+	 *        and stripped of the SMTP terminator
+	 */
+	public MappedSharedInputStream(File file, boolean canonical) throws IOException
+	{
+		super(canonical, map(file));
+		this.sm = new SharedMapping(file);
+		this.sm.open();
+	}
+
+	/**
+	 * Used internally by the <code>newStream</code> method.
+	 */
+	private MappedSharedInputStream(MappedSharedInputStream parent,
+			long start, long end)
+	{
+		super(parent, start, end);
+		this.sm = parent.sm;
+		this.sm.open();
+	}
+
+	/**
+	 * Maps the whole file in read only mode. The channel is closed as soon
+	 * as the file is mapped since mappings remain valid until they are
+	 * garbage collected.
+	 */
+	private static ByteBuffer[] map(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			int count = (int) Math.max(1, (size + MAX_REGION_SIZE - 1) / MAX_REGION_SIZE);
+			ByteBuffer[] regions = new ByteBuffer[count];
+
+			for (int i = 0; i < count; i++)
+			{
+				long pos = i * MAX_REGION_SIZE;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+						Math.min(MAX_REGION_SIZE, size - pos));
+			}
+
+			return regions;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Closes this input stream and releases its reference on the
+	 * underlying file.
+	 */
+	public void close() throws IOException
+	{
+		if (sm == null)
+			return;
+		sm.close();
+		sm = null;
+	}
+
+	/**
+	 * Return a new InputStream representing a subset of the data
+	 * from this InputStream, starting at <code>start</code> (inclusive)
+	 * up to <code>end</code> (exclusive).  <code>start</code> must be
+	 * non-negative.  If <code>end</code> is -1, the new stream ends
+	 * at the same place as this stream.
+	 */
+	public InputStream newStream(long start, long end)
+	{
+		if (sm == null)
+			throw new RuntimeException("Stream closed");
+		if (start < 0)
+			throw new IllegalArgumentException("start < 0");
+		if (end == -1)
+			end = this.end - this.start;
+
+		return new MappedSharedInputStream(this, this.start + start, this.start + end);
+	}
+
+	/**
+	 * Force this stream to close.
+	 */
+	protected void finalize() throws Throwable
+	{
+		super.finalize();
+		close();
+	}
+}
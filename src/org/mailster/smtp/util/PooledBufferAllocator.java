@@ -0,0 +1,404 @@
+package org.mailster.smtp.util;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.mina.core.buffer.AbstractIoBuffer;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link IoBufferAllocator} recycling the buffers released with
+ * {@link IoBuffer#free()}.
+ *
+ * Buffers are pooled by size class, the powers of two from
+ * {@link #MIN_POOLED_SIZE} to {@link #MAX_POOLED_SIZE}. Each thread keeps a
+ * few buffers of each class, so that the I/O threads which allocate and
+ * free most of the buffers don't contend on the shared pools. Larger
+ * buffers are not pooled.
+ *
+ * Freeing a buffer hands it back to the allocator: neither it nor the
+ * buffers derived from it may be used afterwards. When leak detection is
+ * on, the buffers garbage collected without having been freed are logged
+ * along with the place they were allocated.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class PooledBufferAllocator implements IoBufferAllocator
+{
+	private static final Logger LOG = LoggerFactory.getLogger(PooledBufferAllocator.class);
+
+	public final static int MIN_POOLED_SIZE = 64;
+	public final static int MAX_POOLED_SIZE = 65536;
+
+	/** The number of size classes. */
+	private final static int CLASSES =
+		Integer.numberOfTrailingZeros(MAX_POOLED_SIZE / MIN_POOLED_SIZE) + 1;
+
+	/** The number of buffers of each class kept by each thread. */
+	private final static int THREAD_CACHE_SIZE = 16;
+
+	/**
+	 * The buffers kept by a thread, heap buffers first then direct ones.
+	 */
+	private final static class ThreadCache
+	{
+		private final ByteBuffer[][] buffers = new ByteBuffer[CLASSES * 2][THREAD_CACHE_SIZE];
+		private final int[] counts = new int[CLASSES * 2];
+	}
+
+	/**
+	 * Tracks a buffer until it is freed.
+	 */
+	private final static class Leak extends PhantomReference<PooledBuffer>
+	{
+		private final int capacity;
+		private final Throwable site;
+
+		private Leak(PooledBuffer b, ReferenceQueue<PooledBuffer> queue)
+		{
+			super(b, queue);
+			this.capacity = b.capacity();
+			this.site = new Throwable("Buffer allocated here");
+		}
+	}
+
+	private final int maxPooledBuffers;
+	private final boolean leakDetection;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final ConcurrentLinkedQueue<ByteBuffer>[] pools = new ConcurrentLinkedQueue[CLASSES * 2];
+	private final AtomicInteger[] poolSizes = new AtomicInteger[CLASSES * 2];
+
+	private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+		protected ThreadCache initialValue()
+		{
+			return new ThreadCache();
+		}
+	};
+
+	private final Set<Leak> trackers = ConcurrentHashMap.newKeySet();
+	private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<PooledBuffer>();
+
+	private final LongAdder allocations = new LongAdder();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder leaks = new LongAdder();
+
+	/**
+	 * Creates an allocator keeping up to 256 buffers of each class in the
+	 * shared pools, without leak detection.
+	 */
+	public PooledBufferAllocator()
+	{
+		this(256, false);
+	}
+
+	/**
+	 * Creates an allocator.
+	 *
+	 * @param maxPooledBuffers the maximum number of buffers of each class
+	 *        kept in the shared pools
+	 * @param leakDetection true to log the buffers which are not freed
+	 */
+	public PooledBufferAllocator(int maxPooledBuffers, boolean leakDetection)
+	{
+		if (maxPooledBuffers < 0)
+			throw new IllegalArgumentException("Argument maxPooledBuffers can't be negative");
+
+		this.maxPooledBuffers = maxPooledBuffers;
+		this.leakDetection = leakDetection;
+
+		for (int i = 0; i < pools.length; i++)
+		{
+			pools[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			poolSizes[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns the pool index of the buffers of <code>capacity</code> bytes
+	 * or -1 if they are not pooled.
+	 */
+	private static int index(int capacity, boolean direct)
+	{
+		if (capacity > MAX_POOLED_SIZE)
+			return -1;
+
+		int c = Math.max(capacity, MIN_POOLED_SIZE);
+		int sizeClass = 32 - Integer.numberOfLeadingZeros(c - 1)
+			- Integer.numberOfTrailingZeros(MIN_POOLED_SIZE);
+
+		return direct ? CLASSES + sizeClass : sizeClass;
+	}
+
+	private static int size(int index)
+	{
+		return MIN_POOLED_SIZE << (index % CLASSES);
+	}
+
+	/**
+	 * Returns true if the buffer can be handed back to the pools.
+	 */
+	private static boolean isPoolable(ByteBuffer b)
+	{
+		int i = index(b.capacity(), b.isDirect());
+		return i >= 0 && size(i) == b.capacity() && !b.isReadOnly();
+	}
+
+	public IoBuffer allocate(int capacity, boolean direct)
+	{
+		ByteBuffer nioBuffer = allocateNioBuffer(capacity, direct);
+		PooledBuffer b = new PooledBuffer(nioBuffer, isPoolable(nioBuffer));
+
+		if (leakDetection && b.pooled)
+		{
+			reportLeaks();
+			b.leak = new Leak(b, collected);
+			trackers.add(b.leak);
+		}
+		return b;
+	}
+
+	public ByteBuffer allocateNioBuffer(int capacity, boolean direct)
+	{
+		allocations.increment();
+
+		int i = index(capacity, direct);
+		if (i < 0)
+			return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+
+		ByteBuffer b = poll(i);
+		if (b == null)
+			b = direct ? ByteBuffer.allocateDirect(size(i)) : ByteBuffer.allocate(size(i));
+		else
+		{
+			hits.increment();
+			b.clear();
+			b.order(ByteOrder.BIG_ENDIAN);
+		}
+
+		b.limit(capacity);
+		return b;
+	}
+
+	public IoBuffer wrap(ByteBuffer nioBuffer)
+	{
+		return new PooledBuffer(nioBuffer, false);
+	}
+
+	private ByteBuffer poll(int i)
+	{
+		ThreadCache cache = caches.get();
+		int n = cache.counts[i];
+		if (n > 0)
+		{
+			ByteBuffer b = cache.buffers[i][--n];
+			cache.buffers[i][n] = null;
+			cache.counts[i] = n;
+			return b;
+		}
+
+		ByteBuffer b = pools[i].poll();
+		if (b != null)
+			poolSizes[i].decrementAndGet();
+		return b;
+	}
+
+	private void release(ByteBuffer b)
+	{
+		int i = index(b.capacity(), b.isDirect());
+
+		ThreadCache cache = caches.get();
+		int n = cache.counts[i];
+		if (n < THREAD_CACHE_SIZE)
+		{
+			cache.buffers[i][n] = b;
+			cache.counts[i] = n + 1;
+			return;
+		}
+
+		if (poolSizes[i].incrementAndGet() <= maxPooledBuffers)
+			pools[i].offer(b);
+		else
+			poolSizes[i].decrementAndGet();
+	}
+
+	/**
+	 * Logs the buffers garbage collected without having been freed.
+	 */
+	private void reportLeaks()
+	{
+		for (Reference<? extends PooledBuffer> r; (r = collected.poll()) != null;)
+		{
+			Leak leak = (Leak) r;
+			if (trackers.remove(leak))
+			{
+				leaks.increment();
+				LOG.warn("A buffer of " + leak.capacity
+						+ " bytes was garbage collected without being freed", leak.site);
+			}
+		}
+	}
+
+	/**
+	 * Empties the shared pools. The buffers kept by the threads are left
+	 * to them.
+	 */
+	public void dispose()
+	{
+		for (int i = 0; i < pools.length; i++)
+		{
+			pools[i].clear();
+			poolSizes[i].set(0);
+		}
+	}
+
+	/**
+	 * Returns the number of buffers allocated.
+	 */
+	public long getAllocations()
+	{
+		return allocations.sum();
+	}
+
+	/**
+	 * Returns the number of buffers taken from the pools.
+	 */
+	public long getPoolHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of buffers found garbage collected without having
+	 * been freed. Always 0 if leak detection is off.
+	 */
+	public long getLeaks()
+	{
+		reportLeaks();
+		return leaks.sum();
+	}
+
+	public boolean isLeakDetection()
+	{
+		return leakDetection;
+	}
+
+	public String toString()
+	{
+		return "PooledBufferAllocator[allocations=" + getAllocations()
+			+ ", hits=" + getPoolHits() + ", leaks=" + getLeaks() + "]";
+	}
+
+	/**
+	 * A buffer handed back to the pools when freed.
+	 */
+	private class PooledBuffer extends AbstractIoBuffer
+	{
+		private ByteBuffer buf;
+
+		/** True if the buffer goes back to the pools when freed. */
+		private boolean pooled;
+
+		/** The buffer this one derives from, null if none. */
+		private final PooledBuffer root;
+
+		private Leak leak;
+		private boolean freed = false;
+
+		private PooledBuffer(ByteBuffer buf, boolean pooled)
+		{
+			super(PooledBufferAllocator.this, buf.capacity());
+			this.buf = buf;
+			this.pooled = pooled;
+			this.root = null;
+		}
+
+		private PooledBuffer(PooledBuffer parent, ByteBuffer buf)
+		{
+			super(parent);
+			this.buf = buf;
+			this.pooled = false;
+			this.root = parent.root == null ? parent : parent.root;
+		}
+
+		public ByteBuffer buf()
+		{
+			return buf;
+		}
+
+		/**
+		 * Called when the buffer is expanded or shrunk.
+		 */
+		protected void buf(ByteBuffer newBuf)
+		{
+			ByteBuffer old = buf;
+			buf = newBuf;
+
+			if (pooled)
+				release(old);
+			pooled = root == null && isPoolable(newBuf);
+		}
+
+		protected IoBuffer duplicate0()
+		{
+			return new PooledBuffer(this, buf.duplicate());
+		}
+
+		protected IoBuffer slice0()
+		{
+			return new PooledBuffer(this, buf.slice());
+		}
+
+		protected IoBuffer asReadOnlyBuffer0()
+		{
+			return new PooledBuffer(this, buf.asReadOnlyBuffer());
+		}
+
+		public byte[] array()
+		{
+			return buf.array();
+		}
+
+		public int arrayOffset()
+		{
+			return buf.arrayOffset();
+		}
+
+		public boolean hasArray()
+		{
+			return buf.hasArray();
+		}
+
+		/**
+		 * Hands the buffer back to the pools. Freeing a derived buffer
+		 * does nothing.
+		 */
+		public void free()
+		{
+			if (root != null || freed)
+				return;
+
+			freed = true;
+			if (leak != null)
+			{
+				trackers.remove(leak);
+				leak.clear();
+				leak = null;
+			}
+
+			if (pooled)
+				release(buf);
+		}
+	}
+}
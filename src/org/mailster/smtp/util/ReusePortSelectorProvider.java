@@ -0,0 +1,147 @@
+package org.mailster.smtp.util;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.AbstractSelector;
+import java.nio.channels.spi.SelectorProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SelectorProvider} opening server sockets with the SO_REUSEPORT
+ * option set, so that several acceptors can bind the same address and the
+ * kernel balances the incoming connections between them.
+ *
+ * The option is looked up by reflection as it only exists since JDK 9. It
+ * is also missing on some platforms, see {@link #isSupported()}.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class ReusePortSelectorProvider extends SelectorProvider
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ReusePortSelectorProvider.class);
+
+	private static final SocketOption<Boolean> SO_REUSEPORT = lookupOption();
+
+	private static volatile Boolean supported;
+
+	private final SelectorProvider delegate;
+
+	/**
+	 * Creates a provider wrapping the default one.
+	 */
+	public ReusePortSelectorProvider()
+	{
+		this(SelectorProvider.provider());
+	}
+
+	public ReusePortSelectorProvider(SelectorProvider delegate)
+	{
+		if (delegate == null)
+			throw new NullPointerException("delegate");
+		this.delegate = delegate;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> lookupOption()
+	{
+		try
+		{
+			return (SocketOption<Boolean>) StandardSocketOptions.class.
+				getField("SO_REUSEPORT").get(null);
+		}
+		catch (Exception ex)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if both the runtime and the platform support the
+	 * SO_REUSEPORT option on server sockets.
+	 */
+	public static boolean isSupported()
+	{
+		Boolean b = supported;
+		if (b == null)
+		{
+			b = Boolean.FALSE;
+			if (SO_REUSEPORT != null)
+			{
+				try
+				{
+					ServerSocketChannel channel = ServerSocketChannel.open();
+					try
+					{
+						b = channel.supportedOptions().contains(SO_REUSEPORT);
+					}
+					finally
+					{
+						channel.close();
+					}
+				}
+				catch (IOException ex)
+				{
+					LOG.debug("Unable to check the SO_REUSEPORT support", ex);
+				}
+			}
+			supported = b;
+		}
+		return b;
+	}
+
+	/**
+	 * Opens a server socket channel with SO_REUSEPORT set.
+	 *
+	 * @throws IOException if the option is not supported
+	 */
+	public ServerSocketChannel openServerSocketChannel() throws IOException
+	{
+		if (!isSupported())
+			throw new IOException("SO_REUSEPORT is not supported by this runtime or platform");
+
+		ServerSocketChannel channel = delegate.openServerSocketChannel();
+		try
+		{
+			channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+		}
+		catch (IOException ex)
+		{
+			channel.close();
+			throw ex;
+		}
+		return channel;
+	}
+
+	public DatagramChannel openDatagramChannel() throws IOException
+	{
+		return delegate.openDatagramChannel();
+	}
+
+	public DatagramChannel openDatagramChannel(ProtocolFamily family) throws IOException
+	{
+		return delegate.openDatagramChannel(family);
+	}
+
+	public Pipe openPipe() throws IOException
+	{
+		return delegate.openPipe();
+	}
+
+	public AbstractSelector openSelector() throws IOException
+	{
+		return delegate.openSelector();
+	}
+
+	public SocketChannel openSocketChannel() throws IOException
+	{
+		return delegate.openSocketChannel();
+	}
+}
@@ -0,0 +1,306 @@
+package org.mailster.smtp.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+/**
+ * Reads a raw SMTP DATA transfer, removing the dot-stuffing and ending the
+ * stream at the first occurrence of the terminating sequence. Produces the
+ * same output as a {@link DotUnstuffingInputStream} wrapping a
+ * {@link CharTerminatedInputStream} but processes whole arrays in a single
+ * pass: runs of bytes that can't start a terminator nor follow a line break
+ * are copied in bulk.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SMTPBodyInputStream extends FilterInputStream
+{
+	private static final int BUFFER_SIZE = 8192;
+
+	private final byte[] terminator;
+
+	/**
+	 * fallback[i] is the length of the longest proper prefix of the
+	 * terminator that is also a suffix of terminator[0..i].
+	 */
+	private final int[] fallback;
+
+	/** The raw bytes read from the wrapped stream. */
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int bufPos = 0;
+	private int bufLen = 0;
+
+	/** The number of terminator bytes matched and held back. */
+	private int matchCount = 0;
+
+	/**
+	 * Unstuffed bytes that didn't fit in the caller's array. At most
+	 * a terminator length can be released at once.
+	 */
+	private final byte[] held;
+	private int heldPos = 0;
+	private int heldLen = 0;
+
+	/** The last two bytes returned, -1 if none. */
+	private int last0 = -1;
+	private int last1 = -1;
+
+	/** True if a stuffed dot has just been removed. */
+	private boolean afterDot = false;
+
+	private boolean endFound = false;
+	private boolean eof = false;
+
+	/**
+	 * Used to return a single byte from the {@link #read()} method.
+	 */
+	private final byte[] single = new byte[1];
+
+	/**
+	 * Creates a stream using the standard SMTP terminator.
+	 */
+	public SMTPBodyInputStream(InputStream in)
+	{
+		this(in, SharedStreamUtils.SMTP_TERMINATOR);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the terminator array is null or empty
+	 */
+	public SMTPBodyInputStream(InputStream in, char[] terminator)
+	{
+		super(in);
+
+		if (terminator == null || terminator.length == 0)
+			throw new IllegalArgumentException("The terminating character array cannot be null or empty.");
+
+		this.terminator = new byte[terminator.length];
+		for (int i = 0; i < terminator.length; i++)
+			this.terminator[i] = (byte) terminator[i];
+
+		this.fallback = new int[terminator.length];
+		for (int i = 1, k = 0; i < terminator.length; i++)
+		{
+			while (k > 0 && this.terminator[i] != this.terminator[k])
+				k = fallback[k - 1];
+			if (this.terminator[i] == this.terminator[k])
+				k++;
+			fallback[i] = k;
+		}
+
+		this.held = new byte[terminator.length];
+	}
+
+	public int read() throws IOException
+	{
+		int n;
+		do
+			n = read(single, 0, 1);
+		while (n == 0);
+
+		return n < 0 ? -1 : single[0] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if ((off | len | (off + len) | (b.length - (off + len))) < 0)
+			throw new IndexOutOfBoundsException();
+
+		if (len == 0)
+			return 0;
+
+		int o = off;
+		int end = off + len;
+
+		o = drain(b, o, end);
+
+		while (o < end && !endFound)
+		{
+			if (bufPos == bufLen)
+			{
+				if (o > off)
+					break;
+
+				if (!fill())
+				{
+					o = drain(b, o, end);
+					if (o > off)
+						break;
+					throw new ProtocolException("pre-mature end of data");
+				}
+			}
+
+			if (matchCount == 0 && !afterDot && !(last0 == '\r' && last1 == '\n'))
+			{
+				// Bulk copy the bytes up to the next terminator candidate
+				int start = bufPos;
+				int max = Math.min(bufLen, start + (end - o));
+				int i = start;
+				byte first = terminator[0];
+				while (i < max && buf[i] != first && buf[i] != '\r')
+					i++;
+
+				int n = i - start;
+				if (n > 0)
+				{
+					System.arraycopy(buf, start, b, o, n);
+					o += n;
+					bufPos = i;
+					if (n >= 2)
+						last0 = buf[i - 2] & 0xff;
+					else
+						last0 = last1;
+					last1 = buf[i - 1] & 0xff;
+					continue;
+				}
+			}
+
+			o = process(buf[bufPos++], b, o, end);
+		}
+
+		if (o == off && endFound)
+			return -1;
+
+		return o - off;
+	}
+
+	/**
+	 * Copies the held bytes to the caller's array.
+	 */
+	private int drain(byte[] b, int o, int end)
+	{
+		while (heldPos < heldLen && o < end)
+			b[o++] = held[heldPos++];
+
+		if (heldPos == heldLen)
+			heldPos = heldLen = 0;
+
+		return o;
+	}
+
+	/**
+	 * Reads more raw bytes. Bytes following the terminator are never read
+	 * because the stream is expected to end with it.
+	 * 
+	 * @return false if the end of the wrapped stream has been reached
+	 */
+	private boolean fill() throws IOException
+	{
+		if (eof)
+			return false;
+
+		int n = in.read(buf, 0, buf.length);
+		if (n < 0)
+		{
+			eof = true;
+
+			// Release the held back bytes, the terminator can't be matched
+			int count = matchCount;
+			matchCount = 0;
+			for (int i = 0; i < count; i++)
+				unstuff(terminator[i], null, 0, 0);
+
+			return false;
+		}
+
+		bufPos = 0;
+		bufLen = n;
+		return true;
+	}
+
+	/**
+	 * Feeds a raw byte to the terminator matcher and unstuffs the bytes
+	 * it releases.
+	 */
+	private int process(byte c, byte[] b, int o, int end)
+	{
+		int m = matchCount;
+		int k = m;
+		while (k > 0 && c != terminator[k])
+			k = fallback[k - 1];
+		if (c == terminator[k])
+			k++;
+
+		if (k == terminator.length)
+		{
+			endFound = true;
+			matchCount = 0;
+			return o;
+		}
+
+		// Release the bytes that can no longer start a terminator
+		int released = m + 1 - k;
+		matchCount = k;
+		for (int i = 0; i < released; i++)
+		{
+			byte x = i < m ? terminator[i] : c;
+			o = unstuff(x, b, o, end);
+		}
+
+		return o;
+	}
+
+	/**
+	 * Removes a stuffed dot, the byte is stored in the held array if
+	 * there is no room left in the caller's array.
+	 */
+	private int unstuff(byte x, byte[] b, int o, int end)
+	{
+		if (!afterDot && x == '.' && last0 == '\r' && last1 == '\n')
+		{
+			// skip this '.' because it should have been stuffed
+			afterDot = true;
+			return o;
+		}
+
+		afterDot = false;
+		last0 = last1;
+		last1 = x & 0xff;
+
+		if (o < end)
+			b[o++] = x;
+		else
+			held[heldLen++] = x;
+
+		return o;
+	}
+
+	public int available() throws IOException
+	{
+		return heldLen - heldPos;
+	}
+
+	public boolean markSupported()
+	{
+		return false;
+	}
+
+	public synchronized void mark(int readlimit)
+	{
+	}
+
+	public synchronized void reset() throws IOException
+	{
+		throw new IOException("mark/reset not supported");
+	}
+
+	public long skip(long n) throws IOException
+	{
+		if (n <= 0)
+			return 0;
+
+		byte[] skipBuf = new byte[(int) Math.min(BUFFER_SIZE, n)];
+		long remaining = n;
+		while (remaining > 0)
+		{
+			int r = read(skipBuf, 0, (int) Math.min(skipBuf.length, remaining));
+			if (r < 0)
+				break;
+			remaining -= r;
+		}
+
+		return n - remaining;
+	}
+}
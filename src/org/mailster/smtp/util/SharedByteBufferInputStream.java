@@ -0,0 +1,243 @@
+package org.mailster.smtp.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * A <code>SharedInputStream</code> that reads its data from a chain of
+ * {@link ByteBuffer} segments without ever copying them into a single
+ * array. Streams returned by {@link #newStream(long, long)} share the
+ * same segments but keep their own read position, so they can be read
+ * concurrently.
+ *
+ * The segments must not be modified once the stream has been created.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SharedByteBufferInputStream extends InputStream implements SharedInputStream
+{
+	/**
+	 * The data segments, each one readable from index 0 to its limit.
+	 * Shared by all related streams.
+	 */
+	private final ByteBuffer[] segments;
+
+	/**
+	 * offsets[i] is the position of the first byte of segments[i] in the
+	 * whole chain. The last element holds the total length of the chain.
+	 */
+	private final long[] offsets;
+
+	/** The position in the chain of the first byte of this stream. */
+	protected final long start;
+
+	/** The position in the chain following the last byte of this stream. */
+	protected final long end;
+
+	/** The position in the chain of the next byte to read. */
+	protected long pos;
+
+	/** The marked position in the chain. */
+	protected long mark;
+
+	/**
+	 * True if the data has already been dot-unstuffed and doesn't
+	 * include the SMTP terminator.
+	 */
+	private final boolean canonical;
+
+	/** The index of the segment holding the next byte to read. */
+	private int index = -1;
+
+	/** A private view of the current segment. */
+	private ByteBuffer current;
+
+	/**
+	 * Creates a stream reading the remaining bytes of each buffer.
+	 * Buffers positions and limits are left untouched.
+	 */
+	public SharedByteBufferInputStream(ByteBuffer... buffers)
+	{
+		this(false, buffers);
+	}
+
+	/**
+	 * Creates a stream reading the remaining bytes of each buffer.
+	 * 
+	 * @param canonical true if the data has already been dot-unstuffed
+	 *        and stripped of the SMTP terminator
+	 */
+	public SharedByteBufferInputStream(boolean canonical, ByteBuffer... buffers)
+	{
+		this.canonical = canonical;
+		this.segments = new ByteBuffer[buffers.length];
+		this.offsets = new long[buffers.length + 1];
+
+		long len = 0;
+		for (int i = 0; i < buffers.length; i++)
+		{
+			segments[i] = buffers[i].slice();
+			offsets[i] = len;
+			len += segments[i].limit();
+		}
+		offsets[buffers.length] = len;
+
+		this.start = 0;
+		this.end = len;
+		this.pos = 0;
+		this.mark = 0;
+	}
+
+	/**
+	 * Used internally by the <code>newStream</code> method.
+	 */
+	protected SharedByteBufferInputStream(SharedByteBufferInputStream parent,
+			long start, long end)
+	{
+		this.canonical = parent.canonical;
+		this.segments = parent.segments;
+		this.offsets = parent.offsets;
+		this.start = start;
+		this.end = end;
+		this.pos = start;
+		this.mark = start;
+	}
+
+	/**
+	 * Positions the current segment view on the next byte to read.
+	 */
+	private ByteBuffer seek()
+	{
+		if (index < 0 || pos < offsets[index] || pos >= offsets[index + 1])
+		{
+			int i = Arrays.binarySearch(offsets, pos);
+
+			// Skip empty segments
+			if (i >= 0)
+				while (offsets[i + 1] == pos)
+					i++;
+			else
+				i = -i - 2;
+
+			index = i;
+			current = segments[i].duplicate();
+		}
+
+		current.position((int) (pos - offsets[index]));
+		return current;
+	}
+
+	public int read() throws IOException
+	{
+		if (pos >= end)
+			return -1;
+
+		int b = seek().get() & 0xff;
+		pos++;
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if ((off | len | (off + len) | (b.length - (off + len))) < 0)
+			throw new IndexOutOfBoundsException();
+
+		if (len == 0)
+			return 0;
+
+		if (pos >= end)
+			return -1;
+
+		int total = (int) Math.min(len, end - pos);
+		int n = 0;
+		while (n < total)
+		{
+			ByteBuffer bb = seek();
+			int cnt = Math.min(bb.remaining(), total - n);
+			bb.get(b, off + n, cnt);
+			pos += cnt;
+			n += cnt;
+		}
+
+		return n;
+	}
+
+	public long skip(long n) throws IOException
+	{
+		if (n <= 0)
+			return 0;
+
+		long skipped = Math.min(n, end - pos);
+		pos += skipped;
+		return skipped;
+	}
+
+	public int available() throws IOException
+	{
+		return (int) Math.min(Integer.MAX_VALUE, end - pos);
+	}
+
+	public boolean markSupported()
+	{
+		return true;
+	}
+
+	public void mark(int readlimit)
+	{
+		mark = pos;
+	}
+
+	public void reset() throws IOException
+	{
+		pos = mark;
+	}
+
+	/**
+	 * Return the current position in the InputStream, as an
+	 * offset from the beginning of the InputStream.
+	 */
+	public long getPosition()
+	{
+		return pos - start;
+	}
+
+	/**
+	 * Returns the number of bytes of this stream.
+	 */
+	public long length()
+	{
+		return end - start;
+	}
+
+	/**
+	 * Returns true if the data has already been dot-unstuffed and
+	 * doesn't include the SMTP terminator.
+	 */
+	public boolean isCanonical()
+	{
+		return canonical;
+	}
+
+	/**
+	 * Return a new InputStream representing a subset of the data
+	 * from this InputStream, starting at <code>start</code> (inclusive)
+	 * up to <code>end</code> (exclusive).  <code>start</code> must be
+	 * non-negative.  If <code>end</code> is -1, the new stream ends
+	 * at the same place as this stream.
+	 */
+	public InputStream newStream(long start, long end)
+	{
+		if (start < 0)
+			throw new IllegalArgumentException("start < 0");
+
+		if (end == -1)
+			end = this.end - this.start;
+
+		return new SharedByteBufferInputStream(this,
+				this.start + start, this.start + end);
+	}
+}
@@ -2,7 +2,7 @@ package org.mailster.smtp.util;
 
 import java.io.InputStream;
 
-import javax.mail.util.SharedByteArrayInputStream;
+import javax.mail.internet.SharedInputStream;
 
 
 /**
@@ -27,30 +27,41 @@ public class SharedStreamUtils
 	 * Provides a private unstuffed {@link InputStream} for each invocation unless
 	 * <code>useCopy</code> is false in which case the <code>data</code> stream
 	 * is unstuffed and returned. Unstuffing is made by encapsulating the stream within
-	 * special streams.
+	 * a {@link SMTPBodyInputStream}.
 	 * 
-	 * @see org.mailster.smtp.util.CharTerminatedInputStream
-	 * @see org.mailster.smtp.util.DotUnstuffingInputStream
+	 * Streams already unstuffed at receive time are returned as is (or a
+	 * private copy of them) since they need no further processing.
+	 * 
+	 * @see org.mailster.smtp.util.SMTPBodyInputStream
 	 */
 	public static InputStream getPrivateInputStream(boolean useCopy, InputStream data)
 	{
 		InputStream in = data;
 		
+		if (isCanonical(data))
+			return useCopy ? ((SharedInputStream) data).newStream(0, -1) : data;
+		
 		if (useCopy)
 		{
-			if (data instanceof SharedByteArrayInputStream)
-				in = ((SharedByteArrayInputStream) data).newStream(0, -1);
-			else
-			if (data instanceof SharedTmpFileInputStream)
-				in = ((SharedTmpFileInputStream) data).newStream(0, -1);
+			if (data instanceof SharedInputStream)
+				in = ((SharedInputStream) data).newStream(0, -1);
 			else
 				throw new IllegalArgumentException("Unexpected data stream type : "
 						+data.getClass().getName());
 		}
 		
-		in = new CharTerminatedInputStream(in, SMTP_TERMINATOR);
-		in = new DotUnstuffingInputStream(in);
-		
-		return in;
+		return new SMTPBodyInputStream(in, SMTP_TERMINATOR);
+	}
+	
+	/**
+	 * Returns true if <code>data</code> has already been dot-unstuffed and 
+	 * stripped of the SMTP terminator when it was received.
+	 * 
+	 * @see org.mailster.smtp.SMTPServerConfig#setUnstuffOnReceive(boolean)
+	 */
+	public static boolean isCanonical(InputStream data)
+	{
+		return data instanceof SharedByteBufferInputStream 
+			&& ((SharedByteBufferInputStream) data).isCanonical();
 	}
 }
@@ -45,6 +45,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import javax.mail.internet.SharedInputStream;
 
@@ -69,7 +71,7 @@ import javax.mail.internet.SharedInputStream;
  */
 public class SharedTmpFileInputStream extends BufferedInputStream implements SharedInputStream {
 
-    private static final int DEFAULT_BUFFER_SIZE = 2048;
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
 
     /**
      * The file containing the data.
@@ -270,16 +272,32 @@ public class SharedTmpFileInputStream extends BufferedInputStream implements Sha
                 buf = nbuf;
             }
         count = pos;
-        in.seek(bufpos + pos);
         // limit to datalen
         int len = buf.length - pos;
         if (bufpos - start + pos + len > datalen)
             len = (int) (datalen - (bufpos - start + pos));
-        int n = in.read(buf, pos, len);
+        int n = readAt(bufpos + pos, buf, pos, len);
         if (n > 0)
             count = n + pos;
     }
 
+    /**
+     * Reads up to <code>len</code> bytes of the file starting at 
+     * <code>position</code>. Positional reads don't move the shared 
+     * file pointer so related streams never have to seek.
+     */
+    private int readAt(long position, byte[] b, int off, int len) throws IOException {
+        FileChannel channel = in.getChannel();
+        ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position + dst.position() - off);
+            if (n < 0)
+                break;
+        }
+        int n = dst.position() - off;
+        return (n == 0 && len > 0) ? -1 : n;
+    }
+
     /**
      * See the general contract of the <code>read</code>
      * method of <code>InputStream</code>.
@@ -305,16 +323,21 @@ public class SharedTmpFileInputStream extends BufferedInputStream implements Sha
     private int read1(byte[] b, int off, int len) throws IOException {
         int avail = count - pos;
         if (avail <= 0) {
-//            if (false) {
-//                /* If the requested length is at least as large as the buffer, and
-//                   if there is no mark/reset activity, do not bother to copy the
-//                   bytes into the local buffer.  In this way buffered streams will
-//                   cascade harmlessly. */
-//                if (len >= buf.length && markpos < 0) {
-//                    // XXX - seek, update bufpos - how?
-//                    return in.read(b, off, len);
-//                }
-//            }
+            /* If the requested length is at least as large as the buffer, and
+               if there is no mark/reset activity, do not bother to copy the
+               bytes into the local buffer.  In this way buffered streams will
+               cascade harmlessly. */
+            if (len >= buf.length && markpos < 0) {
+                bufpos += count;
+                pos = count = 0;
+                int remaining = in_available();
+                if (remaining <= 0)
+                    return -1;
+                int n = readAt(bufpos, b, off, Math.min(len, remaining));
+                if (n > 0)
+                    bufpos += n;
+                return n;
+            }
             fill();
             avail = count - pos;
             if (avail <= 0)
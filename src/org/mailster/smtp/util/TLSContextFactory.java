@@ -0,0 +1,73 @@
+package org.mailster.smtp.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+/**
+ * Creates the server side {@link SSLContext} from the key store holding
+ * the server certificate and its private key.
+ *
+ * The sessions of the context are cached so that reconnecting clients can
+ * resume them instead of going through a full handshake. Since JDK 13 the
+ * server also hands out stateless session tickets unless the
+ * <code>jdk.tls.server.enableSessionTicketExtension</code> system property
+ * is set to false, which lets clients resume sessions already evicted from
+ * the cache.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class TLSContextFactory
+{
+	private TLSContextFactory()
+	{
+	}
+
+	/**
+	 * Creates a context from a key store file.
+	 *
+	 * @param keyStore the key store file
+	 * @param type the key store type, such as PKCS12 or JKS
+	 * @param password the password of the key store and of its keys
+	 */
+	public static SSLContext createSSLContext(File keyStore, String type, char[] password)
+		throws IOException, GeneralSecurityException
+	{
+		KeyStore ks = KeyStore.getInstance(type);
+		InputStream in = new FileInputStream(keyStore);
+		try
+		{
+			ks.load(in, password);
+		}
+		finally
+		{
+			in.close();
+		}
+		return createSSLContext(ks, password);
+	}
+
+	/**
+	 * Creates a context from a key store.
+	 *
+	 * @param keyStore the key store
+	 * @param password the password of its keys
+	 */
+	public static SSLContext createSSLContext(KeyStore keyStore, char[] password)
+		throws GeneralSecurityException
+	{
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+				KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, password);
+
+		SSLContext ctx = SSLContext.getInstance("TLS");
+		ctx.init(kmf.getKeyManagers(), null, new SecureRandom());
+		return ctx;
+	}
+}
@@ -0,0 +1,107 @@
+package examples;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import org.mailster.smtp.core.commands.BuiltinCommandRegistry;
+import org.mailster.smtp.core.commands.Command;
+import org.mailster.smtp.core.commands.CommandHandler;
+
+/**
+ * Measures the command lookup on a MAIL/RCPT/DATA mix, as sent by a client
+ * delivering messages to several recipients. The former tokenizing lookup
+ * is measured as a baseline.
+ *
+ * Usage: CommandDispatchBenchmark [iterations]
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class CommandDispatchBenchmark
+{
+	private final static String[] LINES = new String[] {
+		"MAIL FROM:<sender@example.org> SIZE=12345",
+		"RCPT TO:<first@example.org>",
+		"RCPT TO:<second@example.org>",
+		"rcpt to:<third@example.org>",
+		"RCPT TO:<fourth@example.org>",
+		"DATA",
+		"RSET"
+	};
+
+	private static Map<String, Command> commandMap = new HashMap<String, Command>();
+
+	static
+	{
+		for (BuiltinCommandRegistry entry : BuiltinCommandRegistry.values())
+			commandMap.put(entry.getCommand().getName(), entry.getCommand());
+	}
+
+	/**
+	 * The lookup as it was made before.
+	 */
+	private static Command tokenizerLookup(String cmd)
+	{
+		StringTokenizer st = new StringTokenizer(cmd);
+		return commandMap.get(st.nextToken().toUpperCase());
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+		final CommandHandler handler = new CommandHandler();
+
+		for (int round = 0; round < 3; round++)
+		{
+			run("tokenizer", iterations, new Lookup() {
+				public Command get(String line)
+				{
+					return tokenizerLookup(line);
+				}
+			});
+			run("table", iterations, new Lookup() {
+				public Command get(String line) throws Exception
+				{
+					return handler.getCommandFromString(line);
+				}
+			});
+		}
+	}
+
+	private interface Lookup
+	{
+		public Command get(String line) throws Exception;
+	}
+
+	private static void run(String name, int iterations, Lookup lookup) throws Exception
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long allocated = allocatedBytes(threads);
+		long start = System.nanoTime();
+
+		int hash = 0;
+		for (int i = 0; i < iterations; i++)
+			hash += lookup.get(LINES[i % LINES.length]).hashCode();
+
+		long elapsed = System.nanoTime() - start;
+		allocated = allocatedBytes(threads) - allocated;
+
+		System.out.printf("%-10s %6.1f ns/op %8.1f bytes/op (%d)%n", name,
+				(double) elapsed / iterations,
+				allocated < 0 ? Double.NaN : (double) allocated / iterations, hash & 1);
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread or a
+	 * negative value if the JVM doesn't tell.
+	 */
+	private static long allocatedBytes(ThreadMXBean threads)
+	{
+		if (threads instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+					Thread.currentThread().getId());
+		return -1;
+	}
+}
@@ -25,6 +25,9 @@ public class CustomHandlerServer
 		server.getDeliveryHandlerFactory().setDeliveryHandlerImplClass(
 				CustomDeliveryHandlerImpl.class);
 		
+		// Or, to avoid the method handle, use a supplier:
+		// server.getDeliveryHandlerFactory().setDeliveryHandlerSupplier(...);
+		
 		// TODO Optionally you can set an auth factory
 		// server.setAuthenticationHandlerFactory(...);
 		server.start();
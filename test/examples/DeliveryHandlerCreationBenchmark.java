@@ -0,0 +1,139 @@
+package examples;
+
+import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+
+import org.mailster.smtp.DefaultDeliveryHandler;
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.AbstractDeliveryHandler;
+import org.mailster.smtp.api.handler.DeliveryContext;
+import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.core.auth.AuthenticationHandler;
+
+/**
+ * Measures the creation of the delivery handler done for each new session,
+ * by several threads at once as during a connection flood. The reflective
+ * creation under the factory lock is measured as a baseline.
+ *
+ * Usage: DeliveryHandlerCreationBenchmark [threads] [handlers per thread]
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class DeliveryHandlerCreationBenchmark
+{
+	private interface Creator
+	{
+		public AbstractDeliveryHandler create() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int handlers = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+
+		final DeliveryHandlerFactory supplierFactory = newFactory();
+		final DeliveryHandlerFactory classFactory = newFactory();
+		classFactory.setDeliveryHandlerImplClass(DefaultDeliveryHandler.class);
+		final DeliveryHandlerFactory lockedFactory = newFactory();
+
+		System.out.println("threads=" + threads + " handlers=" + handlers);
+		for (int round = 0; round < 3; round++)
+		{
+			run("reflection", threads, handlers, new Creator() {
+				public AbstractDeliveryHandler create() throws Exception
+				{
+					return reflectiveCreate(lockedFactory, null);
+				}
+			});
+			run("impl class", threads, handlers, new Creator() {
+				public AbstractDeliveryHandler create()
+				{
+					return classFactory.create(null);
+				}
+			});
+			run("supplier", threads, handlers, new Creator() {
+				public AbstractDeliveryHandler create()
+				{
+					return supplierFactory.create(null);
+				}
+			});
+		}
+	}
+
+	private static DeliveryHandlerFactory newFactory()
+	{
+		return new DeliveryHandlerFactory(
+				Collections.<MessageListener>singletonList(new MessageListenerAdapter()));
+	}
+
+	/**
+	 * The creation as it was made before.
+	 */
+	private static AbstractDeliveryHandler reflectiveCreate(DeliveryHandlerFactory factory,
+			DeliveryContext ctx) throws Exception
+	{
+		Constructor<? extends AbstractDeliveryHandler> cstr = DefaultDeliveryHandler.class
+				.getConstructor(DeliveryContext.class, AuthenticationHandler.class);
+
+		AuthenticationHandler authHandler;
+		synchronized (factory)
+		{
+			authHandler = factory.getAuthenticationHandler();
+		}
+		AbstractDeliveryHandler handler = cstr.newInstance(ctx, authHandler);
+		synchronized (factory)
+		{
+			handler.setListeners(factory.getRoutingTable().getListeners());
+		}
+		synchronized (factory)
+		{
+			handler.setDeliveryExecutor(factory.getDeliveryExecutor());
+		}
+		return handler;
+	}
+
+	private static void run(String name, int threads, final int handlers,
+			final Creator creator) throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final int[] hashes = new int[threads];
+
+		for (int t = 0; t < threads; t++)
+		{
+			final int index = t;
+			new Thread() {
+				public void run()
+				{
+					try
+					{
+						start.await();
+						int hash = 0;
+						for (int i = 0; i < handlers; i++)
+							hash += System.identityHashCode(creator.create());
+						hashes[index] = hash;
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+					}
+					finally
+					{
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+
+		System.out.printf("%-10s %8.1f ns/handler %10.0f handlers/s (%d)%n", name,
+				(double) elapsed / handlers,
+				(double) threads * handlers * 1e9 / elapsed, hashes[0] & 1);
+	}
+}
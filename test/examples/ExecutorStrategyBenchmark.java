@@ -0,0 +1,166 @@
+package examples;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mailster.smtp.ExecutorStrategy;
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.TooMuchDataException;
+
+/**
+ * Compares the executor strategies: for each of them, a number of concurrent
+ * clients send messages to a server whose listener blocks for a while on each
+ * delivery. The throughput and the peak number of live threads are printed.
+ *
+ * Usage: ExecutorStrategyBenchmark [clients] [messages per client] [delivery ms]
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class ExecutorStrategyBenchmark
+{
+	private final static int PORT = 2525;
+	private final static byte[] BODY = new byte[4096];
+
+	static
+	{
+		for (int i = 0; i < BODY.length; i++)
+			BODY[i] = (byte) ((i % 78 == 77) ? '\n' : 'a' + i % 26);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		final int deliveryTime = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		System.out.println("clients=" + clients + " messages=" + messages
+				+ " delivery=" + deliveryTime + "ms");
+
+		for (ExecutorStrategy strategy : ExecutorStrategy.values())
+		{
+			final AtomicInteger delivered = new AtomicInteger();
+			SMTPServer server = new SMTPServer(new MessageListenerAdapter() {
+				public void deliver(SessionContext ctx, String from, String recipient,
+						InputStream data) throws TooMuchDataException, IOException
+				{
+					byte[] buf = new byte[8192];
+					while (data.read(buf) >= 0);
+
+					try
+					{
+						Thread.sleep(deliveryTime);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					delivered.incrementAndGet();
+				}
+			});
+			server.setPort(PORT + strategy.ordinal());
+			server.getConfig().setExecutorStrategy(strategy);
+			server.start();
+
+			// Warm up
+			runClients(server.getPort(), 1, messages);
+			delivered.set(0);
+			threads.resetPeakThreadCount();
+
+			long start = System.nanoTime();
+			runClients(server.getPort(), clients, messages);
+			long elapsed = System.nanoTime() - start;
+
+			server.stop();
+			server.shutdown();
+
+			System.out.printf("%-16s %8.0f msg/s  peak threads %5d  delivered %d%n",
+					strategy, delivered.get() * 1e9 / elapsed,
+					threads.getPeakThreadCount(), delivered.get());
+		}
+	}
+
+	private static void runClients(final int port, int count, final int messages) throws Exception
+	{
+		List<Thread> clients = new ArrayList<Thread>(count);
+		for (int i = 0; i < count; i++)
+		{
+			Thread t = new Thread() {
+				public void run()
+				{
+					try
+					{
+						send(port, messages);
+					}
+					catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+			t.start();
+			clients.add(t);
+		}
+
+		for (Thread t : clients)
+			t.join();
+	}
+
+	private static void send(int port, int messages) throws IOException
+	{
+		Socket socket = new Socket("localhost", port);
+		try
+		{
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			OutputStream out = socket.getOutputStream();
+
+			expect(in, "220");
+			command(in, out, "HELO localhost", "250");
+			for (int i = 0; i < messages; i++)
+			{
+				command(in, out, "MAIL FROM: <bench@example.org>", "250");
+				command(in, out, "RCPT TO: <bench@example.org>", "250");
+				command(in, out, "DATA", "354");
+				out.write(BODY);
+				command(in, out, "\r\n.", "250");
+			}
+			command(in, out, "QUIT", "221");
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	private static void command(BufferedReader in, OutputStream out,
+			String line, String expected) throws IOException
+	{
+		out.write((line + "\r\n").getBytes("US-ASCII"));
+		out.flush();
+		expect(in, expected);
+	}
+
+	private static void expect(BufferedReader in, String expected) throws IOException
+	{
+		String line;
+		do
+		{
+			line = in.readLine();
+			if (line == null || !line.startsWith(expected))
+				throw new IOException("Expected " + expected + " but got " + line);
+		}
+		while (line.charAt(3) == '-');
+	}
+}
@@ -0,0 +1,87 @@
+package examples;
+
+import java.util.regex.Pattern;
+
+import org.mailster.smtp.core.commands.PathParser;
+
+/**
+ * Compares the path parser with the regular expression it replaced on the
+ * RCPT commands of a message sent to 1000 recipients, then on a crafted
+ * address making the regular expression backtrack.
+ *
+ * Usage: PathParserBenchmark [rounds]
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class PathParserBenchmark
+{
+	private final static Pattern EMAIL_PATTERN = Pattern.compile(
+		"^[\\w!#$%&'*+/=?`{|}~^-]+(?:\\.[\\w!#$%&'*+/=?`{|}~^-]+)*@(localhost|(?:[a-zA-Z0-9-]+\\.)+[a-zA-Z]{2,6}$)");
+
+	private interface Validator
+	{
+		public boolean isValid(String args);
+	}
+
+	/**
+	 * The validation as it was made before.
+	 */
+	private final static Validator REGEX = new Validator() {
+		public boolean isValid(String args)
+		{
+			String address = args.substring(3).trim();
+			if (address.indexOf('<') == 0)
+				address = address.substring(1, address.indexOf('>'));
+
+			return EMAIL_PATTERN.matcher(address).matches();
+		}
+	};
+
+	private final static Validator PARSER = new Validator() {
+		public boolean isValid(String args)
+		{
+			return PathParser.parseForwardPath(args, 3, false) != PathParser.INVALID;
+		}
+	};
+
+	public static void main(String[] args) throws Exception
+	{
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		String[] recipients = new String[1000];
+		for (int i = 0; i < recipients.length; i++)
+			recipients[i] = "TO:<recipient." + i + "@mail" + (i % 7) + ".example.org>";
+
+		StringBuilder sb = new StringBuilder("TO:<user@");
+		for (int i = 0; i < 2000; i++)
+			sb.append("a1.");
+		String crafted = sb.append("a1>").toString();
+
+		for (int n = 0; n < 3; n++)
+		{
+			run("regex", REGEX, recipients, rounds);
+			run("parser", PARSER, recipients, rounds);
+		}
+
+		run("regex", REGEX, new String[] { crafted }, 20);
+		run("parser", PARSER, new String[] { crafted }, 20);
+	}
+
+	private static void run(String name, Validator v, String[] lines, int rounds)
+	{
+		int valid = 0;
+		long start = System.nanoTime();
+		for (int r = 0; r < rounds; r++)
+		{
+			for (String line : lines)
+			{
+				if (v.isValid(line))
+					valid++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%-7s %5d chars %10.1f ns/path (%d valid)%n", name,
+				lines[0].length(), (double) elapsed / ((long) rounds * lines.length), valid);
+	}
+}
@@ -0,0 +1,180 @@
+package junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import junit.framework.TestCase;
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.api.AsyncMessageListener;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.TooMuchDataException;
+
+/**
+ * This class tests that the reply to the message data is sent when the
+ * delivery of an {@link AsyncMessageListener} completes.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class AsyncDeliveryTest extends TestCase
+{
+	/**
+	 * Completes the deliveries from another thread after a short delay.
+	 * The outcome depends on the recipient.
+	 */
+	public class DelayedListener implements AsyncMessageListener
+	{
+		public boolean accept(SessionContext ctx, String from, String recipient)
+		{
+			threads.add(Thread.currentThread().getName());
+			return true;
+		}
+
+		public CompletionStage<Void> deliverAsync(SessionContext ctx, String from,
+				final String recipient, final InputStream data)
+		{
+			final CompletableFuture<Void> future = new CompletableFuture<Void>();
+
+			new Thread() {
+				public void run()
+				{
+					try
+					{
+						Thread.sleep(200);
+
+						if (recipient.startsWith("big"))
+							throw new TooMuchDataException();
+						if (recipient.startsWith("failure"))
+							throw new IOException("Backend unavailable");
+
+						ByteArrayOutputStream out = new ByteArrayOutputStream();
+						byte[] buf = new byte[256];
+						int n;
+						while ((n = data.read(buf)) >= 0)
+							out.write(buf, 0, n);
+
+						messages.add(out.toString());
+						future.complete(null);
+					}
+					catch (Exception ex)
+					{
+						future.completeExceptionally(ex);
+					}
+				}
+			}.start();
+
+			return future;
+		}
+	}
+
+	private List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+	private List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+	private int smtpPort;
+	private SMTPServer server;
+	private Client c;
+
+	public AsyncDeliveryTest(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		smtpPort = ServerTestCase.allocatePort();
+
+		this.server = new SMTPServer(new DelayedListener());
+		this.server.setPort(smtpPort);
+		this.server.start();
+
+		this.c = new Client("localhost", smtpPort);
+	}
+
+	protected void tearDown() throws Exception
+	{
+		this.server.shutdown();
+		this.c.close();
+		super.tearDown();
+	}
+
+	private void sendMessage(String recipient) throws Exception
+	{
+		c.send("MAIL FROM: success@example.org");
+		c.expect("250");
+		c.send("RCPT TO: " + recipient);
+		c.expect("250");
+		c.send("DATA");
+		c.expect("354");
+		c.send("Subject: async\r\n\r\nHello\r\n.");
+	}
+
+	public void testDelivery() throws Exception
+	{
+		c.expect("220");
+		c.send("HELO foo.com");
+		c.expect("250");
+
+		sendMessage("success@example.org");
+		c.expect("250 Ok");
+		assertEquals(1, messages.size());
+		assertEquals("Subject: async\r\n\r\nHello", messages.get(0));
+	}
+
+	public void testFailures() throws Exception
+	{
+		c.expect("220");
+		c.send("HELO foo.com");
+		c.expect("250");
+
+		sendMessage("big@example.org");
+		c.expect("552");
+
+		sendMessage("failure@example.org");
+		c.expect("451");
+
+		sendMessage("success@example.org");
+		c.expect("250 Ok");
+		assertEquals(1, messages.size());
+	}
+
+	public void testCommandsWaitForReply() throws Exception
+	{
+		c.expect("220");
+		c.send("HELO foo.com");
+		c.expect("250");
+
+		// The NOOP is handled once the delivery has completed
+		sendMessage("success@example.org");
+		c.send("NOOP");
+		c.expect("250 Ok");
+		assertEquals(1, messages.size());
+		c.expect("250");
+	}
+
+	public void testCommandsHandledByExecutor() throws Exception
+	{
+		c.expect("220");
+		c.send("HELO foo.com");
+		c.expect("250");
+
+		// The RCPT is replayed once the delivery thread completes the delivery
+		sendMessage("success@example.org");
+		c.send("MAIL FROM: success@example.org");
+		c.send("RCPT TO: again@example.org");
+		c.expect("250 Ok");
+		c.expect("250");
+		c.expect("250");
+
+		assertEquals(2, threads.size());
+		for (String name : threads)
+			assertTrue(name, name.startsWith("MailsterSMTP Thread"));
+	}
+}
@@ -0,0 +1,119 @@
+package junit;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.api.BatchingMessageListener;
+import org.mailster.smtp.api.handler.SessionContext;
+
+/**
+ * This class tests that the recipients of pipelined RCPT commands are
+ * validated at once by a {@link BatchingMessageListener}.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class BatchingListenerTest extends TestCase
+{
+	/**
+	 * Records the groups of recipients it is asked to validate.
+	 */
+	public class DirectoryListener implements BatchingMessageListener
+	{
+		public boolean[] accept(SessionContext ctx, String from, List<String> recipients)
+		{
+			lookups.add(new ArrayList<String>(recipients));
+
+			boolean[] accepted = new boolean[recipients.size()];
+			for (int i = 0; i < accepted.length; i++)
+				accepted[i] = !recipients.get(i).startsWith("unknown");
+			return accepted;
+		}
+
+		public void deliver(SessionContext ctx, String from, String recipient, InputStream data)
+		{
+			delivered.add(recipient);
+		}
+	}
+
+	private List<List<String>> lookups = Collections.synchronizedList(new ArrayList<List<String>>());
+	private List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+	private int smtpPort;
+	private SMTPServer server;
+	private Client c;
+
+	public BatchingListenerTest(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		smtpPort = ServerTestCase.allocatePort();
+
+		this.server = new SMTPServer(new DirectoryListener());
+		this.server.setPort(smtpPort);
+		this.server.start();
+
+		this.c = new Client("localhost", smtpPort);
+		c.expect("220");
+		c.send("EHLO foo.com");
+		c.expect("250");
+	}
+
+	protected void tearDown() throws Exception
+	{
+		this.server.shutdown();
+		this.c.close();
+		super.tearDown();
+	}
+
+	public void testPipelinedRecipients() throws Exception
+	{
+		c.write(("MAIL FROM:<sender@example.org>\r\n" +
+				"RCPT TO:<first@example.org>\r\n" +
+				"RCPT TO:<unknown@example.org>\r\n" +
+				"RCPT TO:<invalid@>\r\n" +
+				"RCPT TO:<third@example.org>\r\n" +
+				"DATA\r\n").getBytes("US-ASCII"));
+
+		c.expect("250");
+		c.expect("250");
+		c.expect("553 <unknown@example.org> address unknown.");
+		c.expect("553 <invalid@> Invalid email address");
+		c.expect("250");
+		c.expect("354");
+
+		c.send("Subject: batch");
+		c.send("");
+		c.send(".");
+		c.expect("250");
+
+		// One lookup for the whole group
+		assertEquals(1, lookups.size());
+		assertEquals(3, lookups.get(0).size());
+		assertEquals("first@example.org", lookups.get(0).get(0));
+		assertEquals("third@example.org", lookups.get(0).get(2));
+		assertEquals(2, delivered.size());
+	}
+
+	public void testSingleRecipient() throws Exception
+	{
+		c.send("MAIL FROM:<sender@example.org>");
+		c.expect("250");
+		c.send("RCPT TO:<first@example.org>");
+		c.expect("250");
+		c.send("RCPT TO:<unknown@example.org>");
+		c.expect("553");
+
+		assertEquals(2, lookups.size());
+		assertEquals(Collections.singletonList("unknown@example.org"), lookups.get(1));
+	}
+}
@@ -43,7 +43,6 @@ public class BigAttachmentTest extends TestCase
 		super.setUp();
 		server = new Wiser();
 		server.setPort(SMTP_PORT);
-		server.setReceiveBufferSize(BUFFER_SIZE);
 		server.start();		
 	}
 
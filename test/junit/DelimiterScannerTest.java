@@ -0,0 +1,97 @@
+package junit;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.mailster.smtp.core.DelimiterScanner;
+
+/**
+ * This class tests that {@link DelimiterScanner} finds the same delimiters
+ * as a naive byte by byte search, even when the data is split among
+ * many network packets.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class DelimiterScannerTest extends TestCase
+{
+	private static final byte[] CMD = {'\r', '\n'};
+	private static final byte[] DATA = {'\r', '\n', '.', '\r', '\n'};
+	private static final byte[] ALPHABET = {'\r', '\n', '.', 'a', ' '};
+
+	public void testSimpleMatches()
+	{
+		DelimiterScanner scanner = new DelimiterScanner(DATA);
+
+		assertEquals(16, scan(scanner, "Hello world\r\n.\r\nNext"));
+		assertEquals(17, scan(scanner, "Hello world\r\r\n.\r\n"));
+		assertEquals(16, scan(scanner, "Hello\r\n.\r\r\n\r\n.\r\n"));
+		assertEquals(-1, scan(scanner, "Hello\r\n..\r\nworld"));
+		assertEquals(-4, scan(scanner, "Hello world\r\n."));
+		assertEquals(-5, scan(scanner, "Hello world\r\n.\r"));
+	}
+
+	public void testRandomSplits()
+	{
+		Random rnd = new Random(42);
+
+		for (int i = 0; i < 2000; i++)
+		{
+			byte[] delim = (i % 2 == 0) ? CMD : DATA;
+			byte[] data = new byte[rnd.nextInt(200)];
+			for (int j = 0; j < data.length; j++)
+				data[j] = rnd.nextInt(4) == 0 ? (byte) ('A' + rnd.nextInt(26))
+						: ALPHABET[rnd.nextInt(ALPHABET.length)];
+
+			assertEquals(naiveIndexOf(data, delim), splitScan(rnd, data, delim));
+		}
+	}
+
+	private int scan(DelimiterScanner scanner, String s)
+	{
+		IoBuffer in = IoBuffer.wrap(s.getBytes());
+		return scanner.scan(in, 0, in.limit(), 0);
+	}
+
+	/**
+	 * Feeds the data in random sized packets and returns the
+	 * index following the first delimiter or -1.
+	 */
+	private int splitScan(Random rnd, byte[] data, byte[] delim)
+	{
+		DelimiterScanner scanner = new DelimiterScanner(delim);
+		int matchCount = 0;
+		int offset = 0;
+
+		while (offset < data.length)
+		{
+			int len = 1 + rnd.nextInt(data.length - offset);
+			IoBuffer in = IoBuffer.allocate(len + 3);
+			in.put(new byte[] {'\r', '\n', '.'}).put(data, offset, len).flip();
+
+			int pos = scanner.scan(in, 3, in.limit(), matchCount);
+			if (pos >= 0)
+				return offset + pos - 3;
+
+			matchCount = -1 - pos;
+			offset += len;
+		}
+
+		return -1;
+	}
+
+	private int naiveIndexOf(byte[] data, byte[] delim)
+	{
+		outer:
+		for (int i = 0; i + delim.length <= data.length; i++)
+		{
+			for (int j = 0; j < delim.length; j++)
+				if (data[i + j] != delim[j])
+					continue outer;
+			return i + delim.length;
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,117 @@
+package junit;
+
+import java.util.Collections;
+
+import junit.framework.TestCase;
+
+import org.mailster.smtp.DefaultDeliveryHandler;
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.AbstractDeliveryHandler;
+import org.mailster.smtp.api.handler.DeliveryContext;
+import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.api.handler.DeliveryHandlerSupplier;
+import org.mailster.smtp.core.auth.AuthenticationHandler;
+
+/**
+ * This class tests the creation of the delivery handlers.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class DeliveryHandlerFactoryTest extends TestCase
+{
+	/**
+	 * A handler with a non public constructor.
+	 */
+	static class ProtectedHandler extends DefaultDeliveryHandler
+	{
+		protected ProtectedHandler(DeliveryContext ctx, AuthenticationHandler authHandler)
+		{
+			super(ctx, authHandler);
+		}
+	}
+
+	/**
+	 * A handler without the expected constructor.
+	 */
+	static class InvalidHandler extends DefaultDeliveryHandler
+	{
+		public InvalidHandler(DeliveryContext ctx)
+		{
+			super(ctx, null);
+		}
+	}
+
+	/**
+	 * A handler failing to initialize.
+	 */
+	public static class FailingHandler extends DefaultDeliveryHandler
+	{
+		public FailingHandler(DeliveryContext ctx, AuthenticationHandler authHandler)
+		{
+			super(ctx, authHandler);
+			throw new IllegalStateException("failing");
+		}
+	}
+
+	private MessageListener listener = new MessageListenerAdapter();
+	private DeliveryHandlerFactory factory;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		factory = new DeliveryHandlerFactory(Collections.singletonList(listener));
+	}
+
+	public void testDefaultHandler() throws Exception
+	{
+		AbstractDeliveryHandler handler = factory.create(null);
+		assertEquals(DefaultDeliveryHandler.class, handler.getClass());
+		assertSame(factory.getAuthenticationHandler(), handler.getAuthenticationHandler());
+		assertSame(factory.getRoutingTable(), handler.getRoutingTable());
+	}
+
+	public void testImplClass() throws Exception
+	{
+		factory.setDeliveryHandlerImplClass(ProtectedHandler.class);
+		AbstractDeliveryHandler handler = factory.create(null);
+		assertEquals(ProtectedHandler.class, handler.getClass());
+		assertEquals(Collections.singletonList(listener), handler.getListeners());
+
+		try
+		{
+			factory.setDeliveryHandlerImplClass(InvalidHandler.class);
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+			// The previous class is still used
+			assertEquals(ProtectedHandler.class, factory.create(null).getClass());
+		}
+
+		factory.setDeliveryHandlerImplClass(FailingHandler.class);
+		try
+		{
+			factory.create(null);
+			fail();
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("failing", e.getMessage());
+		}
+	}
+
+	public void testSupplier() throws Exception
+	{
+		factory.setDeliveryHandlerSupplier(new DeliveryHandlerSupplier() {
+			public AbstractDeliveryHandler create(DeliveryContext ctx, AuthenticationHandler authHandler)
+			{
+				return new ProtectedHandler(ctx, authHandler);
+			}
+		});
+
+		AbstractDeliveryHandler handler = factory.create(null);
+		assertEquals(ProtectedHandler.class, handler.getClass());
+		assertSame(factory.getAuthenticationHandler(), handler.getAuthenticationHandler());
+	}
+}
@@ -0,0 +1,161 @@
+package junit;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPEndpoint;
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.util.ReusePortSelectorProvider;
+
+/**
+ * This class tests a server listening on several endpoints and sharing
+ * a port between several acceptors.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class EndpointTest extends TestCase
+{
+	public class RecordingListener implements MessageListener
+	{
+		public boolean accept(SessionContext ctx, String from, String recipient)
+		{
+			return true;
+		}
+
+		public void deliver(SessionContext ctx, String from, String recipient, InputStream data)
+		{
+			delivered.add(recipient);
+		}
+	}
+
+	private List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+	private int smtpPort;
+	private SMTPServer server;
+
+	public EndpointTest(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		smtpPort = ServerTestCase.allocatePorts(2);
+
+		this.server = new SMTPServer(new RecordingListener());
+		this.server.setPort(smtpPort);
+		this.server.getConfig().setHostName("relay.example.org");
+	}
+
+	protected void tearDown() throws Exception
+	{
+		this.server.shutdown();
+		super.tearDown();
+	}
+
+	private void send(Client c, String recipient) throws Exception
+	{
+		c.send("HELO foo.com");
+		c.expect("250");
+		c.send("MAIL FROM:<sender@example.org>");
+		c.expect("250");
+		c.send("RCPT TO:<" + recipient + ">");
+		c.expect("250");
+		c.send("DATA");
+		c.expect("354");
+		c.send("Subject: endpoints");
+		c.send("");
+		c.send(".");
+		c.expect("250");
+		c.send("QUIT");
+		c.expect("221");
+		c.close();
+	}
+
+	public void testEndpoints() throws Exception
+	{
+		SMTPEndpoint submission = server.addEndpoint(smtpPort + 1);
+		submission.getConfig().setHostName("submission.example.org");
+
+		assertEquals("relay.example.org", server.getConfig().getHostName());
+		assertEquals(2, server.getEndpoints().size());
+		server.start();
+
+		Client c = new Client("localhost", smtpPort);
+		c.expect("220 relay.example.org");
+		send(c, "relay@example.org");
+
+		c = new Client("localhost", smtpPort + 1);
+		c.expect("220 submission.example.org");
+		send(c, "submission@example.org");
+
+		assertEquals(2, delivered.size());
+
+		// Both endpoints are bound again on restart
+		server.stop();
+		server.start();
+
+		c = new Client("localhost", smtpPort + 1);
+		c.expect("220 submission.example.org");
+		send(c, "again@example.org");
+		assertEquals(3, delivered.size());
+	}
+
+	public void testEhloPerEndpoint() throws Exception
+	{
+		SMTPEndpoint submission = server.addEndpoint(smtpPort + 1);
+		submission.getConfig().setHostName("submission.example.org");
+		submission.getConfig().setMaxMessageSize(1000);
+		server.start();
+
+		// Each endpoint keeps its own reply
+		for (int i = 0; i < 2; i++)
+		{
+			Client c = new Client("localhost", smtpPort);
+			c.expect("220");
+			c.send("EHLO foo.com");
+			String reply = c.readResponse();
+			assertTrue(reply, reply.startsWith("250-relay.example.org\n"));
+			assertTrue(reply, reply.contains("250-SIZE\n"));
+			c.close();
+
+			c = new Client("localhost", smtpPort + 1);
+			c.expect("220");
+			c.send("EHLO foo.com");
+			reply = c.readResponse();
+			assertTrue(reply, reply.startsWith("250-submission.example.org\n"));
+			assertTrue(reply, reply.contains("250-SIZE 1000\n"));
+			c.close();
+		}
+	}
+
+	public void testShards() throws Exception
+	{
+		if (!ReusePortSelectorProvider.isSupported())
+			return;
+
+		server.getConfig().setAcceptorShards(4);
+		server.start();
+
+		List<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < 16; i++)
+		{
+			Client c = new Client("localhost", smtpPort);
+			c.expect("220");
+			clients.add(c);
+		}
+
+		for (int i = 0; i < clients.size(); i++)
+			send(clients.get(i), "user" + i + "@example.org");
+
+		assertEquals(16, delivered.size());
+	}
+}
@@ -0,0 +1,60 @@
+package junit;
+
+import junit.framework.TestCase;
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.ExecutorStrategy;
+
+import wiser.Wiser;
+
+/**
+ * This class tests that the server handles a complete SMTP
+ * exchange whatever the executor strategy is.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class ExecutorStrategyTest extends TestCase
+{
+	public void testStrategies() throws Exception
+	{
+		for (ExecutorStrategy strategy : ExecutorStrategy.values())
+		{
+			int smtpPort = ServerTestCase.allocatePort();
+
+			Wiser wiser = new Wiser();
+			wiser.setPort(smtpPort);
+			wiser.getServer().getConfig().setExecutorStrategy(strategy);
+			wiser.getServer().getConfig().setMaxWorkerThreads(2);
+			wiser.getServer().getConfig().setWorkQueueSize(1);
+			wiser.start();
+
+			Client c = new Client("localhost", smtpPort);
+			try
+			{
+				c.expect("220");
+				c.send("HELO foo.com");
+				c.expect("250");
+				c.send("MAIL FROM: success@example.org");
+				c.expect("250");
+				c.send("RCPT TO: success@example.org");
+				c.expect("250");
+				c.send("DATA");
+				c.expect("354");
+				c.send("Subject: " + strategy + "\r\n\r\nHello\r\n.");
+				c.expect("250");
+				c.send("QUIT");
+				c.expect("221");
+			}
+			finally
+			{
+				c.close();
+				wiser.shutdown();
+			}
+
+			assertEquals(1, wiser.getMessages().size());
+			assertEquals("Subject: " + strategy + "\r\n\r\nHello",
+					new String(wiser.getMessages().get(0).getData()));
+		}
+	}
+}
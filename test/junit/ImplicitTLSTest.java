@@ -0,0 +1,245 @@
+package junit;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import junit.framework.TestCase;
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPEndpoint;
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.util.DummySSLSocketFactory;
+import org.mailster.smtp.util.TLSContextFactory;
+
+/**
+ * This class tests an endpoint starting TLS as soon as clients connect,
+ * STARTTLS on a plain endpoint and the resumption of the TLS sessions.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class ImplicitTLSTest extends TestCase
+{
+	private static final char[] PASSWORD = "changeit".toCharArray();
+
+	private static File keyStore;
+
+	public class RecordingListener implements MessageListener
+	{
+		public boolean accept(SessionContext ctx, String from, String recipient)
+		{
+			return true;
+		}
+
+		public void deliver(SessionContext ctx, String from, String recipient, InputStream data)
+		{
+			delivered.add(recipient);
+		}
+	}
+
+	private List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+	private SSLContext sslContext;
+	private int smtpPort;
+	private SMTPServer server;
+	private SMTPEndpoint smtps;
+
+	public ImplicitTLSTest(String name)
+	{
+		super(name);
+	}
+
+	/**
+	 * Generates a self signed certificate with the keytool of the runtime.
+	 */
+	static synchronized File getKeyStore() throws Exception
+	{
+		if (keyStore == null)
+		{
+			File f = File.createTempFile("mailster", ".p12");
+			f.delete();
+			f.deleteOnExit();
+
+			String keytool = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "keytool";
+			Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "smtp",
+					"-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+					"-dname", "CN=localhost", "-storetype", "PKCS12",
+					"-keystore", f.getPath(), "-storepass", new String(PASSWORD),
+					"-keypass", new String(PASSWORD)).redirectErrorStream(true).start();
+			assertEquals(0, p.waitFor());
+			keyStore = f;
+		}
+		return keyStore;
+	}
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		smtpPort = ServerTestCase.allocatePorts(2);
+
+		this.sslContext = TLSContextFactory.createSSLContext(getKeyStore(), "PKCS12", PASSWORD);
+
+		this.server = new SMTPServer(new RecordingListener());
+		this.server.setPort(smtpPort);
+		this.server.getConfig().setSSLContext(sslContext);
+
+		this.smtps = server.addEndpoint(smtpPort + 1);
+		this.smtps.getConfig().setImplicitTLS(true);
+		this.smtps.getConfig().setTLSSessionTimeout(600);
+		this.server.start();
+	}
+
+	protected void tearDown() throws Exception
+	{
+		this.server.shutdown();
+		super.tearDown();
+	}
+
+	private SSLSocket connect(DummySSLSocketFactory factory) throws Exception
+	{
+		SSLSocket socket = (SSLSocket) factory.createSocket("localhost", smtps.getPort());
+		socket.setEnabledProtocols(new String[] {"TLSv1.2"});
+		socket.startHandshake();
+		return socket;
+	}
+
+	public void testImplicitTLS() throws Exception
+	{
+		Client c = new Client(connect(new DummySSLSocketFactory()));
+		c.expect("220");
+		c.send("EHLO foo.com");
+		c.expect("250");
+
+		c.send("STARTTLS");
+		c.expect("454");
+
+		c.send("MAIL FROM:<sender@example.org>");
+		c.expect("250");
+		c.send("RCPT TO:<secure@example.org>");
+		c.expect("250");
+		c.send("DATA");
+		c.expect("354");
+		c.send("Subject: smtps");
+		c.send("");
+		c.send(".");
+		c.expect("250");
+		c.send("QUIT");
+		c.expect("221");
+		c.close();
+
+		assertEquals(Collections.singletonList("secure@example.org"), delivered);
+
+		// The plain endpoint still waits for STARTTLS
+		Socket plain = new Socket("localhost", smtpPort);
+		c = new Client(plain);
+		c.expect("220");
+		c.send("EHLO foo.com");
+		c.expect("250");
+		c.send("STARTTLS");
+		c.expect("220");
+
+		SSLSocket socket = (SSLSocket) new DummySSLSocketFactory().
+			createSocket(plain, "localhost", smtpPort, true);
+		socket.startHandshake();
+
+		c = new Client(socket);
+		c.send("EHLO foo.com");
+		c.expect("250");
+		c.send("QUIT");
+		c.expect("221");
+		c.close();
+	}
+
+	/**
+	 * Opens a session on the plain endpoint and sends the given bytes in a
+	 * single write, the first command being STARTTLS.
+	 */
+	private Client startTLS(String pipelined) throws Exception
+	{
+		Socket plain = new Socket("localhost", smtpPort);
+		Client c = new Client(plain);
+		c.expect("220");
+		c.send("EHLO foo.com");
+		c.expect("250");
+
+		c.write(pipelined.getBytes("US-ASCII"));
+		c.expect("220 Ready to start TLS");
+
+		SSLSocket socket = (SSLSocket) new DummySSLSocketFactory().
+			createSocket(plain, "localhost", smtpPort, true);
+		socket.startHandshake();
+		return new Client(socket);
+	}
+
+	public void testPipelinedCommandsDiscarded() throws Exception
+	{
+		Client c = startTLS("STARTTLS\r\nRSET\r\n");
+
+		// The first reply read is the one to EHLO, RSET was never answered
+		c.send("EHLO foo.com");
+		c.expect("250-");
+		c.send("QUIT");
+		c.expect("221");
+		c.close();
+	}
+
+	public void testPartialLineDiscarded() throws Exception
+	{
+		Client c = startTLS("STARTTLS\r\nMAIL FROM:<sender@example.org>\r\nRCPT");
+
+		// The partial line isn't prepended to the first secured command
+		c.send("EHLO foo.com");
+		c.expect("250-");
+		c.send("RCPT TO:<secure@example.org>");
+		c.expect("503");
+		c.send("QUIT");
+		c.expect("221");
+		c.close();
+	}
+
+	public void testSessionResumption() throws Exception
+	{
+		DummySSLSocketFactory factory = new DummySSLSocketFactory();
+
+		SSLSocket first = connect(factory);
+		Client c = new Client(first);
+		c.expect("220");
+		c.send("QUIT");
+		c.expect("221");
+		c.close();
+
+		SSLSocket second = connect(factory);
+		c = new Client(second);
+		c.expect("220");
+
+		// The abbreviated handshake keeps the session
+		assertTrue(Arrays.equals(first.getSession().getId(), second.getSession().getId()));
+		assertEquals(first.getSession().getCreationTime(), second.getSession().getCreationTime());
+
+		c.send("QUIT");
+		c.expect("221");
+		c.close();
+	}
+
+	public void testSessionContextSettings() throws Exception
+	{
+		SSLSessionContext sessions = sslContext.getServerSessionContext();
+		SSLSessionContext defaults = TLSContextFactory.createSSLContext(
+				getKeyStore(), "PKCS12", PASSWORD).getServerSessionContext();
+
+		// Only the setting of the implicit TLS endpoint is applied
+		assertEquals(600, sessions.getSessionTimeout());
+		assertEquals(defaults.getSessionCacheSize(), sessions.getSessionCacheSize());
+	}
+}
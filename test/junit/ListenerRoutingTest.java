@@ -0,0 +1,85 @@
+package junit;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+import junit.framework.TestCase;
+
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.DeliveryHandlerFactory;
+import org.mailster.smtp.api.handler.ListenerRoutingTable;
+
+/**
+ * This class tests the routing of the recipients to the listeners.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class ListenerRoutingTest extends TestCase
+{
+	private MessageListener all = new MessageListenerAdapter();
+	private MessageListener tenant = new MessageListenerAdapter();
+	private MessageListener subdomains = new MessageListenerAdapter();
+	private MessageListener postmaster = new MessageListenerAdapter();
+	private MessageListener filtered = new MessageListenerAdapter();
+
+	private DeliveryHandlerFactory factory;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		factory = new DeliveryHandlerFactory(null);
+		factory.addDomainListener("*.Example.org", subdomains);
+		factory.addListener(all);
+		factory.addDomainListener("tenant.example.org", tenant);
+		factory.addAddressListener("postmaster@TENANT.example.org", postmaster);
+		factory.addListener(new Predicate<String>() {
+			public boolean test(String recipient)
+			{
+				return recipient.startsWith("list-");
+			}
+		}, filtered);
+	}
+
+	private List<MessageListener> route(String recipient)
+	{
+		return factory.getRoutingTable().route(recipient);
+	}
+
+	public void testRouting() throws Exception
+	{
+		assertEquals(Arrays.asList(subdomains, all, tenant), route("user@tenant.example.org"));
+		assertEquals(Arrays.asList(subdomains, all, tenant, postmaster),
+				route("postmaster@Tenant.Example.ORG"));
+		assertEquals(Arrays.asList(subdomains, all), route("user@a.b.example.org"));
+		assertEquals(Arrays.asList(all), route("user@example.org"));
+		assertEquals(Arrays.asList(all, filtered), route("list-users@other.net"));
+		assertEquals(Arrays.asList(all), route("Postmaster"));
+		assertEquals(Arrays.asList(subdomains, all, tenant, postmaster, filtered),
+				factory.getRoutingTable().getListeners());
+	}
+
+	public void testCopyOnWrite() throws Exception
+	{
+		ListenerRoutingTable table = factory.getRoutingTable();
+		factory.removeListener(all);
+		factory.addDomainListener("other.net", all);
+
+		// The previous table is unchanged
+		assertEquals(Arrays.asList(subdomains, all, tenant), table.route("user@tenant.example.org"));
+		assertEquals(Arrays.asList(subdomains, tenant), route("user@tenant.example.org"));
+		assertEquals(Arrays.asList(all), route("user@other.net"));
+		assertSame(factory.getRoutingTable(), factory.getRoutingTable());
+	}
+
+	public void testRouteAll() throws Exception
+	{
+		ListenerRoutingTable table = new ListenerRoutingTable(Arrays.asList(all, tenant));
+		assertSame(table.getListeners(), table.route("user@example.org"));
+		assertEquals(Collections.emptyList(),
+				new ListenerRoutingTable(null).route("user@example.org"));
+	}
+}
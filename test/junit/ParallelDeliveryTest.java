@@ -0,0 +1,169 @@
+package junit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.TooMuchDataException;
+
+import wiser.WiserMessage;
+
+/**
+ * This class tests that deliveries to several recipients are made
+ * concurrently when parallel deliveries are enabled.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class ParallelDeliveryTest extends ServerTestCase
+{
+	private static final int DELIVERY_TIME = 400;
+
+	/**
+	 * A listener that is slow to deliver and hangs on some recipients.
+	 */
+	public class SlowWiser extends TestWiser
+	{
+		public void deliver(SessionContext ctx, String from,
+				String recipient, InputStream data)
+			throws TooMuchDataException, IOException
+		{
+			try
+			{
+				Thread.sleep(recipient.startsWith("hang") ? 10 * DELIVERY_TIME : DELIVERY_TIME);
+			}
+			catch (InterruptedException e)
+			{
+				throw new IOException("Interrupted");
+			}
+
+			// Read the data now as the stream is private
+			WiserMessage msg = new WiserMessage(from, recipient, data);
+			msg.getData();
+			this.queueMessage(msg);
+		}
+	}
+
+	public ParallelDeliveryTest(String name)
+	{
+		super(name);
+	}
+
+	protected TestWiser createWiser()
+	{
+		return new SlowWiser();
+	}
+
+	protected void configure(SMTPServerConfig config)
+	{
+		config.setDeliveryThreads(4);
+		config.setDeliveryTimeout(2 * DELIVERY_TIME);
+	}
+
+	private void sendMessage(String... recipients) throws Exception
+	{
+		c.expect("220");
+		c.send("HELO foo.com");
+		c.expect("250");
+		c.send("MAIL FROM: success@example.org");
+		c.expect("250");
+
+		for (String rcpt : recipients)
+		{
+			c.send("RCPT TO: " + rcpt);
+			c.expect("250");
+		}
+
+		c.send("DATA");
+		c.expect("354");
+		c.send("Subject: parallel\r\n\r\nHello\r\n.");
+	}
+
+	public void testParallelDelivery() throws Exception
+	{
+		long start = System.currentTimeMillis();
+		sendMessage("a@example.org", "b@example.org", "c@example.org", "d@example.org");
+		c.expect("250");
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Deliveries weren't concurrent: " + elapsed + " ms",
+				elapsed < 3 * DELIVERY_TIME);
+		assertEquals(4, wiser.getMessages().size());
+
+		for (WiserMessage msg : wiser.getMessages())
+			assertEquals("Subject: parallel\r\n\r\nHello", new String(msg.getData()));
+	}
+
+	public void testDeliveryTimeout() throws Exception
+	{
+		sendMessage("a@example.org", "hang@example.org");
+		c.expect("450");
+
+		// The other recipient has been delivered
+		assertEquals(1, wiser.getMessages().size());
+		assertEquals("a@example.org", wiser.getMessages().get(0).getEnvelopeReceiver());
+	}
+
+	public void testQueuedDeliveries() throws Exception
+	{
+		// Twice as many recipients as threads: the last ones wait for a
+		// thread but start before the timeout
+		String[] recipients = new String[8];
+		for (int i = 0; i < recipients.length; i++)
+			recipients[i] = "user" + i + "@example.org";
+
+		sendMessage(recipients);
+		c.expect("250");
+		assertEquals(recipients.length, wiser.getMessages().size());
+	}
+
+	public void testQueuedDeliveriesTimeout() throws Exception
+	{
+		// Five times as many recipients as threads: the last ones are still
+		// waiting for a thread once the timeout has elapsed
+		String[] recipients = new String[20];
+		for (int i = 0; i < recipients.length; i++)
+			recipients[i] = "user" + i + "@example.org";
+
+		long start = System.currentTimeMillis();
+		sendMessage(recipients);
+		c.expect("450");
+		long elapsed = System.currentTimeMillis() - start;
+
+		assertTrue("Waited for the queued deliveries: " + elapsed + " ms",
+				elapsed < 4 * DELIVERY_TIME);
+		assertTrue(wiser.getMessages().size() < recipients.length);
+	}
+
+	public void testRejectedDelivery() throws Exception
+	{
+		// A single thread and no queue: the second delivery is rejected
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadPoolExecutor.AbortPolicy());
+		wiser.getServer().getDeliveryHandlerFactory().setDeliveryExecutor(executor);
+
+		try
+		{
+			// Opens a session using the executor
+			c.close();
+			c = new Client("localhost", port);
+
+			sendMessage("a@example.org", "b@example.org");
+			c.expect("450");
+
+			// The accepted delivery is waited for
+			assertEquals(1, wiser.getMessages().size());
+			assertEquals("a@example.org", wiser.getMessages().get(0).getEnvelopeReceiver());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,236 @@
+package junit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.SimpleBufferAllocator;
+import org.apache.mina.core.session.IoSession;
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.TooMuchDataException;
+import org.mailster.smtp.core.commands.AbstractCommand;
+import org.mailster.smtp.util.PooledBufferAllocator;
+
+/**
+ * This class tests the recycling of the network buffers.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class PooledBufferAllocatorTest extends TestCase
+{
+	private static final String LINE = String.format("%042d", 0);
+
+	public PooledBufferAllocatorTest(String name)
+	{
+		super(name);
+	}
+
+	public void testRecycling() throws Exception
+	{
+		PooledBufferAllocator allocator = new PooledBufferAllocator(4, true);
+
+		IoBuffer b = allocator.allocate(1000, false);
+		assertEquals(1000, b.limit());
+		assertTrue(b.capacity() >= 1000);
+		byte[] array = b.array();
+		b.free();
+
+		// Same size class, same thread
+		IoBuffer b2 = allocator.allocate(600, false);
+		assertSame(array, b2.array());
+		assertEquals(0, b2.position());
+		assertEquals(600, b2.limit());
+
+		// Direct buffers have their own pools
+		IoBuffer d = allocator.allocate(600, true);
+		assertTrue(d.isDirect());
+		d.free();
+		assertEquals(1, allocator.getPoolHits());
+
+		// Freeing a derived buffer doesn't release the buffer
+		b2.duplicate().free();
+		assertNotSame(array, allocator.allocate(600, false).array());
+
+		// Large buffers are not pooled
+		IoBuffer large = allocator.allocate(PooledBufferAllocator.MAX_POOLED_SIZE + 1, false);
+		array = large.array();
+		large.free();
+		assertNotSame(array, allocator.allocate(PooledBufferAllocator.MAX_POOLED_SIZE + 1, false).array());
+	}
+
+	public void testExpansion() throws Exception
+	{
+		PooledBufferAllocator allocator = new PooledBufferAllocator(4, false);
+
+		IoBuffer.setAllocator(allocator);
+		try
+		{
+			IoBuffer b = IoBuffer.allocate(64, false).setAutoExpand(true);
+			byte[] array = b.array();
+			for (int i = 0; i < 100; i++)
+				b.put((byte) i);
+			assertEquals(99, b.get(99));
+
+			// The buffer replaced by the expansion went back to the pool
+			assertSame(array, IoBuffer.allocate(64, false).array());
+		}
+		finally
+		{
+			IoBuffer.setAllocator(new SimpleBufferAllocator());
+		}
+	}
+
+	public void testLeakDetection() throws Exception
+	{
+		PooledBufferAllocator allocator = new PooledBufferAllocator(4, true);
+		allocator.allocate(100, false).free();
+		allocator.allocate(100, false);
+
+		for (int i = 0; i < 50 && allocator.getLeaks() == 0; i++)
+		{
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertEquals(1, allocator.getLeaks());
+	}
+
+	public void testServer() throws Exception
+	{
+		final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+		SMTPServer server = new SMTPServer(new MessageListenerAdapter() {
+			public void deliver(SessionContext ctx, String from, String recipient,
+					InputStream data) throws TooMuchDataException, IOException
+			{
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buf = new byte[8192];
+				for (int n; (n = data.read(buf)) >= 0;)
+					out.write(buf, 0, n);
+				sizes.add(out.size());
+			}
+		});
+
+		PooledBufferAllocator allocator = new PooledBufferAllocator(64, true);
+		int smtpPort = ServerTestCase.allocatePort();
+		server.setPort(smtpPort);
+		server.getConfig().setBufferAllocator(allocator);
+		server.getConfig().setDirectBuffers(true);
+		server.start();
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 4000; i++)
+			sb.append("Line number ").append(i).append(" of the message body\r\n");
+		byte[] body = sb.toString().getBytes("US-ASCII");
+
+		try
+		{
+			for (int n = 0; n < 3; n++)
+			{
+				Client c = new Client("localhost", smtpPort);
+				c.expect("220");
+				c.send("EHLO foo.com");
+				c.expect("250");
+				c.write(("MAIL FROM:<sender@example.org>\r\n" +
+						"RCPT TO:<first@example.org>\r\n" +
+						"DATA\r\n").getBytes("US-ASCII"));
+				c.expect("250");
+				c.expect("250");
+				c.expect("354");
+				c.write(body);
+				c.send(".");
+				c.expect("250");
+				c.send("QUIT");
+				c.expect("221");
+				c.close();
+			}
+		}
+		finally
+		{
+			server.shutdown();
+			IoBuffer.setAllocator(new SimpleBufferAllocator());
+			IoBuffer.setUseDirectBuffer(false);
+		}
+
+		// The last CRLF is part of the terminator
+		assertEquals(3, sizes.size());
+		for (Integer size : sizes)
+			assertEquals(body.length - 2, size.intValue());
+
+		assertTrue(allocator.getPoolHits() > 0);
+		assertNoLeaks(allocator);
+	}
+
+	public void testStringReplies() throws Exception
+	{
+		SMTPServer server = new SMTPServer();
+
+		// A command writing its reply as strings, encoded by the codec. The
+		// lines are flushed together and the small read buffer lowers the
+		// write quota of the I/O processor to the length of two lines: the
+		// processor doesn't free the line reaching the quota
+		server.getCommandHandler().addCommand(new AbstractCommand("XSTR", null) {
+			public void execute(String commandString, IoSession ioSession, SMTPContext ctx)
+			{
+				ioSession.getConfig().setMinReadBufferSize(64);
+				ioSession.getConfig().setMaxReadBufferSize(64);
+				ioSession.suspendWrite();
+				for (int i = 0; i < 4; i++)
+					ioSession.write("250-" + LINE);
+				ioSession.write("250 " + LINE);
+				ioSession.resumeWrite();
+			}
+		});
+
+		PooledBufferAllocator allocator = new PooledBufferAllocator(64, true);
+		int smtpPort = ServerTestCase.allocatePort();
+		server.setPort(smtpPort);
+		server.getConfig().setBufferAllocator(allocator);
+		server.start();
+
+		try
+		{
+			Client c = new Client("localhost", smtpPort);
+			c.expect("220");
+			c.send("EHLO foo.com");
+			c.expect("250");
+			for (int i = 0; i < 10; i++)
+			{
+				c.send("XSTR");
+				c.expect("250-" + LINE);
+			}
+			c.send("QUIT");
+			c.expect("221");
+			c.close();
+		}
+		finally
+		{
+			server.shutdown();
+			IoBuffer.setAllocator(new SimpleBufferAllocator());
+		}
+
+		assertNoLeaks(allocator);
+	}
+
+	/**
+	 * Collects the garbage and checks that all buffers were freed.
+	 */
+	private static void assertNoLeaks(PooledBufferAllocator allocator) throws Exception
+	{
+		for (int i = 0; i < 10; i++)
+		{
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertEquals(0, allocator.getLeaks());
+	}
+}
@@ -0,0 +1,88 @@
+package junit;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSessionConfig;
+import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.core.ReadBufferSizer;
+
+/**
+ * This class tests the sizing of the session buffers.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class ReadBufferSizerTest extends TestCase
+{
+	private DummySession session;
+	private ReadBufferSizer sizer;
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		SMTPServerConfig cfg = new SMTPServerConfig() {};
+		cfg.setReceiveBufferSize(8192);
+		cfg.setMaxReceiveBufferSize(32768);
+
+		session = new DummySession();
+		sizer = new ReadBufferSizer(cfg);
+		sizer.init(session);
+	}
+
+	public void testCommandMode() throws Exception
+	{
+		IoSessionConfig cfg = session.getConfig();
+		assertEquals(ReadBufferSizer.COMMAND_READ_BUFFER_SIZE, cfg.getMaxReadBufferSize());
+
+		sizer.read(session, 30, false);
+		sizer.read(session, 4096, false);
+		assertEquals(8192, sizer.getReceiveBufferSize());
+		assertEquals(2, sizer.getReads());
+		assertEquals(4126, sizer.getBytesRead());
+		assertEquals(4096, sizer.getLargestRead());
+		assertEquals(0, sizer.getDataReads());
+	}
+
+	public void testDataMode() throws Exception
+	{
+		IoSessionConfig cfg = session.getConfig();
+		sizer.read(session, 6, false);
+		sizer.setDataMode(session, true);
+		assertEquals(ReadBufferSizer.DATA_READ_BUFFER_SIZE, cfg.getMaxReadBufferSize());
+
+		// Full reads double the receive buffer up to its maximum
+		for (int i = 0; i < 5; i++)
+		{
+			cfg.setReadBufferSize(ReadBufferSizer.DATA_READ_BUFFER_SIZE);
+			sizer.read(session, 65536, true);
+		}
+		assertEquals(32768, sizer.getReceiveBufferSize());
+
+		// A small read doesn't
+		sizer.setDataMode(session, false);
+		sizer.read(session, 100, true);
+		sizer.read(session, 100, true);
+		assertEquals(8192, sizer.getReceiveBufferSize());
+
+		// Back to commands
+		sizer.setDataMode(session, false);
+		assertEquals(8192, sizer.getReceiveBufferSize());
+		assertEquals(ReadBufferSizer.COMMAND_READ_BUFFER_SIZE, cfg.getMaxReadBufferSize());
+		assertTrue(cfg.getReadBufferSize() <= ReadBufferSizer.COMMAND_READ_BUFFER_SIZE);
+		assertEquals(7, sizer.getDataReads());
+		assertEquals(5 * 65536 + 200, sizer.getDataBytesRead());
+	}
+
+	public void testNoGrowth() throws Exception
+	{
+		SMTPServerConfig cfg = new SMTPServerConfig() {};
+		cfg.setReceiveBufferSize(0);
+		sizer = new ReadBufferSizer(cfg);
+		sizer.init(session);
+
+		sizer.read(session, 65536, true);
+		sizer.read(session, 65536, true);
+		assertEquals(0, sizer.getReceiveBufferSize());
+	}
+}
@@ -0,0 +1,120 @@
+package junit;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.api.MessageListener;
+import org.mailster.smtp.api.MessageListenerAdapter;
+import org.mailster.smtp.api.handler.RecipientVerdictCache;
+import org.mailster.smtp.api.handler.SessionContext;
+
+/**
+ * This class tests the cache of the recipient verdicts.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class RecipientCacheTest extends TestCase
+{
+	private MessageListener listener = new MessageListenerAdapter();
+
+	public RecipientCacheTest(String name)
+	{
+		super(name);
+	}
+
+	public void testTimeToLive() throws Exception
+	{
+		RecipientVerdictCache cache = new RecipientVerdictCache(100, 60000, 100, false);
+		cache.put(listener, "a@example.org", "known@example.org", true);
+		cache.put(listener, "a@example.org", "unknown@example.org", false);
+
+		// The sender doesn't matter
+		assertEquals(Boolean.TRUE, cache.get(listener, "b@example.org", "known@example.org"));
+		assertEquals(Boolean.FALSE, cache.get(listener, "b@example.org", "unknown@example.org"));
+		assertNull(cache.get(new MessageListenerAdapter(), "a@example.org", "known@example.org"));
+
+		Thread.sleep(200);
+		assertEquals(Boolean.TRUE, cache.get(listener, "a@example.org", "known@example.org"));
+		assertNull(cache.get(listener, "a@example.org", "unknown@example.org"));
+
+		assertEquals(3, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	public void testPerSender() throws Exception
+	{
+		RecipientVerdictCache cache = new RecipientVerdictCache(100, 60000, 60000, true);
+		cache.put(listener, "a@example.org", "known@example.org", true);
+
+		assertEquals(Boolean.TRUE, cache.get(listener, "a@example.org", "known@example.org"));
+		assertNull(cache.get(listener, "b@example.org", "known@example.org"));
+	}
+
+	public void testEviction() throws Exception
+	{
+		RecipientVerdictCache cache = new RecipientVerdictCache(10, 60000, 60000, false);
+		for (int i = 0; i < 25; i++)
+			cache.put(listener, null, "user" + i + "@example.org", true);
+
+		assertEquals(10, cache.size());
+		assertEquals(15, cache.getEvictions());
+		assertNull(cache.get(listener, null, "user14@example.org"));
+		assertEquals(Boolean.TRUE, cache.get(listener, null, "user15@example.org"));
+	}
+
+	public void testServerCache() throws Exception
+	{
+		final AtomicInteger lookups = new AtomicInteger();
+		SMTPServer server = new SMTPServer(new MessageListenerAdapter() {
+			public boolean accept(SessionContext ctx, String from, String recipient)
+			{
+				lookups.incrementAndGet();
+				return !recipient.startsWith("unknown");
+			}
+
+			public void deliver(SessionContext ctx, String from, String recipient, InputStream data)
+			{
+			}
+		});
+		int smtpPort = ServerTestCase.allocatePort();
+		server.setPort(smtpPort);
+		server.getConfig().setRecipientCacheSize(100);
+		server.start();
+
+		try
+		{
+			for (int n = 0; n < 3; n++)
+			{
+				Client c = new Client("localhost", smtpPort);
+				c.expect("220");
+				c.send("HELO foo.com");
+				c.expect("250");
+				c.send("MAIL FROM:<sender@example.org>");
+				c.expect("250");
+				c.send("RCPT TO:<known@example.org>");
+				c.expect("250");
+				c.send("RCPT TO:<unknown@example.org>");
+				c.expect("553");
+				c.send("QUIT");
+				c.expect("221");
+				c.close();
+			}
+
+			assertEquals(2, lookups.get());
+
+			RecipientVerdictCache cache = 
+				server.getDeliveryHandlerFactory().getRecipientVerdictCache();
+			assertEquals(4, cache.getHits());
+			assertEquals(2, cache.getMisses());
+		}
+		finally
+		{
+			server.shutdown();
+		}
+	}
+}
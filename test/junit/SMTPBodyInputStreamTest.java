@@ -0,0 +1,146 @@
+package junit;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.mailster.smtp.util.CharTerminatedInputStream;
+import org.mailster.smtp.util.DotUnstuffingInputStream;
+import org.mailster.smtp.util.SMTPBodyInputStream;
+import org.mailster.smtp.util.SharedStreamUtils;
+
+/**
+ * This class tests that {@link SMTPBodyInputStream} produces the same
+ * output as the {@link DotUnstuffingInputStream} and
+ * {@link CharTerminatedInputStream} streams stack.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SMTPBodyInputStreamTest extends TestCase
+{
+	private static final byte[] ALPHABET = {'\r', '\n', '.', 'a', 'b'};
+
+	public void testSimpleMessages() throws Exception
+	{
+		assertEquals("Hello\r\n.world", read("Hello\r\n..world\r\n.\r\nQUIT\r\n"));
+		assertEquals(".Hello\r\n", read(".Hello\r\n\r\n.\r\n"));
+		assertEquals("a\r\n.\r", read("a\r\n..\r\r\n.\r\n"));
+		assertEquals("", read("\r\n.\r\n"));
+	}
+
+	public void testRandomMessages() throws Exception
+	{
+		Random rnd = new Random(7);
+
+		for (int i = 0; i < 3000; i++)
+		{
+			byte[] data = new byte[rnd.nextInt(300)];
+			for (int j = 0; j < data.length; j++)
+				data[j] = ALPHABET[rnd.nextInt(ALPHABET.length)];
+
+			// Most messages end with the terminator
+			if (i % 4 != 0)
+			{
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				bos.write(data);
+				bos.write("\r\n.\r\n".getBytes());
+				data = bos.toByteArray();
+			}
+
+			String expected;
+			try
+			{
+				expected = readOld(data);
+			}
+			catch (ProtocolException pex)
+			{
+				expected = null;
+			}
+
+			String actual;
+			try
+			{
+				actual = readNew(rnd, data);
+			}
+			catch (ProtocolException pex)
+			{
+				actual = null;
+			}
+
+			assertEquals(expected, actual);
+		}
+	}
+
+	private String read(String s) throws IOException
+	{
+		return readNew(new Random(), s.getBytes());
+	}
+
+	private String readOld(byte[] data) throws IOException
+	{
+		InputStream in = new DotUnstuffingInputStream(
+				new CharTerminatedInputStream(new ByteArrayInputStream(data),
+						SharedStreamUtils.SMTP_TERMINATOR));
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1)
+			bos.write(b);
+
+		return new String(bos.toByteArray(), "ISO-8859-1");
+	}
+
+	/**
+	 * Reads the stream with a mix of single byte and random length reads.
+	 */
+	private String readNew(Random rnd, byte[] data) throws IOException
+	{
+		InputStream in = new SMTPBodyInputStream(new ChunkedInputStream(rnd, data));
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] b = new byte[16];
+		while (true)
+		{
+			if (rnd.nextBoolean())
+			{
+				int c = in.read();
+				if (c == -1)
+					break;
+				bos.write(c);
+			}
+			else
+			{
+				int n = in.read(b, 0, 1 + rnd.nextInt(b.length));
+				if (n == -1)
+					break;
+				bos.write(b, 0, n);
+			}
+		}
+
+		return new String(bos.toByteArray(), "ISO-8859-1");
+	}
+
+	/**
+	 * Returns the data in random sized chunks like network packets.
+	 */
+	private static class ChunkedInputStream extends ByteArrayInputStream
+	{
+		private Random rnd;
+
+		public ChunkedInputStream(Random rnd, byte[] data)
+		{
+			super(data);
+			this.rnd = rnd;
+		}
+
+		public synchronized int read(byte[] b, int off, int len)
+		{
+			return super.read(b, off, Math.max(1, rnd.nextInt(len + 1)));
+		}
+	}
+}
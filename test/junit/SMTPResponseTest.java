@@ -0,0 +1,53 @@
+package junit;
+
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.mailster.smtp.core.SMTPResponse;
+
+/**
+ * This class tests the pre-encoded replies.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SMTPResponseTest extends ServerTestCase
+{
+	public SMTPResponseTest(String name)
+	{
+		super(name);
+	}
+
+	public void testBuffers() throws Exception
+	{
+		IoBuffer b1 = SMTPResponse.OK.getBuffer();
+		IoBuffer b2 = SMTPResponse.OK.getBuffer();
+
+		assertTrue(b1.isReadOnly());
+
+		// Consuming a buffer doesn't affect the others
+		byte[] dst = new byte[b1.remaining()];
+		b1.get(dst);
+		assertEquals("250 Ok\r\n", new String(dst, "US-ASCII"));
+		assertEquals(0, b1.remaining());
+		assertEquals(8, b2.remaining());
+		assertEquals(8, SMTPResponse.OK.getBuffer().remaining());
+	}
+
+	public void testSettingsChange() throws Exception
+	{
+		expect("220 localhost ESMTP");
+		send("EHLO foo.com");
+		expect("250-localhost");
+		send("QUIT");
+		expect("221 Bye");
+		this.c.close();
+
+		// The cached replies are rebuilt
+		wiser.getServer().getConfig().setHostName("mail.example.org");
+		this.c = new Client("localhost", port);
+		expect("220 mail.example.org ESMTP");
+		send("EHLO foo.com");
+		expect("250-mail.example.org");
+	}
+}
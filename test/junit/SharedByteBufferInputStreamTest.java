@@ -0,0 +1,82 @@
+package junit;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import javax.mail.internet.SharedInputStream;
+
+import junit.framework.TestCase;
+
+import org.mailster.smtp.util.SharedByteBufferInputStream;
+
+/**
+ * This class tests that {@link SharedByteBufferInputStream} reads
+ * its segments in order and handles private streams independently.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SharedByteBufferInputStreamTest extends TestCase
+{
+	private static final byte[] DATA = "Hello this is test data\r\n".getBytes();
+
+	/**
+	 * Splits the test data among segments of different sizes,
+	 * including an empty one.
+	 */
+	private SharedByteBufferInputStream newStream()
+	{
+		ByteBuffer prefixed = ByteBuffer.allocate(10);
+		prefixed.put("xx".getBytes()).put(DATA, 0, 3).flip();
+		prefixed.position(2);
+
+		return new SharedByteBufferInputStream(prefixed,
+				ByteBuffer.wrap(DATA, 3, 7),
+				ByteBuffer.allocate(0),
+				ByteBuffer.wrap(DATA, 10, DATA.length - 10));
+	}
+
+	public void testSequentialReads() throws Exception
+	{
+		SharedByteBufferInputStream st = newStream();
+		assertEquals(DATA.length, st.available());
+
+		for (int i = 0; i < 5; i++)
+			assertEquals(DATA[i], st.read());
+
+		byte[] b = new byte[DATA.length];
+		assertEquals(DATA.length - 5, st.read(b, 5, DATA.length - 5));
+		for (int i = 5; i < DATA.length; i++)
+			assertEquals(DATA[i], b[i]);
+
+		assertEquals(-1, st.read());
+		assertEquals(-1, st.read(b));
+		assertEquals(DATA.length, st.getPosition());
+	}
+
+	public void testPrivateStreams() throws Exception
+	{
+		SharedByteBufferInputStream st = newStream();
+		InputStream in1 = st.newStream(0, -1);
+		InputStream in2 = st.newStream(8, 12);
+
+		assertEquals(DATA[0], st.read());
+		assertEquals(DATA[0], in1.read());
+		assertEquals(DATA[8], in2.read());
+		assertEquals(4, ((SharedByteBufferInputStream) in2).length());
+		assertEquals(1, ((SharedInputStream) in2).getPosition());
+
+		InputStream in3 = ((SharedInputStream) in2).newStream(1, -1);
+		byte[] b = new byte[10];
+		assertEquals(3, in3.read(b));
+		for (int i = 0; i < 3; i++)
+			assertEquals(DATA[9 + i], b[i]);
+
+		in2.mark(0);
+		assertEquals(3, in2.skip(10));
+		assertEquals(-1, in2.read());
+		in2.reset();
+		assertEquals(DATA[9], in2.read());
+
+		assertEquals(DATA[1], in1.read());
+	}
+}
@@ -0,0 +1,106 @@
+package junit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPServerConfig;
+import org.mailster.smtp.api.handler.SessionContext;
+import org.mailster.smtp.core.TooMuchDataException;
+
+import wiser.WiserMessage;
+
+/**
+ * This class tests the spooling of the large messages to the configured
+ * directory.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SpoolFileTest extends ServerTestCase
+{
+	private static final int DEFERRED_SIZE = 1024;
+
+	/**
+	 * Records the files of the spool directory during the delivery.
+	 */
+	public class SpoolWiser extends TestWiser
+	{
+		public void deliver(SessionContext ctx, String from, String recipient,
+				InputStream data) throws TooMuchDataException, IOException
+		{
+			spooled = spoolDirectory.list();
+			super.deliver(ctx, from, recipient, data);
+		}
+	}
+
+	private File spoolDirectory;
+	private volatile String[] spooled;
+
+	public SpoolFileTest(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		this.spoolDirectory = Files.createTempDirectory("spool").toFile();
+		super.setUp();
+	}
+
+	protected void tearDown() throws Exception
+	{
+		super.tearDown();
+
+		for (File f : spoolDirectory.listFiles())
+			f.delete();
+		spoolDirectory.delete();
+	}
+
+	protected TestWiser createWiser()
+	{
+		return new SpoolWiser();
+	}
+
+	protected void configure(SMTPServerConfig config)
+	{
+		config.setSpoolDirectory(spoolDirectory);
+		config.setSyncSpoolFiles(true);
+		config.setDataDeferredSize(DEFERRED_SIZE);
+	}
+
+	public void testSpoolDirectory() throws Exception
+	{
+		StringBuilder body = new StringBuilder("Subject: spool\r\n\r\n");
+		for (int i = 0; body.length() <= 2 * DEFERRED_SIZE; i++)
+			body.append("Line number ").append(i).append(" of the message body\r\n");
+		body.append("last");
+
+		expect("220");
+		send("HELO foo.com");
+		expect("250");
+		send("MAIL FROM: success@example.org");
+		expect("250");
+		send("RCPT TO: success@example.org");
+		expect("250");
+		send("DATA");
+		expect("354");
+		send(body.toString() + "\r\n.");
+		expect("250");
+
+		// The message was written to the spool directory
+		assertNotNull(spooled);
+		assertEquals(1, spooled.length);
+
+		WiserMessage msg = wiser.getMessages().get(0);
+		assertEquals(body.toString(), new String(msg.getData(), "US-ASCII"));
+
+		// Discarding the message deletes the file
+		msg.dispose();
+		for (int i = 0; i < 50 && spoolDirectory.list().length > 0; i++)
+			Thread.sleep(20);
+		assertEquals(0, spoolDirectory.list().length);
+	}
+}
@@ -0,0 +1,272 @@
+package junit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSocket;
+
+import junit.framework.TestCase;
+import junit.util.Client;
+import junit.util.ServerTestCase;
+
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.mailster.smtp.SMTPEndpoint;
+import org.mailster.smtp.SMTPServer;
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.TLSHandshakeFilter;
+import org.mailster.smtp.core.commands.AbstractCommand;
+import org.mailster.smtp.util.DummySSLSocketFactory;
+import org.mailster.smtp.util.TLSContextFactory;
+
+/**
+ * This class tests the scheduling of the TLS handshakes by the
+ * {@link TLSHandshakeFilter}.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class TLSHandshakeFilterTest extends TestCase
+{
+	private int smtpPort;
+	private SMTPServer server;
+	private SMTPEndpoint smtps;
+
+	public TLSHandshakeFilterTest(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		smtpPort = ServerTestCase.allocatePorts(2);
+
+		this.server = new SMTPServer();
+		this.server.setPort(smtpPort);
+		this.server.getConfig().setSSLContext(TLSContextFactory.createSSLContext(
+				ImplicitTLSTest.getKeyStore(), "PKCS12", "changeit".toCharArray()));
+		this.server.getConfig().setHandshakeThreads(2);
+
+		this.smtps = server.addEndpoint(smtpPort + 1);
+		this.smtps.getConfig().setImplicitTLS(true);
+	}
+
+	protected void tearDown() throws Exception
+	{
+		this.server.shutdown();
+		super.tearDown();
+	}
+
+	/**
+	 * Waits for the handshakes in progress to be over.
+	 */
+	private void waitForHandshakes(TLSHandshakeFilter filter) throws Exception
+	{
+		for (int i = 0; i < 100 && filter.getActiveHandshakes() > 0; i++)
+			Thread.sleep(20);
+		assertEquals(0, filter.getActiveHandshakes());
+	}
+
+	/**
+	 * Opens a session and issues STARTTLS.
+	 */
+	private Socket startTLS(String reply) throws Exception
+	{
+		Socket socket = new Socket("localhost", smtpPort);
+		Client c = new Client(socket);
+		c.expect("220");
+		c.send("EHLO foo.com");
+		c.expect("250");
+		c.send("STARTTLS");
+		c.expect(reply);
+		return socket;
+	}
+
+	public void testHandshakes() throws Exception
+	{
+		server.start();
+		TLSHandshakeFilter filter = server.getTLSHandshakeFilter();
+		DummySSLSocketFactory factory = new DummySSLSocketFactory();
+
+		for (int i = 0; i < 8; i++)
+		{
+			Client c = new Client(factory.createSocket("localhost", smtps.getPort()));
+			c.expect("220");
+			c.send("QUIT");
+			c.expect("221");
+			c.close();
+		}
+
+		Socket plain = startTLS("220");
+		SSLSocket socket = (SSLSocket) factory.createSocket(plain, "localhost", smtpPort, true);
+		socket.startHandshake();
+
+		Client c = new Client(socket);
+		c.send("EHLO foo.com");
+		c.expect("250");
+		c.send("QUIT");
+		c.expect("221");
+		c.close();
+
+		waitForHandshakes(filter);
+		assertEquals(9, filter.getHandshakes());
+		assertEquals(0, filter.getFailedHandshakes());
+		assertTrue(filter.getMaxHandshakeTime() > 0);
+		assertTrue(filter.getHandshakeTimePercentile(50) <= filter.getHandshakeTimePercentile(99));
+		assertTrue(filter.getHandshakeTimePercentile(100) <= filter.getMaxHandshakeTime());
+	}
+
+	public void testHandshakeLimit() throws Exception
+	{
+		server.getConfig().setMaxConcurrentHandshakes(1);
+		server.start();
+		TLSHandshakeFilter filter = server.getTLSHandshakeFilter();
+
+		// Holds the only handshake allowed
+		Socket pending = startTLS("220");
+		assertEquals(1, filter.getActiveHandshakes());
+
+		startTLS("454").close();
+
+		try
+		{
+			SSLSocket socket = (SSLSocket) new DummySSLSocketFactory().
+				createSocket("localhost", smtps.getPort());
+			socket.startHandshake();
+			fail("The implicit TLS session should have been closed");
+		}
+		catch (IOException expected)
+		{
+		}
+		assertEquals(2, filter.getRejectedHandshakes());
+
+		// Closing the pending session ends its handshake
+		pending.close();
+		waitForHandshakes(filter);
+		assertEquals(1, filter.getFailedHandshakes());
+
+		startTLS("220").close();
+	}
+
+	public void testHandshakeCancelled() throws Exception
+	{
+		// Takes the name of the SSL filter so that STARTTLS can't add it
+		server.getCommandHandler().addCommand(new AbstractCommand("XNAME", null) {
+			public void execute(String commandString, IoSession ioSession, SMTPContext ctx)
+				throws IOException
+			{
+				ioSession.getFilterChain().addLast(TLSHandshakeFilter.SSL_FILTER, new IoFilterAdapter());
+				sendResponse(ioSession, "250 Ok");
+			}
+		});
+		server.getConfig().setMaxConcurrentHandshakes(1);
+		server.start();
+		TLSHandshakeFilter filter = server.getTLSHandshakeFilter();
+
+		Client c = new Client("localhost", smtpPort);
+		c.expect("220");
+		c.send("EHLO foo.com");
+		c.expect("250");
+		c.send("XNAME");
+		c.expect("250");
+		c.send("STARTTLS");
+		c.send("NOOP");
+		c.expect("250");
+
+		assertEquals(0, filter.getActiveHandshakes());
+		assertEquals(1, filter.getFailedHandshakes());
+		c.close();
+
+		// The permit was given back
+		startTLS("220").close();
+	}
+
+	/**
+	 * Decrypts the next record received by a client engine, reading from
+	 * the socket when no whole record is buffered.
+	 */
+	private static SSLEngineResult unwrap(SSLEngine engine, InputStream in, ByteBuffer netIn,
+			ByteBuffer appIn) throws Exception
+	{
+		netIn.flip();
+		SSLEngineResult r = engine.unwrap(netIn, appIn);
+		netIn.compact();
+
+		if (r.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW)
+		{
+			int n = in.read(netIn.array(), netIn.position(), netIn.remaining());
+			assertTrue("Connection closed", n > 0);
+			netIn.position(netIn.position() + n);
+		}
+
+		for (Runnable task; (task = engine.getDelegatedTask()) != null;)
+			task.run();
+		return r;
+	}
+
+	public void testDataPipelinedWithFinished() throws Exception
+	{
+		server.start();
+
+		Socket socket = new Socket("localhost", smtps.getPort());
+		socket.setSoTimeout(5000);
+		InputStream in = socket.getInputStream();
+		OutputStream out = socket.getOutputStream();
+
+		// The client Finished message is the last one of a TLS 1.3 handshake
+		SSLEngine engine = new DummySSLSocketFactory().getSSLContext().createSSLEngine();
+		engine.setUseClientMode(true);
+		engine.setEnabledProtocols(new String[] {"TLSv1.3"});
+		engine.beginHandshake();
+
+		int size = engine.getSession().getPacketBufferSize();
+		ByteBuffer netIn = ByteBuffer.allocate(size);
+		ByteBuffer appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+
+		// The engine wants room for a whole packet for each record
+		ByteBuffer netOut = ByteBuffer.allocate(3 * size);
+
+		for (HandshakeStatus hs = engine.getHandshakeStatus(); hs != HandshakeStatus.FINISHED;)
+		{
+			if (hs == HandshakeStatus.NEED_WRAP)
+			{
+				hs = engine.wrap(ByteBuffer.allocate(0), netOut).getHandshakeStatus();
+				if (hs != HandshakeStatus.FINISHED)
+				{
+					out.write(netOut.array(), 0, netOut.position());
+					netOut.clear();
+				}
+			}
+			else
+			{
+				assertEquals(HandshakeStatus.NEED_UNWRAP, hs);
+				unwrap(engine, in, netIn, appIn);
+				hs = engine.getHandshakeStatus();
+			}
+		}
+
+		// Two records of commands in the same write as the Finished message
+		engine.wrap(ByteBuffer.wrap("EHLO foo.com\r\n".getBytes("US-ASCII")), netOut);
+		engine.wrap(ByteBuffer.wrap("NOOP\r\n".getBytes("US-ASCII")), netOut);
+		out.write(netOut.array(), 0, netOut.position());
+
+		String replies = "";
+		while (!replies.endsWith("\r\n250 Ok\r\n"))
+		{
+			unwrap(engine, in, netIn, appIn);
+			appIn.flip();
+			replies += new String(appIn.array(), 0, appIn.limit(), "US-ASCII");
+			appIn.clear();
+		}
+
+		assertTrue(replies, replies.startsWith("220"));
+		assertTrue(replies, replies.contains("\r\n250-"));
+		socket.close();
+	}
+}
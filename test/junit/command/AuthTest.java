@@ -1,6 +1,5 @@
 package junit.command;
 
-import junit.util.Client;
 import junit.util.ServerTestCase;
 
 import org.mailster.smtp.AllSchemesAuthenticationHandler;
@@ -36,16 +35,12 @@ public class AuthTest extends ServerTestCase
 		super(name);
 	}
 
-	protected void setUp() throws Exception
+	protected TestWiser createWiser()
 	{
-		this.wiser = new TestWiser();
-		this.wiser.setHostname("localhost");
-		this.wiser.setPort(PORT);
-		this.wiser.getServer().setAuthenticationHandlerFactory(
+		TestWiser wiser = new TestWiser();
+		wiser.getServer().setAuthenticationHandlerFactory(
 				new AllSchemesAuthenticationHandler(validator));
-		
-		this.wiser.start();
-		this.c = new Client("localhost", PORT);
+		return wiser;
 	}
 
 	/**
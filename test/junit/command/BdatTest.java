@@ -0,0 +1,164 @@
+package junit.command;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.util.ServerTestCase;
+
+/**
+ * This class tests the BDAT command (RFC 3030).
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class BdatTest extends ServerTestCase
+{
+	public BdatTest(String name)
+	{
+		super(name);
+	}
+
+	private void startTransaction() throws Exception
+	{
+		expect("220");
+
+		send("HELO foo.com");
+		expect("250");
+
+		send("MAIL FROM: <success@example.org> BODY=BINARYMIME");
+		expect("250");
+
+		send("RCPT TO: <success@example.org>");
+		expect("250");
+	}
+
+	private void sendChunk(byte[] data, int offset, int length, boolean last)
+		throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(("BDAT " + length + (last ? " LAST" : "") + "\r\n").getBytes("US-ASCII"));
+		out.write(data, offset, length);
+		c.write(out.toByteArray());
+	}
+
+	public void testChunks() throws Exception
+	{
+		startTransaction();
+
+		// Neither terminated nor unstuffed
+		byte[] data = "Subject: chunks\r\n\r\n.\r\n..\r\n.\r\nbinary \0 data".getBytes("ISO-8859-1");
+
+		sendChunk(data, 0, 20, false);
+		expect("250 20 octets received");
+		sendChunk(data, 20, data.length - 20, false);
+		expect("250 " + (data.length - 20) + " octets received");
+		sendChunk(data, 0, 0, true);
+		expect("250 Ok");
+
+		assertEquals(1, wiser.getMessages().size());
+		assertTrue(Arrays.equals(data, wiser.getMessages().get(0).getData()));
+	}
+
+	public void testPipelinedBigChunks() throws Exception
+	{
+		startTransaction();
+
+		byte[] data = new byte[1000000];
+		new Random(42).nextBytes(data);
+
+		// The chunks are sent without waiting for the replies
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < 4; i++)
+		{
+			out.write(("BDAT 250000" + (i == 3 ? " LAST" : "") + "\r\n").getBytes("US-ASCII"));
+			out.write(data, i * 250000, 250000);
+		}
+		out.write("QUIT\r\n".getBytes("US-ASCII"));
+		c.write(out.toByteArray());
+
+		expect("250 250000 octets received");
+		expect("250 250000 octets received");
+		expect("250 250000 octets received");
+		expect("250 Ok");
+		expect("221");
+
+		assertEquals(1, wiser.getMessages().size());
+		assertTrue(Arrays.equals(data, wiser.getMessages().get(0).getData()));
+	}
+
+	public void testNeedMail() throws Exception
+	{
+		expect("220");
+
+		send("HELO foo.com");
+		expect("250");
+
+		c.write("BDAT 5 LAST\r\nhello".getBytes("US-ASCII"));
+		expect("503 Error: need MAIL command");
+
+		// The chunk has been skipped
+		send("NOOP");
+		expect("250");
+		assertEquals(0, wiser.getMessages().size());
+	}
+
+	public void testFailedChunkDiscardsMessage() throws Exception
+	{
+		expect("220");
+
+		send("HELO foo.com");
+		expect("250");
+
+		send("MAIL FROM: <success@example.org>");
+		expect("250");
+
+		c.write("BDAT 5\r\nhello".getBytes("US-ASCII"));
+		expect("503 Error: need RCPT command");
+
+		send("RCPT TO: <success@example.org>");
+		expect("250");
+
+		c.write("BDAT 5 LAST\r\nworld".getBytes("US-ASCII"));
+		expect("503 Error: previous BDAT command failed");
+		assertEquals(0, wiser.getMessages().size());
+
+		// A new transaction doesn't include the rejected chunks
+		send("MAIL FROM: <success@example.org>");
+		expect("250");
+		send("RCPT TO: <success@example.org>");
+		expect("250");
+		c.write("BDAT 3 LAST\r\nnew".getBytes("US-ASCII"));
+		expect("250 Ok");
+
+		assertEquals(1, wiser.getMessages().size());
+		assertEquals("new", new String(wiser.getMessages().get(0).getData()));
+	}
+
+	public void testNoDataAfterBdat() throws Exception
+	{
+		startTransaction();
+
+		send("DATA");
+		expect("503 Error: message must be sent with BDAT");
+
+		c.write("BDAT 2\r\nab".getBytes("US-ASCII"));
+		expect("250 2 octets received");
+	}
+
+	public void testSyntax() throws Exception
+	{
+		startTransaction();
+
+		send("BDAT");
+		expect("501");
+
+		send("BDAT 12 FIRST");
+		expect("501");
+
+		send("BDAT 1x");
+		expect("501");
+
+		send("BDAT 12 LAST more");
+		expect("501");
+	}
+}
@@ -0,0 +1,110 @@
+package junit.command;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import junit.framework.TestCase;
+
+import org.apache.mina.core.session.IoSession;
+import org.mailster.smtp.core.SMTPContext;
+import org.mailster.smtp.core.commands.AbstractCommand;
+import org.mailster.smtp.core.commands.CommandHandler;
+import org.mailster.smtp.core.commands.InvalidCommandNameException;
+import org.mailster.smtp.core.commands.UnknownCommandException;
+
+/**
+ * This class tests the command lookup and the parsing of their arguments.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class CommandHandlerTest extends TestCase
+{
+	/**
+	 * A custom command exposing the argument parsing.
+	 */
+	public static class XCommand extends AbstractCommand
+	{
+		public XCommand()
+		{
+			super("XTEST", null);
+		}
+
+		public void execute(String commandString, IoSession ioSession, SMTPContext ctx)
+			throws IOException
+		{
+		}
+
+		public String[] args(String commandString)
+		{
+			return getArgs(commandString);
+		}
+
+		public String arg(String commandString, int index)
+		{
+			return getArg(commandString, index);
+		}
+	}
+
+	private CommandHandler handler = new CommandHandler();
+
+	public void testLookup() throws Exception
+	{
+		assertEquals("MAIL", handler.getCommandFromString("MAIL FROM:<a@example.org>").getName());
+		assertEquals("RCPT", handler.getCommandFromString("rcpt TO:<a@example.org>").getName());
+		assertEquals("DATA", handler.getCommandFromString("Data").getName());
+		assertEquals("STARTTLS", handler.getCommandFromString(" \tstarttls").getName());
+		assertEquals("HELO", handler.getCommandFromString("HELO").getName());
+		assertEquals("HELP", handler.getCommandFromString("HELP DATA").getName());
+
+		try
+		{
+			handler.getCommandFromString("MAILS FROM:<a@example.org>");
+			fail();
+		}
+		catch (UnknownCommandException ex) {}
+
+		try
+		{
+			handler.getCommandFromString("     ");
+			fail();
+		}
+		catch (InvalidCommandNameException ex) {}
+
+		try
+		{
+			handler.getCommandFromString("NO");
+			fail();
+		}
+		catch (InvalidCommandNameException ex) {}
+
+		// Commands added later are found too
+		assertFalse(handler.containsCommand("XTEST"));
+		handler.addCommand(new XCommand());
+		assertEquals("XTEST", handler.getCommandFromString("xTest 1 2").getName());
+		assertEquals("QUIT", handler.getCommandFromString("QUIT").getName());
+	}
+
+	public void testArgs() throws Exception
+	{
+		XCommand cmd = new XCommand();
+		String[] lines = new String[] {
+				"EHLO foo.com", "  EHLO\tfoo.com  ", "NOOP", "", "   ",
+				"AUTH PLAIN dGVzdAB0ZXN0ADEyMzQ=", "X  a b\fc\r\nd" };
+
+		for (String line : lines)
+		{
+			List<String> expected = new ArrayList<String>();
+			StringTokenizer st = new StringTokenizer(line);
+			while (st.hasMoreTokens())
+				expected.add(st.nextToken());
+
+			assertEquals(line, expected, Arrays.asList(cmd.args(line)));
+			for (int i = 0; i <= expected.size(); i++)
+				assertEquals(line, i < expected.size() ? expected.get(i) : null,
+						cmd.arg(line, i));
+		}
+	}
+}
@@ -2,6 +2,8 @@ package junit.command;
 
 import junit.util.ServerTestCase;
 
+import org.mailster.smtp.SMTPServerConfig;
+
 /**
  * @author Jon Stevens
  * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
@@ -83,4 +85,61 @@ public class DataTest extends ServerTestCase
 		send("MAIL FROM: ed@foo.com");
 		expect("250");
 	}
+
+	protected void configure(SMTPServerConfig config)
+	{
+		// The option is read when the server starts
+		if (getName().startsWith("testUnstuffOnReceive"))
+			config.setUnstuffOnReceive(true);
+		
+		if (getName().equals("testUnstuffOnReceiveSpooled"))
+			config.setDataDeferredSize(1024);
+	}
+
+	/**
+	 * Sends a message and returns the data delivered.
+	 */
+	private String sendMessage(String data) throws Exception
+	{
+		expect("220");
+
+		send("HELO foo.com");
+		expect("250");
+
+		send("MAIL FROM: success@example.org");
+		expect("250");
+
+		send("RCPT TO: success@example.org");
+		expect("250");
+
+		send("DATA");
+		expect("354 End data with <CR><LF>.<CR><LF>");
+
+		send(data + "\r\n.");
+		expect("250");
+		
+		return new String(wiser.getMessages().get(0).getData());
+	}
+
+	public void testUnstuffOnReceive() throws Exception
+	{
+		assertEquals("Subject: test\r\n.dotted\r\nlast", 
+				sendMessage("Subject: test\r\n..dotted\r\nlast"));
+	}
+
+	public void testUnstuffOnReceiveSpooled() throws Exception
+	{
+		// Larger than the deferred size, the message is spooled to a file
+		StringBuilder sent = new StringBuilder("Subject: test\r\n");
+		StringBuilder received = new StringBuilder(sent);
+		for (int i = 0; i < 100; i++)
+		{
+			sent.append("..dotted line ").append(i).append("\r\n");
+			received.append(".dotted line ").append(i).append("\r\n");
+		}
+		sent.append("last");
+		received.append("last");
+
+		assertEquals(received.toString(), sendMessage(sent.toString()));
+	}
 }
@@ -64,8 +64,9 @@ public class MailTest extends ServerTestCase
 		send("HELO foo.com");
 		expect("250");
 
+		// The null reverse-path is used by bounces
 		send("MAIL FROM: <>");
-		expect("553 <> Invalid email address");
+		expect("250 Ok");
 	}
 
 	public void testEmptyEmailFromCommand() throws Exception
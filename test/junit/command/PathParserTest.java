@@ -0,0 +1,161 @@
+package junit.command;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.mailster.smtp.core.commands.PathParser;
+
+/**
+ * This class tests the parsing of the MAIL and RCPT paths against a corpus
+ * of valid and invalid paths, then against random inputs.
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class PathParserTest extends TestCase
+{
+	/** Valid reverse-paths and the mailbox they hold. */
+	private final static String[][] VALID = new String[][] {
+		{ "<user@example.org>", "user@example.org" },
+		{ "user@example.org", "user@example.org" },
+		{ " <user@example.org>", "user@example.org" },
+		{ "<>", "" },
+		{ "<first.last+tag@sub.example.museum>", "first.last+tag@sub.example.museum" },
+		{ "<user@example.technology>", "user@example.technology" },
+		{ "<!#$%&'*+-/=?^_`{|}~@example.org>", "!#$%&'*+-/=?^_`{|}~@example.org" },
+		{ "<\"john doe\"@example.org>", "\"john doe\"@example.org" },
+		{ "<\"quoted\\\"pair\"@example.org>", "\"quoted\\\"pair\"@example.org" },
+		{ "<user@[192.168.0.1]>", "user@[192.168.0.1]" },
+		{ "<user@[IPv6:2001:db8::1]>", "user@[IPv6:2001:db8::1]" },
+		{ "<user@[IPv6:1:2:3:4:5:6:7:8]>", "user@[IPv6:1:2:3:4:5:6:7:8]" },
+		{ "<user@[IPv6:::ffff:10.0.0.1]>", "user@[IPv6:::ffff:10.0.0.1]" },
+		{ "<user@[x-tag:content]>", "user@[x-tag:content]" },
+		{ "<@relay.example.org,@other.example.org:user@example.org>", "user@example.org" },
+		{ "<user@localhost>", "user@localhost" },
+		{ "<user@a-b.c-d.example>", "user@a-b.c-d.example" },
+		{ "<user@example.org> SIZE=100 BODY=8BITMIME", "user@example.org" },
+	};
+
+	/** Invalid reverse-paths. */
+	private final static String[] INVALID = new String[] {
+		"", "   ", "<", ">", "<user@example.org", "user@example.org>",
+		"<user>", "<@example.org>", "<user@>", "<.user@example.org>",
+		"<user.@example.org>", "<us..er@example.org>", "<user@example..org>",
+		"<user@-example.org>", "<user@example-.org>", "<user@example.org.>",
+		"<user name@example.org>", "<\"unterminated@example.org>",
+		"<user@[256.1.1.1]>", "<user@[1.2.3]>", "<user@[IPv6:1::2::3]>",
+		"<user@[IPv6:1:2:3:4:5:6:7:8:9]>", "<user@[IPv6:12345::1]>",
+		"<user@[tag-:x]>", "<user@[tag:]>", "<user@[1.2.3.4>",
+		"<@relay.example.org user@example.org>", "<@relay.example.org:>",
+		"user@example.org SIZE=1", "<user@ex_ample.org>", "<jöran@example.org>",
+		"<" + repeat('a', 65) + "@example.org>",
+		"<user@" + repeat('a', 64) + ".org>",
+		"<user@example.org>SIZE=1",
+	};
+
+	private static String repeat(char c, int n)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++)
+			sb.append(c);
+		return sb.toString();
+	}
+
+	public void testValidPaths()
+	{
+		for (String[] p : VALID)
+		{
+			long path = PathParser.parseReversePath(p[0], 0, false);
+			assertTrue(p[0], path != PathParser.INVALID);
+			assertEquals(p[0], p[1], PathParser.getMailbox(p[0], path));
+			assertTrue(p[0], PathParser.isValidParameters(p[0], PathParser.getPathEnd(path), false));
+		}
+	}
+
+	public void testInvalidPaths()
+	{
+		for (String p : INVALID)
+		{
+			long path = PathParser.parseReversePath(p, 0, false);
+			assertTrue(p, path == PathParser.INVALID
+					|| !PathParser.isValidParameters(p, PathParser.getPathEnd(path), false));
+		}
+	}
+
+	public void testForwardPaths()
+	{
+		assertEquals(PathParser.INVALID, PathParser.parseForwardPath("<>", 0, false));
+
+		String s = "TO:<Postmaster>";
+		assertEquals("Postmaster", PathParser.getMailbox(s, PathParser.parseForwardPath(s, 3, false)));
+		assertEquals(PathParser.INVALID, PathParser.parseReversePath(s, 3, false));
+	}
+
+	public void testUtf8()
+	{
+		String s = "<jöran@bücher.example>";
+		assertEquals(PathParser.INVALID, PathParser.parseReversePath(s, 0, false));
+		assertEquals("jöran@bücher.example",
+				PathParser.getMailbox(s, PathParser.parseReversePath(s, 0, true)));
+	}
+
+	public void testParameters()
+	{
+		String s = "<a@example.org> SIZE=123 SMTPUTF8 BODY=BINARYMIME";
+		int params = PathParser.getPathEnd(PathParser.parseReversePath(s, 0, false));
+		assertTrue(PathParser.isValidParameters(s, params, false));
+
+		int size = PathParser.findParameter(s, params, "size");
+		assertEquals('=', s.charAt(size));
+		assertEquals("123", s.substring(size + 1, PathParser.getValueEnd(s, size)));
+		assertTrue(PathParser.findParameter(s, params, "SMTPUTF8") > 0);
+		assertEquals(-1, PathParser.findParameter(s, params, "SMTP"));
+		assertEquals(-1, PathParser.findParameter(s, params, "RET"));
+
+		assertFalse(PathParser.isValidParameters(s + " =x", params, false));
+		assertFalse(PathParser.isValidParameters(s + " RET=", params, false));
+		assertFalse(PathParser.isValidParameters(s + " A=b=c", params, false));
+	}
+
+	/**
+	 * Mutates the corpus randomly: the parser must neither fail nor accept
+	 * a path whose mailbox isn't valid on its own.
+	 */
+	public void testFuzz()
+	{
+		Random rnd = new Random(5321);
+		String alphabet = "<>@.:,[]\"\\ -_aZ09=é";
+
+		for (int n = 0; n < 100000; n++)
+		{
+			StringBuilder sb = new StringBuilder(VALID[rnd.nextInt(VALID.length)][0]);
+			for (int m = rnd.nextInt(4); m >= 0; m--)
+			{
+				int pos = rnd.nextInt(sb.length() + 1);
+				switch (rnd.nextInt(3))
+				{
+					case 0:
+						sb.insert(pos, alphabet.charAt(rnd.nextInt(alphabet.length())));
+						break;
+					case 1:
+						if (pos < sb.length())
+							sb.deleteCharAt(pos);
+						break;
+					default:
+						if (pos < sb.length())
+							sb.setCharAt(pos, alphabet.charAt(rnd.nextInt(alphabet.length())));
+				}
+			}
+
+			String s = sb.toString();
+			boolean utf8 = rnd.nextBoolean();
+			long path = PathParser.parseReversePath(s, 0, utf8);
+			if (path == PathParser.INVALID)
+				continue;
+
+			String mailbox = PathParser.getMailbox(s, path);
+			assertTrue(s, mailbox.length() == 0 || PathParser.isValidMailbox(mailbox, utf8));
+			PathParser.isValidParameters(s, PathParser.getPathEnd(path), utf8);
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package junit.command;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import junit.util.ServerTestCase;
+
+/**
+ * This class tests the support of pipelined commands (RFC 2920).
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class PipeliningTest extends ServerTestCase
+{
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+
+	public PipeliningTest(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		socket = new Socket("localhost", port);
+		socket.setSoTimeout(5000);
+		in = socket.getInputStream();
+		out = socket.getOutputStream();
+
+		assertTrue(read().startsWith("220"));
+	}
+
+	protected void tearDown() throws Exception
+	{
+		socket.close();
+		super.tearDown();
+	}
+
+	private void write(String s) throws Exception
+	{
+		out.write(s.getBytes("US-ASCII"));
+		out.flush();
+	}
+
+	/**
+	 * Reads until the given number of reply lines have been received.
+	 */
+	private String read(int lines) throws Exception
+	{
+		StringBuilder sb = new StringBuilder();
+		int count = 0;
+		while (count < lines)
+		{
+			int b = in.read();
+			if (b < 0)
+				break;
+			sb.append((char) b);
+			if (b == '\n')
+				count++;
+		}
+		return sb.toString();
+	}
+
+	private String read() throws Exception
+	{
+		return read(1);
+	}
+
+	public void testEhloAdvertisesPipelining() throws Exception
+	{
+		write("EHLO foo.com\r\n");
+
+		String response = "";
+		String line;
+		do
+		{
+			line = read();
+			response += line;
+		}
+		while (line.charAt(3) == '-');
+
+		assertTrue(response, response.contains("250-PIPELINING\r\n"));
+	}
+
+	public void testPipelinedTransaction() throws Exception
+	{
+		write("EHLO foo.com\r\n");
+		while (read().charAt(3) == '-');
+
+		write("MAIL FROM: <success@example.org>\r\n" +
+				"RCPT TO: <a@example.org>\r\n" +
+				"RCPT TO: <b@example.org>\r\n" +
+				"DATA\r\n");
+
+		assertEquals("250 Ok\r\n250 Ok\r\n250 Ok\r\n354 End data with <CR><LF>.<CR><LF>\r\n",
+				read(4));
+
+		// The next transaction is pipelined after the end of data
+		write("Subject: pipelined\r\n\r\nHello\r\n.\r\n" +
+				"MAIL FROM: <success@example.org>\r\n" +
+				"RCPT TO: <c@example.org>\r\n" +
+				"NOOP\r\n" +
+				"QUIT\r\n" +
+				"NOOP\r\n");
+
+		assertEquals("250 Ok\r\n250 Ok\r\n250 Ok\r\n250 Ok\r\n221 Bye\r\n", read(5));
+
+		// The command after QUIT is ignored and the session is closed
+		assertEquals(-1, in.read());
+
+		assertEquals(2, wiser.getMessages().size());
+		assertEquals("Subject: pipelined\r\n\r\nHello",
+				new String(wiser.getMessages().get(0).getData()));
+	}
+
+	public void testRepliesInOrder() throws Exception
+	{
+		write("HELO foo.com\r\n");
+		read();
+
+		StringBuilder cmds = new StringBuilder();
+		StringBuilder replies = new StringBuilder();
+		for (int i = 0; i < 50; i++)
+		{
+			cmds.append("MAIL FROM: <success@example.org>\r\nRSET\r\nDATA\r\n");
+			replies.append("250 Ok\r\n250 Ok\r\n503 Error: need MAIL command\r\n");
+		}
+		write(cmds.toString());
+
+		assertEquals(replies.toString(), read(150));
+	}
+}
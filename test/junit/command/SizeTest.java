@@ -0,0 +1,108 @@
+package junit.command;
+
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPServerConfig;
+
+/**
+ * This class tests the SIZE extension (RFC 1870).
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SizeTest extends ServerTestCase
+{
+	private static final int MAX_SIZE = 1000;
+
+	public SizeTest(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		c.expect("220");
+	}
+
+	protected void configure(SMTPServerConfig config)
+	{
+		config.setMaxMessageSize(MAX_SIZE);
+	}
+
+	private static String message(int size)
+	{
+		StringBuilder sb = new StringBuilder("Subject: size\r\n\r\n");
+		while (sb.length() < size)
+			sb.append('x');
+		return sb.toString();
+	}
+
+	private void startTransaction() throws Exception
+	{
+		c.send("MAIL FROM: <success@example.org>");
+		c.expect("250");
+		c.send("RCPT TO: <success@example.org>");
+		c.expect("250");
+	}
+
+	public void testEhlo() throws Exception
+	{
+		c.send("EHLO foo.com");
+		assertTrue(c.readResponse().contains("250-SIZE " + MAX_SIZE + "\n"));
+	}
+
+	public void testDeclaredSize() throws Exception
+	{
+		c.send("EHLO foo.com");
+		c.readResponse();
+
+		c.send("MAIL FROM: <success@example.org> SIZE=" + (MAX_SIZE + 1));
+		c.expect("552");
+
+		c.send("MAIL FROM: <success@example.org> SIZE=big");
+		c.expect("501");
+
+		c.send("MAIL FROM: <success@example.org> size=" + MAX_SIZE);
+		c.expect("250");
+	}
+
+	public void testDataTooLarge() throws Exception
+	{
+		c.send("HELO foo.com");
+		c.expect("250");
+
+		startTransaction();
+		c.send("DATA");
+		c.expect("354");
+		c.send(message(MAX_SIZE + 1) + "\r\n.");
+		c.expect("552 Message size exceeds fixed maximum message size");
+		assertEquals(0, wiser.getMessages().size());
+
+		// The session goes on and the limit is inclusive
+		startTransaction();
+		c.send("DATA");
+		c.expect("354");
+		c.send(message(MAX_SIZE) + "\r\n.");
+		c.expect("250");
+
+		assertEquals(1, wiser.getMessages().size());
+		assertEquals(message(MAX_SIZE), new String(wiser.getMessages().get(0).getData()));
+	}
+
+	public void testChunksTooLarge() throws Exception
+	{
+		c.send("HELO foo.com");
+		c.expect("250");
+
+		startTransaction();
+		String chunk = message(MAX_SIZE / 2 + 1);
+		c.write(("BDAT " + chunk.length() + "\r\n" + chunk).getBytes("US-ASCII"));
+		c.expect("250");
+		c.write(("BDAT " + chunk.length() + " LAST\r\n" + chunk).getBytes("US-ASCII"));
+		c.expect("552");
+
+		c.send("NOOP");
+		c.expect("250");
+		assertEquals(0, wiser.getMessages().size());
+	}
+}
@@ -0,0 +1,85 @@
+package junit.command;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.util.ServerTestCase;
+
+import org.mailster.smtp.SMTPServerConfig;
+
+import wiser.WiserMessage;
+
+/**
+ * This class tests the decoding of the command lines and the SMTPUTF8
+ * extension (RFC 6531).
+ *
+ * @author De Oliveira Edouard &lt;doe_wanted@yahoo.fr&gt;
+ */
+public class SmtpUtf8Test extends ServerTestCase
+{
+	private static final String SENDER = "jöran@bücher.example";
+	private static final String RECIPIENT = "用户@例子.广告";
+
+	public SmtpUtf8Test(String name)
+	{
+		super(name);
+	}
+
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		c.expect("220");
+	}
+
+	protected void configure(SMTPServerConfig config)
+	{
+		config.setSmtpUTF8Supported(!getName().equals("testNotSupported"));
+	}
+
+	private void sendUtf8(String line) throws Exception
+	{
+		c.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	public void testUtf8Addresses() throws Exception
+	{
+		c.send("EHLO foo.com");
+		String ehlo = c.readResponse();
+		assertTrue(ehlo, ehlo.contains("250-SMTPUTF8\n"));
+
+		// UTF-8 addresses require the SMTPUTF8 parameter
+		sendUtf8("MAIL FROM:<" + SENDER + ">");
+		c.expect("553");
+		sendUtf8("MAIL FROM:<" + SENDER + "> SMTPUTF8");
+		c.expect("250");
+		sendUtf8("RCPT TO:<" + RECIPIENT + ">");
+		c.expect("250");
+		c.send("DATA");
+		c.expect("354");
+		c.send("Subject: utf8");
+		c.send("");
+		c.send("Body");
+		c.send(".");
+		c.expect("250");
+		c.send("QUIT");
+		c.expect("221");
+
+		assertEquals(1, wiser.getMessages().size());
+		WiserMessage msg = wiser.getMessages().get(0);
+		assertEquals(SENDER, msg.getEnvelopeSender());
+		assertEquals(RECIPIENT, msg.getEnvelopeReceiver());
+	}
+
+	public void testNotSupported() throws Exception
+	{
+		c.send("EHLO foo.com");
+		assertFalse(c.readResponse().contains("SMTPUTF8"));
+		c.send("MAIL FROM:<success@example.org> SMTPUTF8");
+		c.expect("555");
+
+		// High bytes are decoded with the charset in use
+		c.write("MAIL FROM:<jöran@example.org>\r\n".getBytes(StandardCharsets.ISO_8859_1));
+		c.expect("553");
+		c.send("MAIL FROM:<success@example.org>");
+		c.expect("250");
+	}
+}
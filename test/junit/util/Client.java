@@ -30,7 +30,15 @@ public class Client
 	 */
 	public Client(String host, int port) throws UnknownHostException, IOException
 	{
-		socket = new Socket(host, port);
+		this(new Socket(host, port));
+	}
+	
+	/**
+	 * Uses an established connection, a SSL one for instance.
+	 */
+	public Client(Socket socket) throws IOException
+	{
+		this.socket = socket;
 		writer = new PrintWriter(socket.getOutputStream(), true);
 		reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 	}
@@ -46,6 +54,16 @@ public class Client
 		writer.flush();
 	}
 
+	/**
+	 * Sends raw bytes to the server, nothing is appended.
+	 */
+	public void write(byte[] data) throws IOException
+	{
+		writer.flush();
+		socket.getOutputStream().write(data);
+		socket.getOutputStream().flush();
+	}
+
 	/**
 	 * Throws an exception if the response does not start with
 	 * the specified string.
@@ -61,7 +79,7 @@ public class Client
 	 * Get the complete response, including a multiline response.
 	 * Newlines are included.
 	 */
-	protected String readResponse() throws Exception
+	public String readResponse() throws Exception
 	{
 		StringBuilder builder = new StringBuilder();
 		boolean done = false;
@@ -1,7 +1,10 @@
 package junit.util;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import junit.framework.TestCase;
 
+import org.mailster.smtp.SMTPServerConfig;
 import org.mailster.smtp.api.handler.SessionContext;
 
 import wiser.Wiser;
@@ -15,9 +18,12 @@ import wiser.Wiser;
  */
 public abstract class ServerTestCase extends TestCase
 {
-	/** */
+	/** The first port handed out to the tests. */
 	public static final int PORT = 2566;
 
+	/** The next port handed out to the tests. */
+	private static final AtomicInteger nextPort = new AtomicInteger(PORT);
+
 	/**
 	 * Override the accept method in Wiser so we can test
 	 * the accept method().
@@ -30,6 +36,9 @@ public abstract class ServerTestCase extends TestCase
         }
 	}
 	
+	/** The port of the server. */
+	protected int port;
+
 	/** */
 	protected TestWiser wiser;
 	
@@ -47,12 +56,30 @@ public abstract class ServerTestCase extends TestCase
 	{
 		super.setUp();
 		
-		this.wiser = new TestWiser();
+		this.port = allocatePort();
+		this.wiser = createWiser();
 		this.wiser.setHostname("localhost");
-		this.wiser.setPort(PORT);
+		this.wiser.setPort(port);
+		configure(this.wiser.getServer().getConfig());
 		this.wiser.start();
 		
-		this.c = new Client("localhost", PORT);
+		this.c = new Client("localhost", port);
+	}
+	
+	/**
+	 * Creates the server of the test. Override to use another listener.
+	 */
+	protected TestWiser createWiser()
+	{
+		return new TestWiser();
+	}
+	
+	/**
+	 * Called before the server starts. Override to change its 
+	 * configuration.
+	 */
+	protected void configure(SMTPServerConfig config)
+	{
 	}
 	
 	/** */
@@ -66,6 +93,24 @@ public abstract class ServerTestCase extends TestCase
 		super.tearDown();
 	}
 	
+	/**
+	 * Returns a port no other test has used, so that a test doesn't wait
+	 * for the port of the previous one to be released.
+	 */
+	public static int allocatePort()
+	{
+		return allocatePorts(1);
+	}
+
+	/**
+	 * Returns the first of <code>count</code> consecutive ports no other
+	 * test has used.
+	 */
+	public static int allocatePorts(int count)
+	{
+		return nextPort.getAndAdd(count);
+	}
+
 	public void send(String msg) throws Exception
 	{
 		this.c.send(msg);